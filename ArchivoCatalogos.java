@@ -0,0 +1,644 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import javax.persistence.Embeddable;
+import javax.persistence.Entity;
+
+import org.hibernate.Hibernate;
+import org.springframework.util.ClassUtils;
+
+/**
+ * Formato binario de la instantánea en disco de los catálogos de referencia. El archivo tiene una cabecera con un
+ * número mágico, la versión del formato, la fecha de generación, la longitud y el CRC32 del cuerpo, y un cuerpo con
+ * las entidades de cada catálogo. Cada entidad se guarda con los nombres de sus atributos, de modo que una
+ * instantánea escrita antes de añadir o quitar atributos a una entidad se puede seguir leyendo: los atributos
+ * desconocidos se descartan y los nuevos quedan sin valor hasta que el catálogo se recarga de la BBDD.
+ * Las asociaciones perezosas que no estaban cargadas se guardan como tales y se leen como null.
+ */
+final class ArchivoCatalogos {
+
+	private static final int MAGICO = 0x42524354; //"BRCT"
+
+	/** Versión del formato; se incrementa con cualquier cambio incompatible en la codificación */
+	static final int FORMATO = 1;
+
+	private static final int LONGITUD_CABECERA = 4 + 4 + 8 + 4 + 8;
+
+	private static final byte NULO = 0;
+	private static final byte NO_CARGADO = 1;
+	private static final byte BOOLEANO = 2;
+	private static final byte BYTE = 3;
+	private static final byte SHORT = 4;
+	private static final byte CARACTER = 5;
+	private static final byte ENTERO = 6;
+	private static final byte LARGO = 7;
+	private static final byte FLOTANTE = 8;
+	private static final byte DOBLE = 9;
+	private static final byte TEXTO = 10;
+	private static final byte DECIMAL = 11;
+	private static final byte ENTERO_GRANDE = 12;
+	private static final byte ENUMERADO = 13;
+	private static final byte FECHA = 14;
+	private static final byte TIEMPO = 15;
+	private static final byte BYTES = 16;
+	private static final byte LISTA = 17;
+	private static final byte CONJUNTO = 18;
+	private static final byte ENTIDAD = 19;
+	private static final byte REFERENCIA = 20;
+
+	//Atributos de cada clase por nombre, para asignar los valores leídos
+	private static final ClassValue<Map<String, Field>> ATRIBUTOS_POR_NOMBRE = new ClassValue<Map<String, Field>>() {
+
+		@Override
+		protected Map<String, Field> computeValue(Class<?> clase) {
+
+			Map<String, Field> atributos = new HashMap<>();
+
+			for (Field atributo : CopiaEntidades.atributos(clase)) {
+
+				atributos.putIfAbsent(atributo.getName(), atributo); //El de la subclase oculta al de la superclase
+			}
+
+			return atributos;
+		}
+	};
+
+	private ArchivoCatalogos() {
+	}
+
+
+	/**
+	 * Método que codifica los catálogos como cuerpo de la instantánea. Para los mismos datos leídos en el mismo
+	 * orden el resultado es el mismo, lo que permite saber por su CRC si una instantánea sigue vigente
+	 * @param catalogos Recibe las entidades de cada catálogo por nombre del catálogo
+	 * @return Devuelve el cuerpo codificado
+	 * @throws IllegalArgumentException si alguna entidad tiene un atributo de un tipo que el formato no admite
+	 */
+	static byte[] codificar(Map<String, ? extends List<?>> catalogos) throws IOException {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		try (DataOutputStream salida = new DataOutputStream(bytes)) {
+
+			salida.writeInt(catalogos.size());
+
+			for (Map.Entry<String, ? extends List<?>> catalogo : catalogos.entrySet()) {
+
+				escribirTexto(salida, catalogo.getKey());
+
+				salida.writeInt(catalogo.getValue().size());
+
+				//Las referencias se resuelven dentro de cada catálogo para que se puedan leer por separado
+				Map<Object, Integer> escritas = new IdentityHashMap<>();
+
+				for (Object entidad : catalogo.getValue()) {
+
+					escribirValor(salida, entidad, escritas);
+				}
+			}
+		}
+
+		return bytes.toByteArray();
+	}
+
+
+	static long crc(byte[] cuerpo) {
+
+		CRC32 crc = new CRC32();
+
+		crc.update(cuerpo, 0, cuerpo.length);
+
+		return crc.getValue();
+	}
+
+
+	/**
+	 * Método que guarda la instantánea. Se escribe en un archivo temporal que después sustituye al anterior de
+	 * forma atómica, para que otro proceso que arranque a la vez nunca lea un archivo a medio escribir
+	 * @param ruta Recibe la ruta del archivo
+	 * @param cuerpo Recibe el cuerpo obtenido con codificar()
+	 * @param crc Recibe el CRC32 del cuerpo
+	 */
+	static void escribir(Path ruta, byte[] cuerpo, long crc) throws IOException {
+
+		Path absoluta = ruta.toAbsolutePath();
+
+		Files.createDirectories(absoluta.getParent());
+
+		Path temporal = absoluta.resolveSibling(absoluta.getFileName() + ".tmp");
+
+		try (DataOutputStream salida = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporal)))) {
+
+			salida.writeInt(MAGICO);
+			salida.writeInt(FORMATO);
+			salida.writeLong(System.currentTimeMillis());
+			salida.writeInt(cuerpo.length);
+			salida.writeLong(crc);
+			salida.write(cuerpo);
+		}
+
+		Files.move(temporal, absoluta, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+
+	/**
+	 * Método que lee la instantánea proyectando el archivo en memoria, sin copiarlo a un búfer intermedio
+	 * @param ruta Recibe la ruta del archivo
+	 * @return Devuelve el contenido de la instantánea
+	 * @throws IOException si el archivo no se puede leer, es de otro formato o versión, está truncado o su CRC no coincide
+	 */
+	static Contenido leer(Path ruta) throws IOException {
+
+		try (FileChannel canal = FileChannel.open(ruta, StandardOpenOption.READ)) {
+
+			if (canal.size() < LONGITUD_CABECERA) {
+
+				throw new IOException("Instantánea truncada: " + ruta);
+			}
+
+			MappedByteBuffer mapa = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+
+			if (mapa.getInt() != MAGICO) {
+
+				throw new IOException("El archivo no es una instantánea de catálogos: " + ruta);
+			}
+
+			int formato = mapa.getInt();
+
+			if (formato != FORMATO) {
+
+				throw new IOException("Formato de instantánea " + formato + " no soportado, se esperaba " + FORMATO);
+			}
+
+			long generada = mapa.getLong();
+			int longitud = mapa.getInt();
+			long crcEsperado = mapa.getLong();
+
+			if (longitud != mapa.remaining()) {
+
+				throw new IOException("Longitud de la instantánea incorrecta: " + ruta);
+			}
+
+			ByteBuffer cuerpo = mapa.slice();
+
+			CRC32 crc = new CRC32();
+
+			crc.update(cuerpo.duplicate());
+
+			if (crc.getValue() != crcEsperado) {
+
+				throw new IOException("CRC de la instantánea incorrecto: " + ruta);
+			}
+
+			try {
+
+				return new Contenido(generada, crcEsperado, decodificar(cuerpo));
+
+			} catch (BufferUnderflowException | ReflectiveOperationException | IllegalArgumentException e) {
+
+				throw new IOException("Instantánea no válida: " + ruta, e);
+			}
+		}
+	}
+
+
+	private static Map<String, List<Object>> decodificar(ByteBuffer cuerpo) throws ReflectiveOperationException, IOException {
+
+		int numeroCatalogos = cuerpo.getInt();
+
+		Map<String, List<Object>> catalogos = new LinkedHashMap<>();
+
+		for (int i = 0; i < numeroCatalogos; i++) {
+
+			String nombre = leerTexto(cuerpo);
+
+			int numeroEntidades = cuerpo.getInt();
+
+			List<Object> entidades = new ArrayList<>(numeroEntidades);
+			List<Object> leidas = new ArrayList<>();
+
+			for (int j = 0; j < numeroEntidades; j++) {
+
+				entidades.add(leerValor(cuerpo, leidas));
+			}
+
+			catalogos.put(nombre, entidades);
+		}
+
+		return catalogos;
+	}
+
+
+	private static void escribirValor(DataOutputStream salida, Object valor, Map<Object, Integer> escritas) throws IOException {
+
+		if (valor == null) {
+
+			salida.writeByte(NULO);
+
+		}else if (!Hibernate.isInitialized(valor)) {
+
+			salida.writeByte(NO_CARGADO);
+
+		}else if (valor instanceof Boolean) {
+
+			salida.writeByte(BOOLEANO);
+			salida.writeBoolean((Boolean) valor);
+
+		}else if (valor instanceof Byte) {
+
+			salida.writeByte(BYTE);
+			salida.writeByte((Byte) valor);
+
+		}else if (valor instanceof Short) {
+
+			salida.writeByte(SHORT);
+			salida.writeShort((Short) valor);
+
+		}else if (valor instanceof Character) {
+
+			salida.writeByte(CARACTER);
+			salida.writeChar((Character) valor);
+
+		}else if (valor instanceof Integer) {
+
+			salida.writeByte(ENTERO);
+			salida.writeInt((Integer) valor);
+
+		}else if (valor instanceof Long) {
+
+			salida.writeByte(LARGO);
+			salida.writeLong((Long) valor);
+
+		}else if (valor instanceof Float) {
+
+			salida.writeByte(FLOTANTE);
+			salida.writeFloat((Float) valor);
+
+		}else if (valor instanceof Double) {
+
+			salida.writeByte(DOBLE);
+			salida.writeDouble((Double) valor);
+
+		}else if (valor instanceof String) {
+
+			salida.writeByte(TEXTO);
+			escribirTexto(salida, (String) valor);
+
+		}else if (valor instanceof BigDecimal) {
+
+			salida.writeByte(DECIMAL);
+			escribirTexto(salida, valor.toString());
+
+		}else if (valor instanceof BigInteger) {
+
+			salida.writeByte(ENTERO_GRANDE);
+			escribirTexto(salida, valor.toString());
+
+		}else if (valor instanceof Enum) {
+
+			salida.writeByte(ENUMERADO);
+			escribirTexto(salida, ((Enum<?>) valor).getDeclaringClass().getName());
+			escribirTexto(salida, ((Enum<?>) valor).name());
+
+		}else if (valor instanceof Date) {
+
+			//Date, java.sql.Date y Timestamp se reconstruyen con su constructor de milisegundos
+			salida.writeByte(FECHA);
+			escribirTexto(salida, valor.getClass().getName());
+			salida.writeLong(((Date) valor).getTime());
+
+		}else if (valor.getClass().getName().startsWith("java.time.")) {
+
+			//Todos los tipos de java.time se reconstruyen con su método parse
+			salida.writeByte(TIEMPO);
+			escribirTexto(salida, valor.getClass().getName());
+			escribirTexto(salida, valor.toString());
+
+		}else if (valor instanceof byte[]) {
+
+			salida.writeByte(BYTES);
+			salida.writeInt(((byte[]) valor).length);
+			salida.write((byte[]) valor);
+
+		}else if (valor instanceof Collection) {
+
+			salida.writeByte(valor instanceof Set ? CONJUNTO : LISTA);
+			salida.writeInt(((Collection<?>) valor).size());
+
+			for (Object elemento : (Collection<?>) valor) {
+
+				escribirValor(salida, elemento, escritas);
+			}
+
+		}else {
+
+			escribirEntidad(salida, valor, escritas);
+		}
+	}
+
+
+	private static void escribirEntidad(DataOutputStream salida, Object valor, Map<Object, Integer> escritas) throws IOException {
+
+		Object real = Hibernate.unproxy(valor);
+
+		Integer indice = escritas.get(real);
+
+		if (indice != null) {
+
+			salida.writeByte(REFERENCIA); //Referencia circular o compartida
+			salida.writeInt(indice);
+
+			return;
+		}
+
+		Class<?> clase = real.getClass();
+
+		if (!clase.isAnnotationPresent(Entity.class) && !clase.isAnnotationPresent(Embeddable.class)) {
+
+			throw new IllegalArgumentException("Tipo no soportado en la instantánea de catálogos: " + clase.getName());
+		}
+
+		escritas.put(real, escritas.size());
+
+		Field[] atributos = CopiaEntidades.atributos(clase);
+
+		salida.writeByte(ENTIDAD);
+		escribirTexto(salida, clase.getName());
+		salida.writeInt(atributos.length);
+
+		try {
+
+			for (Field atributo : atributos) {
+
+				escribirTexto(salida, atributo.getName());
+				escribirValor(salida, atributo.get(real), escritas);
+			}
+
+		} catch (IllegalAccessException e) {
+
+			throw new IllegalStateException("No se puede leer la entidad " + clase.getName(), e);
+		}
+	}
+
+
+	private static Object leerValor(ByteBuffer entrada, List<Object> leidas) throws ReflectiveOperationException, IOException {
+
+		byte tipo = entrada.get();
+
+		switch (tipo) {
+
+			case NULO:
+			case NO_CARGADO:
+				return null;
+
+			case BOOLEANO:
+				return entrada.get() != 0;
+
+			case BYTE:
+				return entrada.get();
+
+			case SHORT:
+				return entrada.getShort();
+
+			case CARACTER:
+				return entrada.getChar();
+
+			case ENTERO:
+				return entrada.getInt();
+
+			case LARGO:
+				return entrada.getLong();
+
+			case FLOTANTE:
+				return entrada.getFloat();
+
+			case DOBLE:
+				return entrada.getDouble();
+
+			case TEXTO:
+				return leerTexto(entrada);
+
+			case DECIMAL:
+				return new BigDecimal(leerTexto(entrada));
+
+			case ENTERO_GRANDE:
+				return new BigInteger(leerTexto(entrada));
+
+			case ENUMERADO:
+				return leerEnumerado(entrada);
+
+			case FECHA:
+				return leerClase(entrada, Date.class).getConstructor(long.class).newInstance(entrada.getLong());
+
+			case TIEMPO:
+				return leerTiempo(entrada);
+
+			case BYTES:
+				byte[] bytes = new byte[entrada.getInt()];
+				entrada.get(bytes);
+				return bytes;
+
+			case LISTA:
+			case CONJUNTO:
+				return leerColeccion(entrada, tipo, leidas);
+
+			case ENTIDAD:
+				return leerEntidad(entrada, leidas);
+
+			case REFERENCIA:
+				return leidas.get(entrada.getInt());
+
+			default:
+				throw new IOException("Tipo de valor desconocido en la instantánea: " + tipo);
+		}
+	}
+
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object leerEnumerado(ByteBuffer entrada) throws ReflectiveOperationException {
+
+		Class<?> clase = leerClase(entrada, Enum.class);
+
+		return Enum.valueOf((Class) clase, leerTexto(entrada));
+	}
+
+
+	private static Object leerTiempo(ByteBuffer entrada) throws ReflectiveOperationException {
+
+		String nombreClase = leerTexto(entrada);
+
+		if (!nombreClase.startsWith("java.time.")) {
+
+			throw new IllegalArgumentException("Tipo temporal no soportado: " + nombreClase);
+		}
+
+		return Class.forName(nombreClase).getMethod("parse", CharSequence.class).invoke(null, leerTexto(entrada));
+	}
+
+
+	private static Collection<Object> leerColeccion(ByteBuffer entrada, byte tipo, List<Object> leidas) throws ReflectiveOperationException, IOException {
+
+		int tamanio = entrada.getInt();
+
+		Collection<Object> coleccion = tipo == CONJUNTO ? new LinkedHashSet<>() : new ArrayList<>(tamanio);
+
+		for (int i = 0; i < tamanio; i++) {
+
+			coleccion.add(leerValor(entrada, leidas));
+		}
+
+		return coleccion;
+	}
+
+
+	private static Object leerEntidad(ByteBuffer entrada, List<Object> leidas) throws ReflectiveOperationException, IOException {
+
+		String nombreClase = leerTexto(entrada);
+
+		Class<?> clase = ClassUtils.forName(nombreClase, ArchivoCatalogos.class.getClassLoader());
+
+		//Solo se instancian entidades, nunca una clase cualquiera indicada por el archivo
+		if (!clase.isAnnotationPresent(Entity.class) && !clase.isAnnotationPresent(Embeddable.class)) {
+
+			throw new IllegalArgumentException("La clase " + nombreClase + " no es una entidad");
+		}
+
+		Constructor<?> constructor = clase.getDeclaredConstructor();
+
+		constructor.setAccessible(true);
+
+		Object entidad = constructor.newInstance();
+
+		leidas.add(entidad); //Antes de leer los atributos, que pueden hacer referencia a ella
+
+		Map<String, Field> atributos = ATRIBUTOS_POR_NOMBRE.get(clase);
+
+		int numeroAtributos = entrada.getInt();
+
+		for (int i = 0; i < numeroAtributos; i++) {
+
+			Field atributo = atributos.get(leerTexto(entrada));
+
+			Object valor = leerValor(entrada, leidas);
+
+			//Los atributos que ya no existen se descartan y los primitivos sin valor conservan el suyo por defecto
+			if (atributo != null && (valor != null || !atributo.getType().isPrimitive())) {
+
+				atributo.set(entidad, valor);
+			}
+		}
+
+		return entidad;
+	}
+
+
+	private static Class<?> leerClase(ByteBuffer entrada, Class<?> esperada) throws ClassNotFoundException {
+
+		String nombreClase = leerTexto(entrada);
+
+		Class<?> clase = ClassUtils.forName(nombreClase, ArchivoCatalogos.class.getClassLoader());
+
+		if (!esperada.isAssignableFrom(clase)) {
+
+			throw new IllegalArgumentException("La clase " + nombreClase + " no es del tipo " + esperada.getName());
+		}
+
+		return clase;
+	}
+
+
+	private static void escribirTexto(DataOutputStream salida, String texto) throws IOException {
+
+		byte[] bytes = texto.getBytes(StandardCharsets.UTF_8);
+
+		salida.writeInt(bytes.length);
+		salida.write(bytes);
+	}
+
+
+	private static String leerTexto(ByteBuffer entrada) {
+
+		byte[] bytes = new byte[entrada.getInt()];
+
+		entrada.get(bytes);
+
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+
+	/**
+	 * Contenido leído de una instantánea
+	 */
+	static final class Contenido {
+
+		private final long generada;
+
+		private final long crc;
+
+		private final Map<String, List<Object>> catalogos;
+
+		Contenido(long generada, long crc, Map<String, List<Object>> catalogos) {
+
+			this.generada = generada;
+			this.crc = crc;
+			this.catalogos = Collections.unmodifiableMap(catalogos);
+		}
+
+
+		/**
+		 * @return Momento en que se escribió la instantánea, en milisegundos desde 1970
+		 */
+		long getGenerada() {
+
+			return generada;
+		}
+
+
+		long getCrc() {
+
+			return crc;
+		}
+
+
+		/**
+		 * @return Las entidades de cada catálogo por nombre del catálogo
+		 */
+		Map<String, List<Object>> getCatalogos() {
+
+			return catalogos;
+		}
+	}
+}
@@ -0,0 +1,445 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.text.Normalizer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Trie de prefijos sobre las palabras de los nombres y apellidos de los Usuarios, sin distinguir mayúsculas ni
+ * acentos. Cada nodo guarda sus hijos en arrays ordenados en lugar de mapas para ocupar lo mínimo.
+ * Admite lecturas concurrentes; las altas, modificaciones y bajas toman el bloqueo de escritura.
+ */
+class AutocompletadoUsuarios {
+
+	private static final Pattern MARCAS_DIACRITICAS = Pattern.compile("\\p{M}+");
+
+	private static final Pattern SEPARADORES = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+	private static final int[] SIN_IDS = new int[0];
+
+	private final ReadWriteLock bloqueo = new ReentrantReadWriteLock();
+
+	private final Nodo raiz = new Nodo();
+
+	//Palabras indexadas de cada Usuario, necesarias para poder retirarlo del trie
+	private final Map<Integer, Entrada> entradas = new HashMap<>();
+
+	private volatile boolean construido;
+
+	//Usuarios modificados o dados de baja mientras se construye el trie; null fuera de la construcción
+	private ConjuntoEnteros cambiadosDuranteConstruccion;
+
+	//------------------
+
+	boolean isConstruido() {
+
+		return construido;
+	}
+
+
+	/**
+	 * Método que empieza a anotar los Usuarios que cambian mientras se leen todos de la BBDD, para que una fila
+	 * leída antes de una modificación o una baja no la deshaga al indexarse después
+	 */
+	void iniciarConstruccion() {
+
+		bloqueo.writeLock().lock();
+
+		try {
+
+			cambiadosDuranteConstruccion = new ConjuntoEnteros();
+
+		} finally {
+
+			bloqueo.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Método que marca el trie como construido tras la carga inicial de todos los Usuarios
+	 */
+	void marcarConstruido() {
+
+		bloqueo.writeLock().lock();
+
+		try {
+
+			cambiadosDuranteConstruccion = null;
+
+			construido = true;
+
+		} finally {
+
+			bloqueo.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Método que indexa un Usuario leído durante la carga inicial. Se descarta si el Usuario ha cambiado desde que
+	 * empezó la construcción, porque lo indexado por agregar() o eliminar() es más reciente que lo leído
+	 */
+	void agregarLeido(int idUsuario, String dni, String nombres, String apellidos) {
+
+		Set<String> palabras = palabrasDe(nombres, apellidos);
+
+		bloqueo.writeLock().lock();
+
+		try {
+
+			if (cambiadosDuranteConstruccion == null || !cambiadosDuranteConstruccion.contiene(idUsuario)) {
+
+				indexar(idUsuario, dni, palabras);
+			}
+
+		} finally {
+
+			bloqueo.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Método que indexa un Usuario o, si ya estaba indexado, sustituye sus palabras por las nuevas
+	 * @param idUsuario Recibe el id del Usuario
+	 * @param dni Recibe el DNI del Usuario
+	 * @param nombres Recibe los nombres del Usuario
+	 * @param apellidos Recibe los apellidos del Usuario
+	 */
+	void agregar(int idUsuario, String dni, String nombres, String apellidos) {
+
+		Set<String> palabras = palabrasDe(nombres, apellidos);
+
+		bloqueo.writeLock().lock();
+
+		try {
+
+			anotarCambio(idUsuario);
+
+			indexar(idUsuario, dni, palabras);
+
+		} finally {
+
+			bloqueo.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Método que retira un Usuario del trie
+	 * @param idUsuario Recibe el id del Usuario
+	 */
+	void eliminar(int idUsuario) {
+
+		bloqueo.writeLock().lock();
+
+		try {
+
+			anotarCambio(idUsuario);
+
+			retirar(idUsuario);
+
+		} finally {
+
+			bloqueo.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Método que busca los Usuarios con alguna palabra que comience por cada una de las palabras del texto.
+	 * Se devuelven primero los Usuarios cuya palabra coincide con menos caracteres pendientes.
+	 * @param texto Recibe el texto tecleado
+	 * @param maximo Recibe el número máximo de sugerencias
+	 * @return Devuelve las sugerencias encontradas
+	 */
+	List<SugerenciaUsuario> buscar(String texto, int maximo) {
+
+		List<String> prefijos = palabras(texto);
+
+		if (prefijos.isEmpty() || maximo < 1) {
+
+			return Collections.emptyList();
+		}
+
+		//Recorremos el trie con el prefijo más largo, el más selectivo, y filtramos con los demás
+		String principal = Collections.max(prefijos, (a, b) -> Integer.compare(a.length(), b.length()));
+
+		List<SugerenciaUsuario> sugerencias = new ArrayList<>(Math.min(maximo, 64));
+
+		bloqueo.readLock().lock();
+
+		try {
+
+			Nodo nodo = raiz.buscar(principal);
+
+			if (nodo == null) {
+
+				return sugerencias;
+			}
+
+			Set<Integer> vistos = new LinkedHashSet<>();
+
+			ArrayDeque<Nodo> pendientes = new ArrayDeque<>();
+			pendientes.add(nodo);
+
+			while (!pendientes.isEmpty() && sugerencias.size() < maximo) {
+
+				Nodo actual = pendientes.poll();
+
+				for (int i = 0; i < actual.numeroIds && sugerencias.size() < maximo; i++) {
+
+					Entrada entrada = entradas.get(actual.ids[i]);
+
+					if (vistos.add(actual.ids[i]) && entrada.contieneTodos(prefijos)) {
+
+						sugerencias.add(entrada.sugerencia);
+					}
+				}
+
+				for (int i = 0; i < actual.numeroHijos; i++) {
+
+					pendientes.add(actual.hijos[i]);
+				}
+			}
+
+		} finally {
+
+			bloqueo.readLock().unlock();
+		}
+
+		return sugerencias;
+	}
+
+
+	private void indexar(int idUsuario, String dni, Set<String> palabras) {
+
+		retirar(idUsuario);
+
+		Entrada entrada = new Entrada(new SugerenciaUsuario(idUsuario, dni), palabras.toArray(new String[0]));
+
+		for (String palabra : entrada.palabras) {
+
+			raiz.insertar(palabra, idUsuario);
+		}
+
+		entradas.put(idUsuario, entrada);
+	}
+
+
+	private void anotarCambio(int idUsuario) {
+
+		if (cambiadosDuranteConstruccion != null) {
+
+			cambiadosDuranteConstruccion.agregar(idUsuario);
+		}
+	}
+
+
+	private static Set<String> palabrasDe(String nombres, String apellidos) {
+
+		Set<String> palabras = new LinkedHashSet<>();
+
+		palabras.addAll(palabras(nombres));
+		palabras.addAll(palabras(apellidos));
+
+		return palabras;
+	}
+
+
+	private void retirar(int idUsuario) {
+
+		Entrada anterior = entradas.remove(idUsuario);
+
+		if (anterior != null) {
+
+			for (String palabra : anterior.palabras) {
+
+				Nodo nodo = raiz.buscar(palabra);
+
+				if (nodo != null) {
+
+					nodo.quitarId(idUsuario);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Método que normaliza un texto y lo divide en palabras en minúsculas y sin acentos
+	 * @param texto Recibe el texto a normalizar, puede ser null
+	 * @return Devuelve la lista de palabras
+	 */
+	static List<String> palabras(String texto) {
+
+		if (texto == null) {
+
+			return Collections.emptyList();
+		}
+
+		String normalizado = MARCAS_DIACRITICAS.matcher(Normalizer.normalize(texto, Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.ROOT);
+
+		List<String> palabras = new ArrayList<>();
+
+		for (String palabra : SEPARADORES.split(normalizado)) {
+
+			if (!palabra.isEmpty()) {
+
+				palabras.add(palabra);
+			}
+		}
+
+		return palabras;
+	}
+
+
+	private static final class Entrada {
+
+		private final SugerenciaUsuario sugerencia;
+
+		private final String[] palabras;
+
+		Entrada(SugerenciaUsuario sugerencia, String[] palabras) {
+
+			this.sugerencia = sugerencia;
+			this.palabras = palabras;
+		}
+
+		boolean contieneTodos(List<String> prefijos) {
+
+			for (String prefijo : prefijos) {
+
+				boolean encontrado = false;
+
+				for (String palabra : palabras) {
+
+					if (palabra.startsWith(prefijo)) {
+
+						encontrado = true;
+
+						break;
+					}
+				}
+
+				if (!encontrado) {
+
+					return false;
+				}
+			}
+
+			return true;
+		}
+	}
+
+
+	private static final class Nodo {
+
+		private char[] claves = new char[0];
+
+		private Nodo[] hijos = new Nodo[0];
+
+		private int numeroHijos;
+
+		private int[] ids = SIN_IDS;
+
+		private int numeroIds;
+
+		void insertar(String palabra, int idUsuario) {
+
+			Nodo nodo = this;
+
+			for (int i = 0; i < palabra.length(); i++) {
+
+				nodo = nodo.hijoOCrear(palabra.charAt(i));
+			}
+
+			nodo.agregarId(idUsuario);
+		}
+
+		Nodo buscar(String prefijo) {
+
+			Nodo nodo = this;
+
+			for (int i = 0; i < prefijo.length() && nodo != null; i++) {
+
+				int posicion = Arrays.binarySearch(nodo.claves, 0, nodo.numeroHijos, prefijo.charAt(i));
+
+				nodo = posicion >= 0 ? nodo.hijos[posicion] : null;
+			}
+
+			return nodo;
+		}
+
+		private Nodo hijoOCrear(char clave) {
+
+			int posicion = Arrays.binarySearch(claves, 0, numeroHijos, clave);
+
+			if (posicion >= 0) {
+
+				return hijos[posicion];
+			}
+
+			int insercion = -posicion - 1;
+
+			if (numeroHijos == claves.length) {
+
+				int capacidad = Math.max(2, numeroHijos * 2);
+
+				claves = Arrays.copyOf(claves, capacidad);
+				hijos = Arrays.copyOf(hijos, capacidad);
+			}
+
+			System.arraycopy(claves, insercion, claves, insercion + 1, numeroHijos - insercion);
+			System.arraycopy(hijos, insercion, hijos, insercion + 1, numeroHijos - insercion);
+
+			Nodo hijo = new Nodo();
+
+			claves[insercion] = clave;
+			hijos[insercion] = hijo;
+
+			numeroHijos++;
+
+			return hijo;
+		}
+
+		private void agregarId(int idUsuario) {
+
+			if (numeroIds == ids.length) {
+
+				ids = Arrays.copyOf(ids, Math.max(2, numeroIds * 2));
+			}
+
+			ids[numeroIds++] = idUsuario;
+		}
+
+		private void quitarId(int idUsuario) {
+
+			for (int i = 0; i < numeroIds; i++) {
+
+				if (ids[i] == idUsuario) {
+
+					ids[i] = ids[--numeroIds];
+
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,668 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Caché acotada con política de admisión por frecuencia (W-TinyLFU). Las entradas nuevas entran en una ventana
+ * LRU pequeña; al salir de ella solo pasan a la zona principal (LRU segmentada en periodo de prueba y protegida)
+ * si se han pedido más veces que la entrada que tendrían que expulsar. La frecuencia se estima con un sketch
+ * count-min de contadores de 4 bits que se reducen a la mitad periódicamente para olvidar el pasado. Así un
+ * recorrido masivo de claves que se piden una sola vez no desplaza a las claves habituales.
+ * Cada entrada caduca pasado su tiempo de vida. Es segura para uso concurrente: obtener() no toma ningún bloqueo y
+ * solo anota la clave en uno de varios buffers repartidos por hilo; esos accesos se aplican al sketch y al orden
+ * de los segmentos en lote, bajo un único bloqueo que también serializa las escrituras, cuando un buffer se llena
+ * o en la siguiente escritura. Si un buffer está lleno y otro hilo tiene el bloqueo, el acceso se descarta, lo que
+ * solo resta precisión a la política de admisión. Las operaciones son de coste constante, salvo invalidarSi(),
+ * que recorre todas las entradas.
+ * Cada invalidación incrementa la generación de la caché. Quien lee de la BBDD para guardar el resultado debe
+ * anotar getGeneracion() antes de la consulta y guardarlo con guardarSiGeneracion(), de modo que no se guarde un
+ * valor leído antes de una invalidación que llegó mientras tanto.
+ * @param <K> Tipo de la clave
+ * @param <V> Tipo del valor
+ */
+public class CacheFrecuencia<K, V> {
+
+	private static final int VENTANA = 0;
+
+	private static final int PRUEBA = 1;
+
+	private static final int PROTEGIDA = 2;
+
+	/** Buffers de accesos, potencia de dos para repartir los hilos con una máscara */
+	private static final int BUFFERS = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1) << 1);
+
+	private final int capacidadVentana;
+
+	private final int capacidadPrincipal;
+
+	private final int capacidadProtegida;
+
+	private final long nanosVida;
+
+	//Se lee sin bloqueo desde obtener(); solo se modifica con el bloqueo tomado
+	private final Map<K, Nodo<V>> nodos = new ConcurrentHashMap<>();
+
+	//Orden de acceso: la primera entrada de cada segmento es la menos usada recientemente
+	private final LinkedHashMap<K, Nodo<V>> ventana = new LinkedHashMap<>(16, 0.75f, true);
+
+	private final LinkedHashMap<K, Nodo<V>> prueba = new LinkedHashMap<>(16, 0.75f, true);
+
+	private final LinkedHashMap<K, Nodo<V>> protegida = new LinkedHashMap<>(16, 0.75f, true);
+
+	private final Sketch sketch;
+
+	private final ReentrantLock bloqueo = new ReentrantLock();
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final BufferAccesos<K>[] buffers = new BufferAccesos[BUFFERS];
+
+	private final Consumer<K> aplicarAcceso = this::aplicarAcceso;
+
+	private final LongAdder aciertos = new LongAdder();
+
+	private final LongAdder fallos = new LongAdder();
+
+	private long expulsiones;
+
+	private long generacion;
+
+	//------------------
+
+	/**
+	 * @param capacidad Número máximo de entradas, mayor que cero
+	 * @param segundosVida Tiempo durante el que es válida cada entrada
+	 */
+	public CacheFrecuencia(int capacidad, long segundosVida) {
+
+		if (capacidad <= 0) {
+
+			throw new IllegalArgumentException("La capacidad debe ser mayor que cero: " + capacidad);
+		}
+
+		//1% para la ventana y, de la zona principal, 80% protegida, como en la propuesta original
+		this.capacidadVentana = Math.max(1, capacidad / 100);
+		this.capacidadPrincipal = Math.max(1, capacidad - capacidadVentana);
+		this.capacidadProtegida = Math.max(1, capacidadPrincipal * 8 / 10);
+		this.nanosVida = TimeUnit.SECONDS.toNanos(segundosVida);
+		this.sketch = new Sketch(capacidad);
+
+		for (int i = 0; i < buffers.length; i++) {
+
+			buffers[i] = new BufferAccesos<>();
+		}
+	}
+
+
+	/**
+	 * Método que obtiene el valor de una clave
+	 * @param clave Recibe la clave
+	 * @return Devuelve el valor o null si no está o ha caducado
+	 */
+	public V obtener(K clave) {
+
+		Nodo<V> nodo = nodos.get(clave);
+
+		V valor = null;
+
+		//Las caducadas se retiran al aplicar el acceso
+		if (nodo != null && nodo.caducidad - System.nanoTime() > 0) {
+
+			valor = nodo.valor;
+		}
+
+		if (valor == null) {
+
+			fallos.increment();
+
+		}else {
+
+			aciertos.increment();
+		}
+
+		anotarAcceso(clave);
+
+		return valor;
+	}
+
+
+	/**
+	 * Método que guarda el valor de una clave, sustituyendo el anterior si lo había
+	 * @param clave Recibe la clave
+	 * @param valor Recibe el valor
+	 */
+	public void guardar(K clave, V valor) {
+
+		bloqueo.lock();
+
+		try {
+
+			aplicarAccesos();
+
+			guardarBloqueado(clave, valor);
+
+		} finally {
+
+			bloqueo.unlock();
+		}
+	}
+
+
+	/**
+	 * Método que guarda el valor de una clave solo si no ha habido ninguna invalidación desde que se obtuvo la
+	 * generación indicada
+	 * @param clave Recibe la clave
+	 * @param valor Recibe el valor
+	 * @param generacionLeida Recibe la generación obtenida antes de leer el valor
+	 * @return Devuelve true si se ha guardado
+	 */
+	public boolean guardarSiGeneracion(K clave, V valor, long generacionLeida) {
+
+		bloqueo.lock();
+
+		try {
+
+			if (generacion != generacionLeida) {
+
+				return false; //El valor puede ser anterior a la invalidación
+			}
+
+			aplicarAccesos();
+
+			guardarBloqueado(clave, valor);
+
+			return true;
+
+		} finally {
+
+			bloqueo.unlock();
+		}
+	}
+
+
+	private void guardarBloqueado(K clave, V valor) {
+
+		long caducidad = System.nanoTime() + nanosVida;
+
+		Nodo<V> nodo = nodos.get(clave);
+
+		if (nodo != null) {
+
+			nodo.valor = valor;
+			nodo.caducidad = caducidad;
+
+			segmento(nodo.segmento).get(clave);
+
+			return;
+		}
+
+		nodo = new Nodo<>(valor, caducidad);
+
+		nodos.put(clave, nodo);
+		ventana.put(clave, nodo);
+
+		if (ventana.size() > capacidadVentana) {
+
+			admitir(extraerPrimera(ventana));
+		}
+	}
+
+
+	/**
+	 * Método que retira una clave de la caché
+	 * @param clave Recibe la clave
+	 */
+	public void invalidar(K clave) {
+
+		bloqueo.lock();
+
+		try {
+
+			generacion++;
+
+			Nodo<V> nodo = nodos.get(clave);
+
+			if (nodo != null) {
+
+				eliminarNodo(clave, nodo);
+			}
+
+		} finally {
+
+			bloqueo.unlock();
+		}
+	}
+
+
+	/**
+	 * Método que retira de la caché todas las entradas cuyo valor cumple una condición. Recorre todas las entradas
+	 * @param condicion Recibe la condición
+	 * @return Devuelve el número de entradas retiradas
+	 */
+	public int invalidarSi(Predicate<? super V> condicion) {
+
+		bloqueo.lock();
+
+		try {
+
+			generacion++;
+
+			int retiradas = 0;
+
+			Iterator<Map.Entry<K, Nodo<V>>> iterador = nodos.entrySet().iterator();
+
+			while (iterador.hasNext()) {
+
+				Map.Entry<K, Nodo<V>> entrada = iterador.next();
+
+				if (condicion.test(entrada.getValue().valor)) {
+
+					iterador.remove();
+
+					segmento(entrada.getValue().segmento).remove(entrada.getKey());
+
+					retiradas++;
+				}
+			}
+
+			return retiradas;
+
+		} finally {
+
+			bloqueo.unlock();
+		}
+	}
+
+
+	/**
+	 * @return Número de invalidaciones hechas hasta ahora. Ver guardarSiGeneracion()
+	 */
+	public long getGeneracion() {
+
+		bloqueo.lock();
+
+		try {
+
+			return generacion;
+
+		} finally {
+
+			bloqueo.unlock();
+		}
+	}
+
+
+	public int getTamanio() {
+
+		return nodos.size();
+	}
+
+
+	public long getAciertos() {
+
+		return aciertos.sum();
+	}
+
+
+	public long getFallos() {
+
+		return fallos.sum();
+	}
+
+
+	/**
+	 * @return Número de entradas descartadas por falta de espacio, ya sea al expulsarlas o al no admitirlas
+	 */
+	public long getExpulsiones() {
+
+		bloqueo.lock();
+
+		try {
+
+			return expulsiones;
+
+		} finally {
+
+			bloqueo.unlock();
+		}
+	}
+
+
+	/**
+	 * @return Proporción de lecturas resueltas por la caché, de 0 a 1
+	 */
+	public double getRatioAciertos() {
+
+		long acertadas = aciertos.sum();
+		long total = acertadas + fallos.sum();
+
+		return total == 0 ? 0 : (double) acertadas / total;
+	}
+
+
+	private void anotarAcceso(K clave) {
+
+		BufferAccesos<K> buffer = buffers[(int) Thread.currentThread().getId() & (BUFFERS - 1)];
+
+		//Con el buffer a medio llenar se intenta aplicar, sin esperar si otro hilo tiene el bloqueo
+		if ((!buffer.anotar(clave) || buffer.isMedioLleno()) && bloqueo.tryLock()) {
+
+			try {
+
+				aplicarAccesos();
+
+			} finally {
+
+				bloqueo.unlock();
+			}
+		}
+	}
+
+
+	private void aplicarAccesos() {
+
+		for (BufferAccesos<K> buffer : buffers) {
+
+			buffer.vaciar(aplicarAcceso);
+		}
+	}
+
+
+	/**
+	 * Método que aplica un acceso anotado por obtener(): cuenta la clave en el sketch y, si sigue en la caché,
+	 * actualiza su segmento, o la retira si ha caducado
+	 */
+	private void aplicarAcceso(K clave) {
+
+		sketch.incrementar(clave.hashCode());
+
+		Nodo<V> nodo = nodos.get(clave);
+
+		if (nodo == null) {
+
+			return;
+		}
+
+		if (nodo.caducidad - System.nanoTime() <= 0) {
+
+			eliminarNodo(clave, nodo);
+
+			return;
+		}
+
+		if (nodo.segmento == PRUEBA) {
+
+			//Segundo acceso en la zona principal: pasa a la zona protegida
+			prueba.remove(clave);
+
+			nodo.segmento = PROTEGIDA;
+			protegida.put(clave, nodo);
+
+			if (protegida.size() > capacidadProtegida) {
+
+				Map.Entry<K, Nodo<V>> degradada = extraerPrimera(protegida);
+
+				degradada.getValue().segmento = PRUEBA;
+				prueba.put(degradada.getKey(), degradada.getValue());
+			}
+
+		}else {
+
+			segmento(nodo.segmento).get(clave); //Solo actualiza el orden de acceso
+		}
+	}
+
+
+	/**
+	 * Método que decide si la entrada que sale de la ventana entra en la zona principal
+	 */
+	private void admitir(Map.Entry<K, Nodo<V>> candidata) {
+
+		Nodo<V> nodo = candidata.getValue();
+
+		nodo.segmento = PRUEBA;
+
+		if (prueba.size() + protegida.size() < capacidadPrincipal) {
+
+			prueba.put(candidata.getKey(), nodo);
+
+			return;
+		}
+
+		LinkedHashMap<K, Nodo<V>> origenVictima = prueba.isEmpty() ? protegida : prueba;
+
+		K victima = origenVictima.keySet().iterator().next();
+
+		expulsiones++;
+
+		if (sketch.frecuencia(candidata.getKey().hashCode()) > sketch.frecuencia(victima.hashCode())) {
+
+			origenVictima.remove(victima);
+			nodos.remove(victima);
+
+			prueba.put(candidata.getKey(), nodo);
+
+		}else {
+
+			nodos.remove(candidata.getKey()); //No se admite
+		}
+	}
+
+
+	private void eliminarNodo(K clave, Nodo<V> nodo) {
+
+		nodos.remove(clave);
+
+		segmento(nodo.segmento).remove(clave);
+	}
+
+
+	private LinkedHashMap<K, Nodo<V>> segmento(int segmento) {
+
+		return segmento == VENTANA ? ventana : segmento == PRUEBA ? prueba : protegida;
+	}
+
+
+	private static <K, N> Map.Entry<K, N> extraerPrimera(LinkedHashMap<K, N> segmento) {
+
+		Iterator<Map.Entry<K, N>> iterador = segmento.entrySet().iterator();
+
+		Map.Entry<K, N> primera = iterador.next();
+
+		Map.Entry<K, N> copia = new AbstractMap.SimpleImmutableEntry<>(primera);
+
+		iterador.remove();
+
+		return copia;
+	}
+
+
+	private static final class Nodo<V> {
+
+		//Se leen sin bloqueo desde obtener()
+		private volatile V valor;
+
+		private volatile long caducidad;
+
+		private int segmento = VENTANA;
+
+		Nodo(V valor, long caducidad) {
+
+			this.valor = valor;
+			this.caducidad = caducidad;
+		}
+	}
+
+
+	/**
+	 * Buffer circular de claves leídas. Lo escriben varios hilos sin bloqueo y solo se vacía con el bloqueo de la
+	 * caché tomado. Si el buffer está lleno o la posición la ha ocupado otro hilo a la vez, el acceso se pierde
+	 */
+	private static final class BufferAccesos<K> {
+
+		private static final int TAMANIO = 64;
+
+		private final AtomicReferenceArray<K> claves = new AtomicReferenceArray<>(TAMANIO);
+
+		private final AtomicLong escritura = new AtomicLong();
+
+		private volatile long lectura;
+
+		boolean anotar(K clave) {
+
+			long posicion = escritura.get();
+
+			if (posicion - lectura >= TAMANIO) {
+
+				return false;
+			}
+
+			if (escritura.compareAndSet(posicion, posicion + 1)) {
+
+				claves.lazySet((int) posicion & (TAMANIO - 1), clave);
+			}
+
+			return true;
+		}
+
+		boolean isMedioLleno() {
+
+			return escritura.get() - lectura >= TAMANIO / 2;
+		}
+
+		void vaciar(Consumer<K> consumidor) {
+
+			long fin = escritura.get();
+
+			long posicion = lectura;
+
+			for (; posicion < fin; posicion++) {
+
+				int indice = (int) posicion & (TAMANIO - 1);
+
+				K clave = claves.get(indice);
+
+				if (clave == null) {
+
+					break; //Reservada pero aún no escrita; se aplicará en el siguiente vaciado
+				}
+
+				claves.lazySet(indice, null);
+
+				consumidor.accept(clave);
+			}
+
+			lectura = posicion;
+		}
+	}
+
+
+	/**
+	 * Sketch count-min con cuatro filas de contadores de 4 bits, dos por byte
+	 */
+	private static final class Sketch {
+
+		private static final int[] SEMILLAS = { 0x97CB3127, 0xB492B66F, 0x9E3779B9, 0x7FEB352D };
+
+		private final byte[][] filas = new byte[SEMILLAS.length][];
+
+		private final int mascara;
+
+		private final int muestrasHastaReducir;
+
+		private int muestras;
+
+		Sketch(int capacidad) {
+
+			int anchura = Integer.highestOneBit(Math.max(16, capacidad - 1) << 1); //Potencia de 2 >= capacidad
+
+			for (int i = 0; i < filas.length; i++) {
+
+				filas[i] = new byte[anchura / 2];
+			}
+
+			this.mascara = anchura - 1;
+			this.muestrasHastaReducir = 10 * capacidad;
+		}
+
+
+		void incrementar(int hash) {
+
+			for (int i = 0; i < filas.length; i++) {
+
+				int posicion = posicion(hash, i);
+
+				if (leer(filas[i], posicion) < 15) {
+
+					filas[i][posicion >>> 1] += (posicion & 1) == 0 ? 1 : 16;
+				}
+			}
+
+			if (++muestras >= muestrasHastaReducir) {
+
+				reducir();
+			}
+		}
+
+
+		int frecuencia(int hash) {
+
+			int minimo = 15;
+
+			for (int i = 0; i < filas.length; i++) {
+
+				minimo = Math.min(minimo, leer(filas[i], posicion(hash, i)));
+			}
+
+			return minimo;
+		}
+
+
+		/**
+		 * Método que divide todos los contadores entre dos para que las frecuencias antiguas pierdan peso
+		 */
+		private void reducir() {
+
+			for (byte[] fila : filas) {
+
+				for (int j = 0; j < fila.length; j++) {
+
+					//Cada medio byte se desplaza por separado para que no se mezclen los dos contadores
+					fila[j] = (byte) (((fila[j] & 0xF0) >>> 1 & 0xF0) | ((fila[j] & 0x0F) >>> 1));
+				}
+			}
+
+			muestras /= 2;
+		}
+
+
+		private int posicion(int hash, int fila) {
+
+			int h = hash * SEMILLAS[fila];
+
+			return (h ^ (h >>> 16)) & mascara;
+		}
+
+
+		private static int leer(byte[] fila, int posicion) {
+
+			int par = fila[posicion >>> 1] & 0xFF;
+
+			return (posicion & 1) == 0 ? par & 0x0F : par >>> 4;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caché acotada de ids que se han buscado recientemente y no existían, para que las lecturas repetidas de un id
+ * inexistente no vuelvan a consultar la BBDD. Solo sirve a lecturas: como no conoce las altas hechas desde otros
+ * nodos, un id puede darse por inexistente durante su tiempo de vida, y por eso las altas y las bajas comprueban
+ * la existencia directamente en la BBDD. Cada entrada caduca pasado su tiempo de vida y, si se supera la
+ * capacidad, se descarta la más antigua. El Gestor correspondiente debe invalidar el id en cada alta local.
+ */
+public class CacheNegativa {
+
+	private final String entidad;
+
+	private final int capacidad;
+
+	private final long nanosVida;
+
+	//Orden de inserción: la primera entrada es siempre la más antigua
+	private final LinkedHashMap<Integer, Long> caducidades;
+
+	private final LongAdder aciertos = new LongAdder();
+
+	private final LongAdder fallos = new LongAdder();
+
+	//------------------
+
+	/**
+	 * @param entidad Nombre de la entidad, utilizado en métricas
+	 * @param capacidad Número máximo de ids recordados
+	 * @param segundosVida Tiempo durante el que se recuerda cada id
+	 */
+	public CacheNegativa(String entidad, int capacidad, long segundosVida) {
+
+		this.entidad = entidad;
+		this.capacidad = capacidad;
+		this.nanosVida = TimeUnit.SECONDS.toNanos(segundosVida);
+		this.caducidades = new LinkedHashMap<Integer, Long>(Math.min(capacidad, 1024) * 2) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Long> masAntigua) {
+
+				return size() > CacheNegativa.this.capacidad;
+			}
+		};
+	}
+
+
+	/**
+	 * Método que consulta si un id se sabe inexistente
+	 * @param id Recibe el id buscado
+	 * @return Devuelve true si el id se buscó hace poco y no existía, false si hay que consultar la BBDD
+	 */
+	public synchronized boolean isAusente(int id) {
+
+		Long caducidad = caducidades.get(id);
+
+		if (caducidad != null && caducidad - System.nanoTime() > 0) {
+
+			aciertos.increment();
+
+			return true;
+		}
+
+		if (caducidad != null) {
+
+			caducidades.remove(id); //Caducada
+		}
+
+		fallos.increment();
+
+		return false;
+	}
+
+
+	/**
+	 * Método que recuerda que un id no existe en la BBDD
+	 * @param id Recibe el id buscado
+	 */
+	public synchronized void registrarAusente(int id) {
+
+		//Se reinserta para que pase a ser la entrada más reciente
+		caducidades.remove(id);
+		caducidades.put(id, System.nanoTime() + nanosVida);
+	}
+
+
+	/**
+	 * Método que olvida un id, porque se acaba de dar de alta
+	 * @param id Recibe el id
+	 */
+	public synchronized void invalidar(int id) {
+
+		caducidades.remove(id);
+	}
+
+
+	public String getEntidad() {
+
+		return entidad;
+	}
+
+
+	public long getAciertos() {
+
+		return aciertos.sum();
+	}
+
+
+	public long getFallos() {
+
+		return fallos.sum();
+	}
+
+
+	/**
+	 * @return Proporción de comprobaciones resueltas sin consultar la BBDD, de 0 a 1
+	 */
+	public double getRatioAciertos() {
+
+		long total = getAciertos() + getFallos();
+
+		return total == 0 ? 0 : (double) getAciertos() / total;
+	}
+}
@@ -0,0 +1,255 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Catálogo en memoria de una tabla de referencia pequeña (Cargo, Rol, Permiso...). Mantiene la tabla completa
+ * como una instantánea inmutable que se lee sin bloqueos y que se reconstruye y sustituye de forma atómica
+ * cuando el Gestor correspondiente modifica datos. Las entidades de la instantánea están desvinculadas y son
+ * compartidas por todos los hilos, por lo que obtener() y listar() devuelven copias que el llamante puede
+ * modificar sin alterar el catálogo.
+ * Los cambios hechos desde otros nodos solo llegan con la recarga periódica de RecargaCatalogos, así que el
+ * catálogo sirve para lecturas: las escrituras deben comprobar la existencia de una entidad en la BBDD.
+ * @param <T> Tipo de la entidad de referencia
+ */
+public class CatalogoReferencia<T> {
+
+	private final String nombre;
+
+	private final Supplier<List<T>> cargador;
+
+	private final ToIntFunction<T> extractorId;
+
+	private final AtomicReference<Instantanea<T>> instantanea = new AtomicReference<>();
+
+	private final LongAdder aciertos = new LongAdder();
+
+	private final LongAdder fallos = new LongAdder();
+
+	private final LongAdder recargas = new LongAdder();
+
+	private final List<Runnable> oyentesRecarga = new CopyOnWriteArrayList<>();
+
+	//------------------
+
+	/**
+	 * @param nombre Nombre del catálogo, utilizado en trazas y métricas
+	 * @param cargador Recupera la tabla completa desde la BBDD
+	 * @param extractorId Obtiene el id de cada entidad
+	 */
+	public CatalogoReferencia(String nombre, Supplier<List<T>> cargador, ToIntFunction<T> extractorId) {
+
+		this.nombre = nombre;
+		this.cargador = cargador;
+		this.extractorId = extractorId;
+	}
+
+
+	/**
+	 * Método que obtiene una entidad del catálogo
+	 * @param id Recibe el id de la entidad
+	 * @return Devuelve una copia de la entidad o null si no existe
+	 */
+	public T obtener(int id) {
+
+		return CopiaEntidades.copiar(instantanea().porId.get(id));
+	}
+
+
+	/**
+	 * Método que verifica si existe una entidad en el catálogo
+	 * @param id Recibe el id de la entidad
+	 * @return Devuelve true si existe y false sino
+	 */
+	public boolean contiene(int id) {
+
+		return instantanea().porId.containsKey(id);
+	}
+
+
+	/**
+	 * Método que lista todas las entidades del catálogo
+	 * @return Devuelve una lista inmutable con copias de todas las entidades
+	 */
+	public List<T> listar() {
+
+		//Se copia la lista entera de una vez para que las entidades a las que hacen referencia varias se copien una sola vez
+		return Collections.unmodifiableList(CopiaEntidades.copiar(instantanea().todos));
+	}
+
+
+	/**
+	 * Método que lista las entidades compartidas de la instantánea, sin copiarlas, para estructuras internas
+	 * que solo las leen. Cada recarga publica una lista nueva, así que basta con comparar referencias para
+	 * saber si ha cambiado
+	 * @return Devuelve la lista inmutable de la instantánea actual
+	 */
+	List<T> listarCompartidas() {
+
+		return instantanea().todos;
+	}
+
+
+	/**
+	 * Método que programa la reconstrucción del catálogo. Si hay una transacción en curso se reconstruye al
+	 * confirmarse, de forma que nunca se publiquen datos que luego se deshagan; si no, se reconstruye en el acto
+	 */
+	public void recargarTrasCommit() {
+
+		TrasCommit.ejecutar(this::recargar);
+	}
+
+
+	/**
+	 * Método que reconstruye la instantánea desde la BBDD y la sustituye de forma atómica. Las recargas se
+	 * serializan para que una lectura anterior nunca sobrescriba a una posterior; las lecturas no se bloquean.
+	 */
+	public synchronized void recargar() {
+
+		instantanea.set(construir(FuenteDatosEnrutada.enPrimaria(cargador)));
+
+		recargas.increment();
+
+		for (Runnable oyente : oyentesRecarga) {
+
+			oyente.run();
+		}
+	}
+
+
+	/**
+	 * Método que carga el catálogo con entidades obtenidas de otra fuente, como la instantánea en disco, sin
+	 * consultar la BBDD. Solo tiene efecto si el catálogo aún no se ha cargado, para no sustituir nunca datos
+	 * leídos de la BBDD por otros posiblemente anteriores; la frescura debe comprobarse después con recargar()
+	 * @param entidades Recibe la lista completa de entidades del catálogo
+	 * @return Devuelve true si se utilizaron las entidades y false si el catálogo ya estaba cargado
+	 */
+	public synchronized boolean sembrar(List<T> entidades) {
+
+		if (instantanea.get() != null) {
+
+			return false;
+		}
+
+		instantanea.set(construir(entidades));
+
+		return true;
+	}
+
+
+	/**
+	 * Método que registra una acción a ejecutar cada vez que se publica una nueva instantánea tras una
+	 * modificación, por ejemplo para recalcular estructuras derivadas del catálogo
+	 * @param oyente Recibe la acción a ejecutar
+	 */
+	public void alRecargar(Runnable oyente) {
+
+		oyentesRecarga.add(oyente);
+	}
+
+
+	public String getNombre() {
+
+		return nombre;
+	}
+
+
+	/**
+	 * @return Número de lecturas resueltas con la instantánea en memoria
+	 */
+	public long getAciertos() {
+
+		return aciertos.sum();
+	}
+
+
+	/**
+	 * @return Número de lecturas que encontraron el catálogo sin cargar y tuvieron que ir a la BBDD
+	 */
+	public long getFallos() {
+
+		return fallos.sum();
+	}
+
+
+	/**
+	 * @return Número de reconstrucciones del catálogo tras una modificación o una recarga explícita
+	 */
+	public long getRecargas() {
+
+		return recargas.sum();
+	}
+
+
+	private Instantanea<T> instantanea() {
+
+		Instantanea<T> actual = instantanea.get();
+
+		if (actual != null) {
+
+			aciertos.increment();
+
+			return actual;
+		}
+
+		fallos.increment();
+
+		return cargarInicial();
+	}
+
+
+	private synchronized Instantanea<T> cargarInicial() {
+
+		//Otro hilo puede haberlo cargado mientras esperábamos el monitor
+		Instantanea<T> actual = instantanea.get();
+
+		if (actual == null) {
+
+			actual = construir(FuenteDatosEnrutada.enPrimaria(cargador));
+
+			instantanea.set(actual);
+		}
+
+		return actual;
+	}
+
+
+	private Instantanea<T> construir(List<T> entidades) {
+
+		Map<Integer, T> porId = new HashMap<>(entidades.size() * 2);
+
+		for (T entidad : entidades) {
+
+			porId.put(extractorId.applyAsInt(entidad), entidad);
+		}
+
+		return new Instantanea<>(Collections.unmodifiableMap(porId), Collections.unmodifiableList(new ArrayList<>(entidades)));
+	}
+
+
+	private static final class Instantanea<T> {
+
+		private final Map<Integer, T> porId;
+
+		private final List<T> todos;
+
+		Instantanea(Map<Integer, T> porId, List<T> todos) {
+
+			this.porId = porId;
+			this.todos = todos;
+		}
+	}
+}
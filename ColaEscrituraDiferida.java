@@ -0,0 +1,387 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cola de escritura diferida que agrupa las actualizaciones de una entidad por id. Si un id se actualiza varias
+ * veces antes de volcarse solo se escribe la última versión. Las actualizaciones pendientes se vuelcan en un
+ * único lote cuando se alcanza el tamaño máximo o pasa el intervalo fijado, y también al llamar a flush() o
+ * al cerrar la cola. Si el lote falla se escribe entidad a entidad, para que una entidad que no se puede escribir
+ * no retenga a las demás; las que fallan vuelven a la cola, salvo que ya haya una versión más nueva, y se
+ * descartan tras MAXIMO_INTENTOS volcados fallidos. Si no se puede escribir ninguna se supone que la BBDD no está
+ * disponible y todas vuelven a la cola sin contar el intento. Tras cada volcado que escribe algo se ejecuta una
+ * sola vez trasVolcado, por muchas entidades que se hayan escrito una a una.
+ * Las bajas y las actualizaciones síncronas de la entidad deben llamar a descartar() para que un volcado
+ * posterior no las deshaga.
+ * @param <T> Tipo de la entidad
+ */
+public class ColaEscrituraDiferida<T> implements AutoCloseable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ColaEscrituraDiferida.class);
+
+	/** Volcados fallidos tras los que se descarta la actualización de un id */
+	static final int MAXIMO_INTENTOS = 3;
+
+	private final String nombre;
+
+	private final ToIntFunction<T> extractorId;
+
+	private final Consumer<List<T>> escritor;
+
+	private final Runnable trasVolcado;
+
+	private final int tamanioMaximo;
+
+	private final Map<Integer, T> pendientes = new ConcurrentHashMap<>();
+
+	//Volcados fallidos de cada id desde su última escritura correcta
+	private final Map<Integer, Integer> intentosFallidos = new ConcurrentHashMap<>();
+
+	private final ScheduledExecutorService planificador;
+
+	//Evita encolar varios volcados anticipados mientras uno está pendiente
+	private final AtomicBoolean volcadoSolicitado = new AtomicBoolean();
+
+	private final LongAdder encoladas = new LongAdder();
+
+	private final LongAdder agrupadas = new LongAdder();
+
+	private final LongAdder escritas = new LongAdder();
+
+	private final LongAdder descartadas = new LongAdder();
+
+	//------------------
+
+	/**
+	 * @param nombre Nombre de la cola, utilizado en trazas y en el nombre de su hilo
+	 * @param extractorId Obtiene el id de cada entidad
+	 * @param escritor Persiste un lote de entidades en una transacción; si lanza una excepción no se confirma nada
+	 * @param trasVolcado Se ejecuta tras cada volcado en el que se ha escrito al menos una entidad, o null
+	 * @param tamanioMaximo Número de ids pendientes que provoca un volcado anticipado
+	 * @param intervaloMilisegundos Tiempo máximo que una actualización permanece en la cola
+	 */
+	public ColaEscrituraDiferida(String nombre, ToIntFunction<T> extractorId, Consumer<List<T>> escritor, Runnable trasVolcado,
+			int tamanioMaximo, long intervaloMilisegundos) {
+
+		this.nombre = nombre;
+		this.extractorId = extractorId;
+		this.escritor = escritor;
+		this.trasVolcado = trasVolcado;
+		this.tamanioMaximo = tamanioMaximo;
+
+		planificador = Executors.newSingleThreadScheduledExecutor(tarea -> {
+
+			Thread hilo = new Thread(tarea, "escritura-diferida-" + nombre);
+
+			hilo.setDaemon(true);
+
+			return hilo;
+		});
+
+		planificador.scheduleWithFixedDelay(this::volcarPlanificado, intervaloMilisegundos, intervaloMilisegundos, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Método que encola la actualización de una entidad, sustituyendo a la pendiente del mismo id si la hay
+	 * @param entidad Recibe la entidad con sus nuevos valores; no debe modificarse después
+	 */
+	public void encolar(T entidad) {
+
+		encoladas.increment();
+
+		int id = extractorId.applyAsInt(entidad);
+
+		intentosFallidos.remove(id); //Una versión nueva tiene sus propios intentos
+
+		if (pendientes.put(id, entidad) != null) {
+
+			agrupadas.increment(); //Sustituye a una actualización que ya no llegará a la BBDD
+		}
+
+		if (pendientes.size() >= tamanioMaximo && volcadoSolicitado.compareAndSet(false, true)) {
+
+			planificador.execute(this::volcarPlanificado);
+		}
+	}
+
+
+	/**
+	 * Método que retira la actualización pendiente de un id sin escribirla. Si hay un volcado en curso espera a
+	 * que termine, por lo que debe llamarse antes de modificar o eliminar la entidad en la BBDD
+	 * @param id Recibe el id de la entidad
+	 * @return Devuelve true si había una actualización pendiente
+	 */
+	public synchronized boolean descartar(int id) {
+
+		intentosFallidos.remove(id);
+
+		return pendientes.remove(id) != null;
+	}
+
+
+	/**
+	 * Método que escribe en el hilo llamante todas las actualizaciones pendientes
+	 * @return Devuelve el número de entidades escritas
+	 */
+	public synchronized int flush() {
+
+		volcadoSolicitado.set(false);
+
+		List<T> lote = new ArrayList<>(pendientes.size());
+
+		Iterator<Map.Entry<Integer, T>> iterador = pendientes.entrySet().iterator();
+
+		while (iterador.hasNext()) {
+
+			Map.Entry<Integer, T> entrada = iterador.next();
+
+			//Solo se retira si no ha cambiado; una versión más nueva se queda para el siguiente volcado
+			if (pendientes.remove(entrada.getKey(), entrada.getValue())) {
+
+				lote.add(entrada.getValue());
+			}
+		}
+
+		if (lote.isEmpty()) {
+
+			return 0;
+		}
+
+		try {
+
+			escritor.accept(lote);
+
+		} catch (RuntimeException e) {
+
+			LOGGER.warn("Fallo volcando un lote de {} entidades de la cola de escritura diferida {}, se escriben una a una",
+					lote.size(), nombre, e);
+
+			int escritasUnaAUna = escribirUnaAUna(lote);
+
+			if (escritasUnaAUna > 0) {
+
+				notificarVolcado();
+			}
+
+			return escritasUnaAUna;
+		}
+
+		for (T entidad : lote) {
+
+			intentosFallidos.remove(extractorId.applyAsInt(entidad));
+		}
+
+		escritas.add(lote.size());
+
+		notificarVolcado();
+
+		return lote.size();
+	}
+
+
+	//Las entidades ya están confirmadas, así que un fallo aquí no debe devolverlas a la cola
+	private void notificarVolcado() {
+
+		if (trasVolcado == null) {
+
+			return;
+		}
+
+		try {
+
+			trasVolcado.run();
+
+		} catch (RuntimeException e) {
+
+			LOGGER.error("Fallo tras el volcado de la cola de escritura diferida {}", nombre, e);
+		}
+	}
+
+
+	private int escribirUnaAUna(List<T> lote) {
+
+		List<T> fallidas = new ArrayList<>();
+
+		int escritasAhora = 0;
+
+		for (int i = 0; i < lote.size(); i++) {
+
+			//Si fallan todas las primeras lo más probable es que la BBDD no esté disponible
+			if (escritasAhora == 0 && fallidas.size() >= MAXIMO_INTENTOS) {
+
+				devolver(fallidas);
+				devolver(lote.subList(i, lote.size()));
+
+				return 0;
+			}
+
+			T entidad = lote.get(i);
+
+			try {
+
+				escritor.accept(Collections.singletonList(entidad));
+
+				intentosFallidos.remove(extractorId.applyAsInt(entidad));
+
+				escritasAhora++;
+
+			} catch (RuntimeException e) {
+
+				LOGGER.warn("Fallo escribiendo el id {} de la cola de escritura diferida {}", extractorId.applyAsInt(entidad), nombre, e);
+
+				fallidas.add(entidad);
+			}
+		}
+
+		if (escritasAhora == 0) {
+
+			devolver(fallidas);
+
+		}else {
+
+			for (T entidad : fallidas) {
+
+				anotarFallo(entidad);
+			}
+		}
+
+		escritas.add(escritasAhora);
+
+		return escritasAhora;
+	}
+
+
+	private void anotarFallo(T entidad) {
+
+		int id = extractorId.applyAsInt(entidad);
+
+		int intentos = intentosFallidos.merge(id, 1, Integer::sum);
+
+		if (intentos >= MAXIMO_INTENTOS) {
+
+			intentosFallidos.remove(id);
+
+			descartadas.increment();
+
+			LOGGER.error("Se descarta la actualización del id {} de la cola de escritura diferida {} tras {} intentos fallidos", id, nombre, intentos);
+
+		}else {
+
+			pendientes.putIfAbsent(id, entidad); //Salvo que ya haya una versión más nueva
+		}
+	}
+
+
+	private void devolver(List<T> entidades) {
+
+		for (T entidad : entidades) {
+
+			pendientes.putIfAbsent(extractorId.applyAsInt(entidad), entidad);
+		}
+	}
+
+
+	/**
+	 * Método que vuelca las actualizaciones pendientes y detiene el volcado periódico
+	 */
+	@Override
+	public void close() {
+
+		planificador.shutdown();
+
+		try {
+
+			planificador.awaitTermination(30, TimeUnit.SECONDS);
+
+		} catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+		}
+
+		flush();
+	}
+
+
+	public String getNombre() {
+
+		return nombre;
+	}
+
+
+	/**
+	 * @return Número de ids con una actualización pendiente de escribir
+	 */
+	public int getPendientes() {
+
+		return pendientes.size();
+	}
+
+
+	/**
+	 * @return Número de actualizaciones recibidas
+	 */
+	public long getEncoladas() {
+
+		return encoladas.sum();
+	}
+
+
+	/**
+	 * @return Número de actualizaciones descartadas por llegar otra más nueva del mismo id antes del volcado
+	 */
+	public long getAgrupadas() {
+
+		return agrupadas.sum();
+	}
+
+
+	/**
+	 * @return Número de entidades escritas en la BBDD
+	 */
+	public long getEscritas() {
+
+		return escritas.sum();
+	}
+
+
+	/**
+	 * @return Número de actualizaciones descartadas tras MAXIMO_INTENTOS volcados fallidos
+	 */
+	public long getDescartadas() {
+
+		return descartadas.sum();
+	}
+
+
+	private void volcarPlanificado() {
+
+		try {
+
+			flush();
+
+		} catch (RuntimeException e) {
+
+			LOGGER.error("Fallo volcando la cola de escritura diferida {} ({} pendientes)", nombre, pendientes.size(), e);
+		}
+	}
+}
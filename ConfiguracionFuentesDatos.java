@@ -0,0 +1,102 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Configuración de dos pools de conexiones, uno contra la BBDD primaria y otro contra la réplica de lectura, tras
+ * un único DataSource que elige el pool con EnrutamientoLecturaAspect. Sustituye al DataSource de spring.datasource.*
+ * y se habilita con bricolaje.datasource.replica.habilitada=true. Cada pool admite las propiedades de Hikari:
+ * <pre>
+ * bricolaje.datasource.replica.habilitada=true
+ * bricolaje.datasource.primaria.jdbc-url=jdbc:postgresql://primaria:5432/bricolaje
+ * bricolaje.datasource.primaria.username=bricolaje
+ * bricolaje.datasource.primaria.password=...
+ * bricolaje.datasource.primaria.maximum-pool-size=10
+ * bricolaje.datasource.replica.jdbc-url=jdbc:postgresql://replica:5432/bricolaje
+ * bricolaje.datasource.replica.username=bricolaje_lectura
+ * bricolaje.datasource.replica.password=...
+ * bricolaje.datasource.replica.maximum-pool-size=20
+ * bricolaje.datasource.replica.ventana-lectura-escrituras-ms=2000
+ * </pre>
+ * Para probarlo en local basta con que los dos pools apunten a la misma H2 en memoria, que hace de réplica sin
+ * retraso. El reparto de las llamadas se ve en la métrica bricolaje.datasource.enrutamiento, por destino, y en
+ * las métricas de Hikari de los pools primaria y replica:
+ * <pre>
+ * bricolaje.datasource.replica.habilitada=true
+ * bricolaje.datasource.primaria.jdbc-url=jdbc:h2:mem:bricolaje;DB_CLOSE_DELAY=-1
+ * bricolaje.datasource.primaria.username=sa
+ * bricolaje.datasource.replica.jdbc-url=jdbc:h2:mem:bricolaje;DB_CLOSE_DELAY=-1
+ * bricolaje.datasource.replica.username=sa
+ * </pre>
+ * La conexión a la réplica es de solo lectura salvo que se indique bricolaje.datasource.replica.read-only=false.
+ * bricolaje.datasource.primaria.maximum-pool-size limita también las llamadas simultáneas de GestorUsuarioAsincrono
+ * y GestorPerfilUsuario.
+ */
+@Configuration
+@ConditionalOnProperty(name = "bricolaje.datasource.replica.habilitada", havingValue = "true")
+public class ConfiguracionFuentesDatos {
+
+	@Bean
+	@ConfigurationProperties("bricolaje.datasource.primaria")
+	public HikariDataSource fuentePrimaria() {
+
+		HikariDataSource fuente = new HikariDataSource();
+
+		fuente.setPoolName("primaria");
+
+		return fuente;
+	}
+
+
+	@Bean
+	@ConfigurationProperties("bricolaje.datasource.replica")
+	public HikariDataSource fuenteReplica() {
+
+		HikariDataSource fuente = new HikariDataSource();
+
+		fuente.setPoolName("replica");
+		fuente.setReadOnly(true);
+
+		return fuente;
+	}
+
+
+	/**
+	 * DataSource que utilizan JPA y el resto de la aplicación. La conexión real se pide al ejecutar la primera
+	 * sentencia, cuando el aspecto ya ha fijado el destino, y no al empezar la transacción
+	 */
+	@Bean
+	@Primary
+	public DataSource dataSource(@Qualifier("fuentePrimaria") DataSource primaria, @Qualifier("fuenteReplica") DataSource replica) {
+
+		Map<Object, Object> destinos = new HashMap<>();
+
+		destinos.put(FuenteDatosEnrutada.Destino.PRIMARIA, primaria);
+		destinos.put(FuenteDatosEnrutada.Destino.REPLICA, replica);
+
+		FuenteDatosEnrutada enrutada = new FuenteDatosEnrutada();
+
+		enrutada.setTargetDataSources(destinos);
+		enrutada.setDefaultTargetDataSource(primaria);
+		enrutada.afterPropertiesSet();
+
+		return new LazyConnectionDataSourceProxy(enrutada);
+	}
+}
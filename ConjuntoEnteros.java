@@ -0,0 +1,223 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.util.Arrays;
+
+/**
+ * Conjunto de enteros distintos de cero sobre un array primitivo con direccionamiento abierto (sondeo lineal),
+ * sin objetos por elemento. El cero se reserva para marcar las posiciones libres, por lo que no admite
+ * el id 0, que ningún Gestor acepta como id válido. No es seguro entre hilos.
+ */
+class ConjuntoEnteros {
+
+	private static final int CAPACIDAD_INICIAL = 8;
+
+	private int[] tabla = new int[CAPACIDAD_INICIAL];
+
+	private int tamanio;
+
+	//------------------
+
+	/**
+	 * @param valor Valor distinto de cero a añadir
+	 * @return true si no estaba en el conjunto
+	 */
+	boolean agregar(int valor) {
+
+		if ((tamanio + 1) * 4 > tabla.length * 3) {
+
+			redimensionar(tabla.length * 2);
+		}
+
+		int posicion = posicion(tabla, valor);
+
+		if (tabla[posicion] == valor) {
+
+			return false;
+		}
+
+		tabla[posicion] = valor;
+
+		tamanio++;
+
+		return true;
+	}
+
+
+	/**
+	 * @param valor Valor a retirar
+	 * @return true si estaba en el conjunto
+	 */
+	boolean eliminar(int valor) {
+
+		int posicion = posicion(tabla, valor);
+
+		if (tabla[posicion] != valor) {
+
+			return false;
+		}
+
+		liberar(tabla, posicion);
+
+		tamanio--;
+
+		return true;
+	}
+
+
+	boolean contiene(int valor) {
+
+		return tabla[posicion(tabla, valor)] == valor;
+	}
+
+
+	int tamanio() {
+
+		return tamanio;
+	}
+
+
+	boolean isVacio() {
+
+		return tamanio == 0;
+	}
+
+
+	/**
+	 * @return Una copia de los valores del conjunto, sin orden definido
+	 */
+	int[] aArray() {
+
+		int[] valores = new int[tamanio];
+
+		int n = 0;
+
+		for (int valor : tabla) {
+
+			if (valor != 0) {
+
+				valores[n++] = valor;
+			}
+		}
+
+		return valores;
+	}
+
+
+	private void redimensionar(int capacidad) {
+
+		int[] nueva = new int[capacidad];
+
+		for (int valor : tabla) {
+
+			if (valor != 0) {
+
+				nueva[posicion(nueva, valor)] = valor;
+			}
+		}
+
+		tabla = nueva;
+	}
+
+
+	/**
+	 * Método que localiza la posición de un valor en una tabla cuya longitud es potencia de dos
+	 * @return Devuelve la posición que ocupa el valor o, si no está, la posición libre donde iría
+	 */
+	static int posicion(int[] tabla, int valor) {
+
+		int mascara = tabla.length - 1;
+
+		int posicion = dispersar(valor) & mascara;
+
+		while (tabla[posicion] != 0 && tabla[posicion] != valor) {
+
+			posicion = (posicion + 1) & mascara;
+		}
+
+		return posicion;
+	}
+
+
+	static int liberar(int[] tabla, int posicion) {
+
+		return liberar(tabla, posicion, null);
+	}
+
+
+	/**
+	 * Método que vacía una posición de la tabla desplazando hacia atrás los valores que colisionaban con ella,
+	 * para que el sondeo lineal los siga encontrando sin necesidad de marcas de borrado
+	 * @param desplazamiento Recibe quien replica cada desplazamiento en sus arrays paralelos, o null
+	 * @return Devuelve la posición que queda finalmente vacía
+	 */
+	static int liberar(int[] tabla, int posicion, Desplazamiento desplazamiento) {
+
+		int mascara = tabla.length - 1;
+
+		int hueco = posicion;
+		int siguiente = posicion;
+
+		while (true) {
+
+			siguiente = (siguiente + 1) & mascara;
+
+			if (tabla[siguiente] == 0) {
+
+				break;
+			}
+
+			int ideal = dispersar(tabla[siguiente]) & mascara;
+
+			//Si su posición ideal está entre el hueco y él, no puede moverse al hueco
+			boolean enRango = hueco <= siguiente ? (hueco < ideal && ideal <= siguiente) : (hueco < ideal || ideal <= siguiente);
+
+			if (!enRango) {
+
+				tabla[hueco] = tabla[siguiente];
+
+				if (desplazamiento != null) {
+
+					desplazamiento.mover(siguiente, hueco);
+				}
+
+				hueco = siguiente;
+			}
+		}
+
+		tabla[hueco] = 0;
+
+		return hueco;
+	}
+
+
+	static int dispersar(int valor) {
+
+		int h = valor * 0x9E3779B9;
+
+		return h ^ (h >>> 16);
+	}
+
+
+	@Override
+	public String toString() {
+
+		int[] valores = aArray();
+
+		Arrays.sort(valores);
+
+		return Arrays.toString(valores);
+	}
+
+
+	/**
+	 * Permite a las tablas con arrays paralelos replicar los desplazamientos de liberar()
+	 */
+	interface Desplazamiento {
+
+		void mover(int desde, int hasta);
+	}
+}
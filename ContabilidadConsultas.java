@@ -0,0 +1,107 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+/**
+ * Contabilidad de sentencias SQL por hilo. Cada invocación de un método de un Gestor abre un ámbito y todas las
+ * sentencias JDBC que se ejecutan mientras está abierto (incluidas las de ámbitos anidados) se le imputan.
+ * Las sentencias las notifica MedidorSentenciasJdbc desde Hibernate.
+ */
+public final class ContabilidadConsultas {
+
+	private static final ThreadLocal<Ambito> AMBITO_ACTUAL = new ThreadLocal<>();
+
+	//------------------
+
+	private ContabilidadConsultas() {
+	}
+
+
+	/**
+	 * Método que abre un nuevo ámbito de contabilidad anidado en el actual
+	 * @param nombre Recibe el nombre del ámbito, normalmente Clase.metodo
+	 * @return Devuelve el ámbito abierto, que debe cerrarse con cerrar()
+	 */
+	public static Ambito abrir(String nombre) {
+
+		Ambito ambito = new Ambito(nombre, AMBITO_ACTUAL.get());
+
+		AMBITO_ACTUAL.set(ambito);
+
+		return ambito;
+	}
+
+
+	/**
+	 * Método que imputa una sentencia ejecutada a todos los ámbitos abiertos del hilo
+	 * @param nanos Recibe el tiempo que ha tardado la sentencia en la BBDD
+	 */
+	static void registrarSentencia(long nanos) {
+
+		for (Ambito ambito = AMBITO_ACTUAL.get(); ambito != null; ambito = ambito.padre) {
+
+			ambito.sentencias++;
+			ambito.nanosBaseDatos += nanos;
+		}
+	}
+
+
+	/**
+	 * Ámbito de contabilidad. No es seguro entre hilos: solo lo usa el hilo que lo abre.
+	 */
+	public static final class Ambito implements AutoCloseable {
+
+		private final String nombre;
+
+		private final Ambito padre;
+
+		private int sentencias;
+
+		private long nanosBaseDatos;
+
+		private Ambito(String nombre, Ambito padre) {
+
+			this.nombre = nombre;
+			this.padre = padre;
+		}
+
+		public String getNombre() {
+
+			return nombre;
+		}
+
+		/**
+		 * @return Número de sentencias SQL ejecutadas en el ámbito
+		 */
+		public int getSentencias() {
+
+			return sentencias;
+		}
+
+		/**
+		 * @return Tiempo acumulado en la BBDD por las sentencias del ámbito, en nanosegundos
+		 */
+		public long getNanosBaseDatos() {
+
+			return nanosBaseDatos;
+		}
+
+		/**
+		 * Cierra el ámbito y restablece el ámbito padre como actual
+		 */
+		@Override
+		public void close() {
+
+			if (padre == null) {
+
+				AMBITO_ACTUAL.remove();
+
+			}else {
+
+				AMBITO_ACTUAL.set(padre);
+			}
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Aspecto que contabiliza las sentencias SQL y el tiempo en BBDD de cada invocación de un método público de los
+ * Gestores y los publica como métricas:
+ * 		bricolaje.gestor.sentencias		número de sentencias por invocación
+ * 		bricolaje.gestor.tiempo.bbdd	tiempo en BBDD por invocación
+ * ambas etiquetadas con clase y metodo. Si el método declara un PresupuestoConsultas y lo supera, se deja una
+ * traza de aviso o, con bricolaje.consultas.presupuesto.estricto=true, se lanza PresupuestoConsultasExcedidoException.
+ * Se ejecuta por fuera de la transacción para contar también las sentencias que se envían al confirmarla.
+ */
+@Aspect
+@Component
+@Order(0)
+public class ContabilidadConsultasAspect {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ContabilidadConsultasAspect.class);
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Value("${bricolaje.consultas.presupuesto.estricto:false}")
+	private boolean presupuestoEstricto;
+
+	private final ConcurrentMap<Method, Medidores> medidores = new ConcurrentHashMap<>();
+
+	//------------------
+
+	@Around("execution(public * com.myapp.bricolaje.model.service.Gestor*.*(..))")
+	public Object contabilizar(ProceedingJoinPoint joinPoint) throws Throwable {
+
+		Method metodo = ((MethodSignature) joinPoint.getSignature()).getMethod();
+
+		Medidores medidoresMetodo = medidores.computeIfAbsent(metodo, this::crearMedidores);
+
+		Object resultado;
+
+		try (ContabilidadConsultas.Ambito ambito = ContabilidadConsultas.abrir(medidoresMetodo.nombre)) {
+
+			resultado = joinPoint.proceed();
+
+			medidoresMetodo.sentencias.record(ambito.getSentencias());
+			medidoresMetodo.tiempoBaseDatos.record(ambito.getNanosBaseDatos(), TimeUnit.NANOSECONDS);
+
+			comprobarPresupuesto(medidoresMetodo, ambito.getSentencias());
+		}
+
+		return resultado;
+	}
+
+
+	private void comprobarPresupuesto(Medidores medidoresMetodo, int sentencias) {
+
+		if (medidoresMetodo.presupuesto >= 0 && sentencias > medidoresMetodo.presupuesto) {
+
+			if (presupuestoEstricto) {
+
+				throw new PresupuestoConsultasExcedidoException(medidoresMetodo.nombre, medidoresMetodo.presupuesto, sentencias);
+			}
+
+			LOGGER.warn("{} ha ejecutado {} sentencias SQL y su presupuesto es de {}", medidoresMetodo.nombre, sentencias, medidoresMetodo.presupuesto);
+		}
+	}
+
+
+	private Medidores crearMedidores(Method metodo) {
+
+		String clase = metodo.getDeclaringClass().getSimpleName();
+
+		PresupuestoConsultas presupuesto = metodo.getAnnotation(PresupuestoConsultas.class);
+
+		DistributionSummary sentencias = DistributionSummary.builder("bricolaje.gestor.sentencias")
+				.description("Sentencias SQL ejecutadas por invocación")
+				.tag("clase", clase)
+				.tag("metodo", metodo.getName())
+				.register(meterRegistry);
+
+		Timer tiempoBaseDatos = Timer.builder("bricolaje.gestor.tiempo.bbdd")
+				.description("Tiempo en BBDD por invocación")
+				.tag("clase", clase)
+				.tag("metodo", metodo.getName())
+				.register(meterRegistry);
+
+		return new Medidores(clase + "." + metodo.getName(), presupuesto != null ? presupuesto.value() : -1, sentencias, tiempoBaseDatos);
+	}
+
+
+	private static final class Medidores {
+
+		private final String nombre;
+
+		private final int presupuesto;
+
+		private final DistributionSummary sentencias;
+
+		private final Timer tiempoBaseDatos;
+
+		Medidores(String nombre, int presupuesto, DistributionSummary sentencias, Timer tiempoBaseDatos) {
+
+			this.nombre = nombre;
+			this.presupuesto = presupuesto;
+			this.sentencias = sentencias;
+			this.tiempoBaseDatos = tiempoBaseDatos;
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.Embeddable;
+import javax.persistence.Entity;
+
+import org.hibernate.Hibernate;
+
+/**
+ * Copia profunda de entidades ya cargadas, para guardarlas en cachés compartidas. La copia no está asociada a
+ * ningún contexto de persistencia: las entidades y colecciones cargadas se copian, y las asociaciones perezosas
+ * que no se cargaron se conservan sin inicializar, por lo que acceder a ellas lanza LazyInitializationException
+ * en lugar de consultar la BBDD. Se copian todos los atributos, de modo que la copia es igual al original aunque
+ * la entidad gane atributos nuevos.
+ */
+final class CopiaEntidades {
+
+	//Atributos copiables de cada clase, incluidos los heredados, calculados una sola vez
+	private static final ClassValue<Field[]> ATRIBUTOS = new ClassValue<Field[]>() {
+
+		@Override
+		protected Field[] computeValue(Class<?> clase) {
+
+			List<Field> atributos = new ArrayList<>();
+
+			for (Class<?> actual = clase; actual != null && actual != Object.class; actual = actual.getSuperclass()) {
+
+				for (Field atributo : actual.getDeclaredFields()) {
+
+					if (!Modifier.isStatic(atributo.getModifiers())) {
+
+						atributo.setAccessible(true);
+
+						atributos.add(atributo);
+					}
+				}
+			}
+
+			return atributos.toArray(new Field[0]);
+		}
+	};
+
+	private CopiaEntidades() {
+	}
+
+
+	/**
+	 * @param clase Recibe la clase de la entidad
+	 * @return Devuelve los atributos no estáticos de la clase y sus superclases, ya accesibles
+	 */
+	static Field[] atributos(Class<?> clase) {
+
+		return ATRIBUTOS.get(clase);
+	}
+
+
+	/**
+	 * Método que copia una entidad y las entidades y colecciones cargadas a las que hace referencia
+	 * @param entidad Recibe la entidad a copiar, gestionada o no
+	 * @return Devuelve la copia, o null si la entidad es null
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> T copiar(T entidad) {
+
+		return (T) copiarValor(entidad, new IdentityHashMap<>());
+	}
+
+
+	private static Object copiarValor(Object valor, Map<Object, Object> copiados) {
+
+		//Lo que no está cargado se deja tal cual: desvinculado, no puede inicializarse
+		if (valor == null || !Hibernate.isInitialized(valor)) {
+
+			return valor;
+		}
+
+		Object copia = copiados.get(valor);
+
+		if (copia != null) {
+
+			return copia; //Referencia circular o compartida
+		}
+
+		if (valor instanceof Collection) {
+
+			return copiarColeccion((Collection<?>) valor, copiados);
+		}
+
+		if (valor instanceof Map) {
+
+			Map<Object, Object> mapa = new LinkedHashMap<>();
+
+			copiados.put(valor, mapa);
+
+			for (Map.Entry<?, ?> entrada : ((Map<?, ?>) valor).entrySet()) {
+
+				mapa.put(copiarValor(entrada.getKey(), copiados), copiarValor(entrada.getValue(), copiados));
+			}
+
+			return mapa;
+		}
+
+		if (valor.getClass().isArray()) {
+
+			return copiarArray(valor, copiados);
+		}
+
+		Object real = Hibernate.unproxy(valor);
+
+		Class<?> clase = real.getClass();
+
+		if (clase.isAnnotationPresent(Entity.class) || clase.isAnnotationPresent(Embeddable.class)) {
+
+			return copiarObjeto(valor, real, clase, copiados);
+		}
+
+		return valor; //String, números, fechas, enumerados...
+	}
+
+
+	private static Object copiarObjeto(Object valor, Object real, Class<?> clase, Map<Object, Object> copiados) {
+
+		try {
+
+			Constructor<?> constructor = clase.getDeclaredConstructor();
+
+			constructor.setAccessible(true);
+
+			Object copia = constructor.newInstance();
+
+			copiados.put(valor, copia);
+			copiados.put(real, copia);
+
+			for (Field atributo : ATRIBUTOS.get(clase)) {
+
+				atributo.set(copia, copiarValor(atributo.get(real), copiados));
+			}
+
+			return copia;
+
+		} catch (ReflectiveOperationException e) {
+
+			throw new IllegalStateException("No se puede copiar la entidad " + clase.getName(), e);
+		}
+	}
+
+
+	private static Collection<Object> copiarColeccion(Collection<?> coleccion, Map<Object, Object> copiados) {
+
+		Collection<Object> copia = coleccion instanceof Set ? new LinkedHashSet<>() : new ArrayList<>(coleccion.size());
+
+		copiados.put(coleccion, copia);
+
+		for (Object elemento : coleccion) {
+
+			copia.add(copiarValor(elemento, copiados));
+		}
+
+		return copia;
+	}
+
+
+	private static Object copiarArray(Object array, Map<Object, Object> copiados) {
+
+		int longitud = Array.getLength(array);
+
+		Object copia = Array.newInstance(array.getClass().getComponentType(), longitud);
+
+		copiados.put(array, copia);
+
+		if (array.getClass().getComponentType().isPrimitive()) {
+
+			System.arraycopy(array, 0, copia, 0, longitud);
+
+		}else {
+
+			for (int i = 0; i < longitud; i++) {
+
+				Array.set(copia, i, copiarValor(Array.get(array, i), copiados));
+			}
+		}
+
+		return copia;
+	}
+}
@@ -0,0 +1,21 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marca los métodos de un Gestor que devuelven un int que es un número de filas o entidades y no un código de
+ * resultado. LatenciaGestoresAspect no etiqueta su latencia con el valor devuelto, sino solo con "0" o ">0".
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface DevuelveRecuento {
+}
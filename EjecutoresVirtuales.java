@@ -0,0 +1,46 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Crea ejecutores de un hilo virtual por tarea cuando la JVM los soporta (Java 21 o superior). En JVMs anteriores
+ * se recurre a un pool fijo de hilos de plataforma, de forma que el código que lo usa funciona en ambas.
+ */
+final class EjecutoresVirtuales {
+
+	private EjecutoresVirtuales() {
+	}
+
+
+	/**
+	 * @param nombre Recibe el prefijo del nombre de los hilos del pool alternativo
+	 * @param hilosAlternativos Recibe el número de hilos del pool alternativo si no hay hilos virtuales
+	 * @return Devuelve el ejecutor creado
+	 */
+	static ExecutorService crear(String nombre, int hilosAlternativos) {
+
+		try {
+
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+
+		} catch (ReflectiveOperationException e) {
+
+			AtomicInteger contador = new AtomicInteger();
+
+			return Executors.newFixedThreadPool(hilosAlternativos, tarea -> {
+
+				Thread hilo = new Thread(tarea, nombre + "-" + contador.incrementAndGet());
+
+				hilo.setDaemon(true);
+
+				return hilo;
+			});
+		}
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpSession;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Aspecto que decide, por el nombre del método, si cada llamada a un Gestor se sirve desde la réplica de lectura
+ * o desde la BBDD primaria. Los métodos listar*, obtener* y buscar* van a la réplica; todos los demás, y en
+ * particular agregar*, alta*, modificar*, actualizar* y eliminar*, van a la primaria. Las llamadas anidadas
+ * conservan el destino de la exterior, de forma que las comprobaciones que hace un método de escritura se leen
+ * de la primaria.
+ * Para que un usuario vea siempre lo que acaba de escribir, durante una ventana tras cada escritura sus lecturas
+ * también van a la primaria. La ventana es por sesión HTTP; las lecturas sin sesión, como las de hilos de fondo,
+ * usan la última escritura de cualquier sesión. La ventana es local a cada nodo, por lo que debe cubrir el retraso
+ * habitual de la réplica y las sesiones deben ser afines al nodo.
+ * Se ejecuta antes que cualquier otro aspecto y que la transacción, para fijar el destino antes de que se pida
+ * ninguna conexión.
+ */
+@Aspect
+@Component
+@ConditionalOnProperty(name = "bricolaje.datasource.replica.habilitada", havingValue = "true")
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class EnrutamientoLecturaAspect {
+
+	private static final String[] PREFIJOS_LECTURA = { "listar", "obtener", "buscar" };
+
+	private static final String[] PREFIJOS_ESCRITURA = { "agregar", "alta", "modificar", "actualizar", "elimina", "volcar" };
+
+	//Número de sesiones a partir del cual se descartan las que ya salieron de la ventana
+	private static final int MAXIMO_SESIONES = 10000;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	/** Tiempo tras una escritura durante el que las lecturas de la misma sesión siguen yendo a la primaria */
+	@Value("${bricolaje.datasource.replica.ventana-lectura-escrituras-ms:2000}")
+	private long ventanaMs;
+
+	private final ConcurrentMap<String, Long> ultimaEscrituraPorSesion = new ConcurrentHashMap<>();
+
+	private final AtomicLong ultimaEscritura = new AtomicLong();
+
+	private Counter llamadasPrimaria;
+
+	private Counter llamadasReplica;
+
+	//------------------
+
+	@PostConstruct
+	void iniciar() {
+
+		llamadasPrimaria = meterRegistry.counter("bricolaje.datasource.enrutamiento", "destino", "primaria");
+		llamadasReplica = meterRegistry.counter("bricolaje.datasource.enrutamiento", "destino", "replica");
+	}
+
+
+	@Around("execution(public * com.myapp.bricolaje.model.service.Gestor*.*(..))")
+	public Object enrutar(ProceedingJoinPoint joinPoint) throws Throwable {
+
+		String metodo = joinPoint.getSignature().getName();
+
+		boolean escritura = empiezaPor(metodo, PREFIJOS_ESCRITURA);
+
+		FuenteDatosEnrutada.Destino anterior = FuenteDatosEnrutada.getDestino();
+
+		FuenteDatosEnrutada.Destino destino = elegirDestino(metodo, escritura, anterior);
+
+		if (anterior == null) {
+
+			(destino == FuenteDatosEnrutada.Destino.REPLICA ? llamadasReplica : llamadasPrimaria).increment();
+		}
+
+		FuenteDatosEnrutada.fijarDestino(destino);
+
+		try {
+
+			Object resultado = joinPoint.proceed();
+
+			if (escritura) {
+
+				registrarEscritura();
+			}
+
+			return resultado;
+
+		} finally {
+
+			FuenteDatosEnrutada.fijarDestino(anterior);
+		}
+	}
+
+
+	private FuenteDatosEnrutada.Destino elegirDestino(String metodo, boolean escritura, FuenteDatosEnrutada.Destino anterior) {
+
+		if (escritura) {
+
+			return FuenteDatosEnrutada.Destino.PRIMARIA;
+		}
+
+		if (anterior != null) {
+
+			return anterior; //Llamada anidada
+		}
+
+		//Una transacción abierta fuera de los Gestores puede haber escrito ya en la primaria
+		if (TransactionSynchronizationManager.isActualTransactionActive()) {
+
+			return FuenteDatosEnrutada.Destino.PRIMARIA;
+		}
+
+		if (empiezaPor(metodo, PREFIJOS_LECTURA) && !dentroDeVentana()) {
+
+			return FuenteDatosEnrutada.Destino.REPLICA;
+		}
+
+		return FuenteDatosEnrutada.Destino.PRIMARIA;
+	}
+
+
+	private boolean dentroDeVentana() {
+
+		String sesion = idSesion();
+
+		Long escritura = sesion != null ? ultimaEscrituraPorSesion.get(sesion) : (Long) ultimaEscritura.get();
+
+		return escritura != null && System.currentTimeMillis() - escritura < ventanaMs;
+	}
+
+
+	private void registrarEscritura() {
+
+		long ahora = System.currentTimeMillis();
+
+		ultimaEscritura.accumulateAndGet(ahora, Math::max);
+
+		String sesion = idSesion();
+
+		if (sesion != null) {
+
+			ultimaEscrituraPorSesion.put(sesion, ahora);
+
+			if (ultimaEscrituraPorSesion.size() > MAXIMO_SESIONES) {
+
+				ultimaEscrituraPorSesion.values().removeIf(escritura -> ahora - escritura >= ventanaMs);
+			}
+		}
+	}
+
+
+	/**
+	 * @return El id de la sesión HTTP de la petición en curso, o null si el hilo no atiende una petición o esta no
+	 * 			tiene sesión. Nunca crea una sesión
+	 */
+	private static String idSesion() {
+
+		RequestAttributes atributos = RequestContextHolder.getRequestAttributes();
+
+		if (atributos instanceof ServletRequestAttributes) {
+
+			HttpSession sesion = ((ServletRequestAttributes) atributos).getRequest().getSession(false);
+
+			if (sesion != null) {
+
+				return sesion.getId();
+			}
+		}
+
+		return null;
+	}
+
+
+	private static boolean empiezaPor(String metodo, String[] prefijos) {
+
+		for (String prefijo : prefijos) {
+
+			if (metodo.startsWith(prefijo)) {
+
+				return true;
+			}
+		}
+
+		return false;
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Escribe filas de columnas escalares en NDJSON o CSV sobre un buffer de tamaño fijo, sin construir una
+ * cadena por fila. No cierra el flujo de salida recibido: solo lo vacía al terminar.
+ */
+class EscritorExportacion {
+
+	private static final int TAMANIO_BUFFER = 64 * 1024;
+
+	private final Writer salida;
+
+	private final FormatoExportacion formato;
+
+	private final String[] columnas;
+
+	//------------------
+
+	EscritorExportacion(OutputStream salida, FormatoExportacion formato, String... columnas) {
+
+		this.salida = new BufferedWriter(new OutputStreamWriter(salida, StandardCharsets.UTF_8), TAMANIO_BUFFER);
+		this.formato = formato;
+		this.columnas = columnas;
+	}
+
+
+	void escribirCabecera() throws IOException {
+
+		if (formato == FormatoExportacion.CSV) {
+
+			for (int i = 0; i < columnas.length; i++) {
+
+				if (i > 0) {
+
+					salida.write(',');
+				}
+
+				escribirCsv(columnas[i]);
+			}
+
+			salida.write("\r\n");
+		}
+	}
+
+
+	/**
+	 * @param valores Recibe un valor por columna, en el mismo orden que las columnas
+	 */
+	void escribirFila(Object[] valores) throws IOException {
+
+		if (formato == FormatoExportacion.CSV) {
+
+			for (int i = 0; i < valores.length; i++) {
+
+				if (i > 0) {
+
+					salida.write(',');
+				}
+
+				if (valores[i] != null) {
+
+					escribirCsv(valores[i].toString());
+				}
+			}
+
+			salida.write("\r\n");
+
+		}else {
+
+			salida.write('{');
+
+			for (int i = 0; i < valores.length; i++) {
+
+				if (i > 0) {
+
+					salida.write(',');
+				}
+
+				escribirJson(columnas[i]);
+				salida.write(':');
+
+				if (valores[i] == null) {
+
+					salida.write("null");
+
+				}else if (valores[i] instanceof Number || valores[i] instanceof Boolean) {
+
+					salida.write(valores[i].toString());
+
+				}else {
+
+					escribirJson(valores[i].toString());
+				}
+			}
+
+			salida.write("}\n");
+		}
+	}
+
+
+	void terminar() throws IOException {
+
+		salida.flush();
+	}
+
+
+	private void escribirCsv(String valor) throws IOException {
+
+		boolean entrecomillar = false;
+
+		for (int i = 0; i < valor.length() && !entrecomillar; i++) {
+
+			char c = valor.charAt(i);
+
+			entrecomillar = c == ',' || c == '"' || c == '\r' || c == '\n';
+		}
+
+		if (!entrecomillar) {
+
+			salida.write(valor);
+
+			return;
+		}
+
+		salida.write('"');
+
+		for (int i = 0; i < valor.length(); i++) {
+
+			char c = valor.charAt(i);
+
+			if (c == '"') {
+
+				salida.write('"'); //Las comillas se duplican
+			}
+
+			salida.write(c);
+		}
+
+		salida.write('"');
+	}
+
+
+	private void escribirJson(String valor) throws IOException {
+
+		salida.write('"');
+
+		for (int i = 0; i < valor.length(); i++) {
+
+			char c = valor.charAt(i);
+
+			switch (c) {
+
+			case '"':
+				salida.write("\\\"");
+				break;
+
+			case '\\':
+				salida.write("\\\\");
+				break;
+
+			case '\n':
+				salida.write("\\n");
+				break;
+
+			case '\r':
+				salida.write("\\r");
+				break;
+
+			case '\t':
+				salida.write("\\t");
+				break;
+
+			default:
+
+				if (c < 0x20) {
+
+					salida.write(String.format("\\u%04x", (int) c));
+
+				}else {
+
+					salida.write(c);
+				}
+			}
+		}
+
+		salida.write('"');
+	}
+}
@@ -0,0 +1,339 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Filtro de Bloom con los DNI registrados, para no consultar la BBDD al comprobar si existe un DNI nuevo en las
+ * altas de GestorUsuario. Un resultado positivo puede ser falso y se confirma en la BBDD. Uno negativo es
+ * definitivo para los DNI dados de alta en este nodo, pero un DNI registrado desde otro nodo o directamente en
+ * la BBDD no se conoce hasta la siguiente reconstrucción: por eso las altas requieren un índice único sobre
+ * usuario.dni, que es quien rechaza ese duplicado, y el periodo de reconstrucción acota durante cuánto tiempo
+ * puede ocurrir.
+ * Se construye al arrancar leyendo todos los DNI y se reconstruye periódicamente para descartar los DNI dados
+ * de baja (un filtro de Bloom no admite borrados) y para redimensionarse según crece la tabla. Mientras se
+ * construye por primera vez, todas las comprobaciones van a la BBDD.
+ */
+@Component
+public class FiltroDniUsuarios {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FiltroDniUsuarios.class);
+
+	private static final String CONSULTA_DNIS_DESDE_ID = "select u.idUsuario, u.dni from Usuario u where u.idUsuario > :ultimoId order by u.idUsuario";
+
+	private static final int TAMANIO_BLOQUE = 5000;
+
+	@PersistenceContext
+	private EntityManager entityManager;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Value("${bricolaje.usuarios.filtro-dni.elementos-esperados:1000000}")
+	private int elementosEsperados;
+
+	@Value("${bricolaje.usuarios.filtro-dni.probabilidad-falso-positivo:0.01}")
+	private double probabilidadFalsoPositivo;
+
+	@Value("${bricolaje.usuarios.filtro-dni.periodo-reconstruccion-minutos:60}")
+	private long periodoReconstruccionMinutos;
+
+	private volatile Filtro filtro;
+
+	//DNI añadidos desde que empezó la reconstrucción en curso y desde que empezó la anterior. Se vuelcan en el
+	//filtro nuevo al publicarlo para no perder altas confirmadas después de que la lectura pasara por ellas
+	private volatile Set<String> recientes = ConcurrentHashMap.newKeySet();
+
+	private volatile Set<String> anteriores = ConcurrentHashMap.newKeySet();
+
+	private ScheduledExecutorService planificador;
+
+	private final LongAdder consultasEvitadas = new LongAdder();
+
+	private final LongAdder positivos = new LongAdder();
+
+	private final LongAdder falsosPositivos = new LongAdder();
+
+	//------------------
+
+	@PostConstruct
+	void iniciar() {
+
+		FunctionCounter.builder("bricolaje.usuarios.filtro.dni.consultas.evitadas", consultasEvitadas, LongAdder::sum)
+				.description("Comprobaciones de DNI resueltas sin consultar la BBDD").register(meterRegistry);
+		FunctionCounter.builder("bricolaje.usuarios.filtro.dni.positivos", positivos, LongAdder::sum)
+				.description("Comprobaciones de DNI que el filtro envió a la BBDD").register(meterRegistry);
+		FunctionCounter.builder("bricolaje.usuarios.filtro.dni.falsos.positivos", falsosPositivos, LongAdder::sum)
+				.description("Comprobaciones enviadas a la BBDD cuyo DNI no existía").register(meterRegistry);
+
+		planificador = Executors.newSingleThreadScheduledExecutor(tarea -> {
+
+			Thread hilo = new Thread(tarea, "filtro-dni-usuarios");
+
+			hilo.setDaemon(true);
+
+			return hilo;
+		});
+
+		planificador.scheduleWithFixedDelay(this::reconstruir, 0, periodoReconstruccionMinutos, TimeUnit.MINUTES);
+	}
+
+
+	@PreDestroy
+	void detener() {
+
+		planificador.shutdownNow();
+	}
+
+
+	/**
+	 * Método que indica si un DNI puede estar registrado
+	 * @param dni Recibe el DNI a comprobar
+	 * @return Devuelve false si es seguro que el DNI no está registrado y true si hay que confirmarlo en la BBDD
+	 */
+	public boolean puedeExistir(String dni) {
+
+		Filtro actual = filtro;
+
+		if (actual == null || dni == null) {
+
+			return true;
+		}
+
+		if (!actual.contiene(dni)) {
+
+			consultasEvitadas.increment();
+
+			return false;
+		}
+
+		positivos.increment();
+
+		return true;
+	}
+
+
+	/**
+	 * Método que anota el resultado de la consulta a la BBDD hecha tras un positivo del filtro
+	 * @param existe Recibe si la BBDD encontró el DNI
+	 */
+	public void registrarResultado(boolean existe) {
+
+		if (!existe && filtro != null) {
+
+			falsosPositivos.increment();
+		}
+	}
+
+
+	/**
+	 * Método que añade un DNI recién registrado. Se puede llamar antes de confirmar la transacción: si se deshace
+	 * solo queda un falso positivo hasta la siguiente reconstrucción
+	 * @param dni Recibe el DNI registrado
+	 */
+	public void agregar(String dni) {
+
+		if (dni == null) {
+
+			return;
+		}
+
+		recientes.add(dni);
+
+		Filtro actual = filtro;
+
+		if (actual != null) {
+
+			actual.agregar(dni);
+		}
+	}
+
+
+	public long getConsultasEvitadas() {
+
+		return consultasEvitadas.sum();
+	}
+
+
+	public long getFalsosPositivos() {
+
+		return falsosPositivos.sum();
+	}
+
+
+	/**
+	 * Método que construye un filtro nuevo leyendo todos los DNI por bloques y lo publica sustituyendo al actual
+	 */
+	public synchronized void reconstruir() {
+
+		try {
+
+			long registrados = entityManager.createQuery("select count(u) from Usuario u", Long.class).getSingleResult();
+
+			//Dimensionamos con margen para que las altas hasta la próxima reconstrucción no degraden el filtro
+			Filtro nuevo = new Filtro(Math.max(elementosEsperados, registrados + registrados / 2), probabilidadFalsoPositivo);
+
+			anteriores = recientes;
+			recientes = ConcurrentHashMap.newKeySet();
+
+			int ultimoId = 0;
+			List<Object[]> filas;
+
+			do {
+
+				filas = entityManager.createQuery(CONSULTA_DNIS_DESDE_ID, Object[].class)
+						.setParameter("ultimoId", ultimoId)
+						.setMaxResults(TAMANIO_BLOQUE)
+						.getResultList();
+
+				for (Object[] fila : filas) {
+
+					if (fila[1] != null) {
+
+						nuevo.agregar((String) fila[1]);
+					}
+
+					ultimoId = (Integer) fila[0];
+				}
+
+			} while (filas.size() == TAMANIO_BLOQUE);
+
+			volcarRecientes(nuevo);
+
+			filtro = nuevo;
+
+			//Las altas que llegaron entre el volcado y la publicación solo se apuntaron en el filtro anterior
+			volcarRecientes(nuevo);
+
+		} catch (RuntimeException e) {
+
+			//Si falla, seguimos con el filtro anterior (o sin filtro) hasta el siguiente intento
+			LOGGER.warn("No se ha podido reconstruir el filtro de DNI de Usuarios", e);
+		}
+	}
+
+
+	private void volcarRecientes(Filtro nuevo) {
+
+		for (String dni : anteriores) {
+
+			nuevo.agregar(dni);
+		}
+
+		for (String dni : recientes) {
+
+			nuevo.agregar(dni);
+		}
+	}
+
+
+	/**
+	 * Filtro de Bloom sobre un AtomicLongArray, de forma que las altas concurrentes no necesitan bloqueos
+	 */
+	private static final class Filtro {
+
+		private final AtomicLongArray bits;
+
+		private final long numeroBits;
+
+		private final int numeroFunciones;
+
+		Filtro(long elementos, double probabilidadFalsoPositivo) {
+
+			long m = (long) Math.ceil(-elementos * Math.log(probabilidadFalsoPositivo) / (Math.log(2) * Math.log(2)));
+
+			numeroBits = Math.max(64, (m + 63) / 64 * 64);
+			numeroFunciones = Math.max(1, (int) Math.round((double) numeroBits / elementos * Math.log(2)));
+
+			bits = new AtomicLongArray((int) (numeroBits / 64));
+		}
+
+		void agregar(String dni) {
+
+			long hash = dispersar(dni);
+
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32);
+
+			for (int i = 1; i <= numeroFunciones; i++) {
+
+				long bit = Math.floorMod(h1 + (long) i * h2, numeroBits);
+
+				int palabra = (int) (bit >>> 6);
+				long mascara = 1L << bit;
+
+				long anterior;
+
+				do {
+
+					anterior = bits.get(palabra);
+
+				} while ((anterior & mascara) == 0 && !bits.compareAndSet(palabra, anterior, anterior | mascara));
+			}
+		}
+
+		boolean contiene(String dni) {
+
+			long hash = dispersar(dni);
+
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32);
+
+			for (int i = 1; i <= numeroFunciones; i++) {
+
+				long bit = Math.floorMod(h1 + (long) i * h2, numeroBits);
+
+				if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		/**
+		 * FNV-1a de 64 bits seguido de una mezcla final, para obtener dos hashes independientes de 32 bits
+		 */
+		private static long dispersar(String texto) {
+
+			long hash = 0xcbf29ce484222325L;
+
+			for (int i = 0; i < texto.length(); i++) {
+
+				hash ^= texto.charAt(i);
+				hash *= 0x100000001b3L;
+			}
+
+			hash ^= hash >>> 33;
+			hash *= 0xff51afd7ed558ccdL;
+			hash ^= hash >>> 33;
+
+			return hash;
+		}
+	}
+}
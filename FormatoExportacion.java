@@ -0,0 +1,17 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+/**
+ * Formatos admitidos en las exportaciones en streaming
+ */
+public enum FormatoExportacion {
+
+	/** Un objeto JSON por línea */
+	NDJSON,
+
+	/** Valores separados por comas con una línea de cabecera (RFC 4180) */
+	CSV
+}
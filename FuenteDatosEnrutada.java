@@ -0,0 +1,111 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.util.function.Supplier;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+/**
+ * DataSource que entrega conexiones de la BBDD primaria o de la réplica de lectura según el destino fijado en el
+ * hilo actual por EnrutamientoLecturaAspect. Sin destino fijado, por ejemplo en hilos de fondo, se usa la primaria.
+ * Debe envolverse en un LazyConnectionDataSourceProxy para que la conexión se pida al ejecutar la primera
+ * sentencia y no al empezar la transacción, cuando el destino puede no estar fijado todavía.
+ * Lo leído de la réplica puede ir por detrás de la primaria, así que no debe guardarse en cachés ni índices
+ * compartidos: se comprueba con isLecturaReplica(), o la carga se hace con enPrimaria().
+ */
+public class FuenteDatosEnrutada extends AbstractRoutingDataSource {
+
+	/**
+	 * BBDD a la que se envían las sentencias
+	 */
+	public enum Destino {
+		PRIMARIA, REPLICA
+	}
+
+	private static final ThreadLocal<Destino> DESTINO = new ThreadLocal<>();
+
+	//------------------
+
+	/**
+	 * Método que fija el destino de las conexiones que se pidan en el hilo actual
+	 * @param destino Recibe el destino, o null para volver al destino por defecto
+	 * @return Devuelve el destino anterior, que debe restaurarse al terminar
+	 */
+	static Destino fijarDestino(Destino destino) {
+
+		Destino anterior = DESTINO.get();
+
+		if (destino != null) {
+
+			DESTINO.set(destino);
+
+		}else {
+
+			DESTINO.remove();
+		}
+
+		return anterior;
+	}
+
+
+	/**
+	 * @return El destino fijado en el hilo actual o null si no hay ninguno
+	 */
+	static Destino getDestino() {
+
+		return DESTINO.get();
+	}
+
+
+	/**
+	 * @return true si las sentencias del hilo actual van a la réplica
+	 */
+	static boolean isLecturaReplica() {
+
+		return DESTINO.get() == Destino.REPLICA;
+	}
+
+
+	/**
+	 * Método que ejecuta una lectura contra la primaria aunque el hilo actual esté enrutado a la réplica
+	 * @param lectura Recibe la lectura
+	 * @return Devuelve el resultado de la lectura
+	 */
+	static <T> T enPrimaria(Supplier<T> lectura) {
+
+		Destino anterior = fijarDestino(Destino.PRIMARIA);
+
+		try {
+
+			return lectura.get();
+
+		} finally {
+
+			fijarDestino(anterior);
+		}
+	}
+
+
+	/**
+	 * @see #enPrimaria(Supplier)
+	 */
+	static void enPrimaria(Runnable lectura) {
+
+		enPrimaria(() -> {
+
+			lectura.run();
+
+			return null;
+		});
+	}
+
+
+	@Override
+	protected Object determineCurrentLookupKey() {
+
+		return DESTINO.get();
+	}
+}
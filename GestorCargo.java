@@ -7,6 +7,8 @@ package com.myapp.bricolaje.model.service;
 import java.util.List;
 import java.util.Optional;
 
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 import javax.transaction.Transactional;
 
 import org.springframework.beans.factory.annotation.Autowired;
@@ -20,6 +22,27 @@ public class GestorCargo {
 
 	@Autowired
 	private ICargoDao cargoDao;
+	
+	@Autowired
+	private OutboxCambios outbox;
+	
+	@PersistenceContext
+	private EntityManager entityManager;
+
+	private final CatalogoReferencia<Cargo> catalogoCargos = new CatalogoReferencia<>("cargos", () -> cargoDao.findAll(), Cargo::getIdCargo);
+
+	//Índice de trigramas sobre la descripción, reconstruido cada vez que cambia la instantánea del catálogo
+	private volatile IndiceTrigramas<Cargo> indiceDescripciones;
+
+	//Una sola sentencia: el número de filas afectadas indica si el Cargo existe
+	private static final String ACTUALIZACION_CARGO = "update Cargo c set c.descripcion = :descripcion where c.idCargo = :idCargo";
+
+	//Códigos de agregarCargo(); la existencia del Cargo se comprueba en último lugar
+	private final ReglasValidacion<Cargo> reglasAlta = ReglasValidacion.<Cargo>definir()
+			.enMemoria(1, cargo -> cargo.getIdCargo() == 0)
+			.enMemoria(2, cargo -> cargo.getDescripcion() == null || cargo.getDescripcion().isEmpty())
+			.enBbdd(4, cargo -> cargoDao.existsById(cargo.getIdCargo()))
+			.compilar();
 
 	
 	//--------------
@@ -35,38 +58,29 @@ public class GestorCargo {
 	 */
 	@Transactional
 	public int agregarCargo(Cargo cargo) {
-		//Procedemos a validar el objeto antes de persistirlo.
+		//Procedemos a validar el objeto antes de persistirlo: id, descripcion y, por último, si existe previamente
+		int resultadoValidacion = reglasAlta.evaluar(cargo);
 		
-		if (cargo.getIdCargo() == 0) {
-				
-			return 1;
+		if (resultadoValidacion != 0) {
 			
-		}else if ((cargo.getDescripcion() != null) || (!cargo.getDescripcion().isEmpty())) {	
+			return resultadoValidacion;
+		}
+		
+		//Para estar seguros de que la persistencia fue completada correctamente dado que no tenemos forma
+		//de asegurar que no ha habido un fallo en la conexión o la BBDD ha generado un error.
+		Optional<Cargo> optCargo = Optional.of(cargoDao.save(cargo));
+		
+		if (optCargo.isPresent()) {
 			
-			//Antes de persistir el nuevo objeto, verificamos si no existe previamente		
-			if (buscarCargo(cargo.getIdCargo())) {
-				
-				return 4; //Ya existe un Cargo igual en la BBDD
-				
-			}else {
+			outbox.registrar(Cargo.class, optCargo.get().getIdCargo(), OperacionCambio.ALTA);
 			
-				//Para estar seguros de que la persistencia fue completada correctamente dado que no tenemos forma
-				//de asegurar que no ha habido un fallo en la conexión o la BBDD ha generado un error.
-				Optional<Cargo> optCargo = Optional.of(cargoDao.save(cargo));
-				
-				if (optCargo.isPresent()) {
-					
-					return 0; //Persistido correctamente
-				
-				}else {
-					
-					return 3; //Ha habido un fallo en la persistencia del cargo
-				}
-			}
+			catalogoCargos.recargarTrasCommit();
 			
-		} else {
+			return 0; //Persistido correctamente
+		
+		}else {
 			
-			return 2; // Descripcion es null
+			return 3; //Ha habido un fallo en la persistencia del cargo
 		}
 	}
 	
@@ -76,18 +90,10 @@ public class GestorCargo {
 	 * @return Devuelve true si existe y false sino lo encuentra en la BBDD.
 	 */
 	@Transactional
+	@PresupuestoConsultas(1)
 	public boolean buscarCargo(int idCargo) {
 	
-		Optional<Cargo> optCargo = cargoDao.findById(idCargo);
-		
-		//Evaluamos el objeto si tiene contendio
-		if (optCargo.isPresent()){
-			
-			return true; //Encuentra el id
-			
-		}
-		
-		return false; //No consigue el id suministrado
+		return catalogoCargos.contiene(idCargo);
 	}
 	
 	
@@ -96,17 +102,12 @@ public class GestorCargo {
 	 * @param idCargo	Recibe el Id del Cargo
 	 * @return	Devuelve el objeto Cargo si lo encuentra, sino null
 	 */
+	@PresupuestoConsultas(1)
 	public Cargo obtenerCargo(int idCargo) {
 		
 		if (idCargo != 0) {
 			
-			Optional<Cargo> optCargo = cargoDao.findById(idCargo);
-			
-			if (optCargo.isPresent()) {
-				
-				return optCargo.orElse(null);
-				
-			}
+			return catalogoCargos.obtener(idCargo);
 			
 		}
 		
@@ -140,10 +141,14 @@ public class GestorCargo {
 		
 		if (idCargo != 0) {
 			
-			//Buscamos antes si el id existe 
-			if (buscarCargo(idCargo)) {
+			//Buscamos antes si el id existe, en la BBDD y no en el catálogo
+			if (cargoDao.existsById(idCargo)) {
 		
 				cargoDao.deleteById(idCargo);
+				
+				outbox.registrar(Cargo.class, idCargo, OperacionCambio.BAJA);
+				
+				catalogoCargos.recargarTrasCommit();
 			
 				return 0;
 			
@@ -159,63 +164,66 @@ public class GestorCargo {
 	
 		
 	/**
-	 * Método para modificar atributo descripcion del objeto Cargo
-	 * @param cargo Se recibo el objeto Cargo completo ya que debemos pasar el id y su descripcion al invocar el método Save para que haga
-	 * la actualizacion. Si pasamos solo la descripcion, el id que es autoincremnet en la BBDD creará un nuevo Cargo con descripción repetida.
+	 * Método para modificar atributo descripcion del objeto Cargo con una única sentencia UPDATE
+	 * @param cargo Se recibe el objeto Cargo completo ya que necesitamos su id y su nueva descripcion
 	 * @return 	Devuelvo cero si fue OK
 	 * 			1 si el id recibido es cero
 	 * 			2 si no encuentra el id en la BBDD
-	 * 			3 si ha habido un fallo intentando persistir y efectual el update del objeto
 	 */
 	@Transactional
 	public int modificarCargo(Cargo cargo) {
 		
-		//Validamos antes que existe y que lo encuentra antes de modificarlo
-		if (cargo.getIdCargo() != 0) {
-			
-			if(buscarCargo(cargo.getIdCargo())) {
-				
-				//Al pasar el objeto con su Id el objeto es actualizado en la BBDD.
-				Optional<Cargo> optCargo = Optional.of(cargoDao.save(cargo));
-				
-				if (optCargo.isPresent()) {
-					
-					return 0; //modificado correctamente
-				
-				}else {
-					
-					return 3; //Ha habido un fallo en la actualizacion del objeto cargo
-				}
-				
-			}else {
-				
-				return 2; //No encuentra el id en la BBDD
-			}
-			
-		}else {
+		if (cargo.getIdCargo() == 0) {
 			
 			return 1; //El id recibido es cero.
 		}
+		
+		//El número de filas actualizadas nos dice si existía, sin consultarlo antes
+		int actualizados = entityManager.createQuery(ACTUALIZACION_CARGO)
+				.setParameter("descripcion", cargo.getDescripcion())
+				.setParameter("idCargo", cargo.getIdCargo())
+				.executeUpdate();
+		
+		if (actualizados == 0) {
+			
+			return 2; //No encuentra el id en la BBDD
+		}
+		
+		outbox.registrar(Cargo.class, cargo.getIdCargo(), OperacionCambio.MODIFICACION);
+		
+		catalogoCargos.recargarTrasCommit();
+		
+		return 0; //modificado correctamente
 	}
 	
 	/**
 	 * Método que devuelve una lista de cargo
-	 * @return Lista de Cargos
+	 * @return Lista inmutable de Cargos
 	 */
 	public List<Cargo> listarCargos() {
 		
-		return cargoDao.findAll();
+		return catalogoCargos.listar();
+	}
+	
+	
+	/**
+	 * @return El catálogo en memoria de Cargos, con sus contadores de aciertos, fallos y recargas
+	 */
+	public CatalogoReferencia<Cargo> getCatalogoCargos() {
+		
+		return catalogoCargos;
 	}
 	
 	
 	/**
-	 * Método que busca todos los cargos que comiencen por la descripcion suministrada
-	 * @param descripcion	Recibe la descripción por la que deben comenzar todos los cargos.
-	 * @return	Lista de los cargos conseguidos que comiencen por la descripcion suministrada
+	 * Método que busca todos los cargos cuya descripcion sea igual a la suministrada, sin distinguir mayúsculas
+	 * @param descripcion	Recibe la descripción completa que deben tener los cargos.
+	 * @return	Lista de los cargos cuya descripcion coincide exactamente con la suministrada
 	 */
 	public List<Cargo> listCargosDescripcionExacta(String descripcion){
 		
-		return cargoDao.findByDescripcionExacta(descripcion.toUpperCase());
+		//El índice contiene las entidades compartidas del catálogo, así que se devuelven copias
+		return CopiaEntidades.copiar(indiceDescripciones().buscarIguales(descripcion));
 	}
 	
 	
@@ -226,6 +234,38 @@ public class GestorCargo {
 	 */
 	public List<Cargo> listarCargoQueContengaDescripcion(String descripcion){
 		
-		return cargoDao.findByQueContengaDescripcion(descripcion.toUpperCase());
+		return CopiaEntidades.copiar(indiceDescripciones().buscarQueContenga(descripcion, 0));
+	}
+	
+	
+	/**
+	 * Método que proporciona los cargos que mejor coinciden con la descripcion proporcionada, pensado para búsquedas
+	 * mientras se escribe
+	 * @param descripcion	Recibe la descripción por la que se buscará las coincidencias
+	 * @param maximo	Recibe el número máximo de cargos a devolver
+	 * @return	Retorna los cargos cuya descripción contiene la buscada, primero aquellos en los que aparece más al
+	 * 			principio y, a igualdad, los de descripción más corta
+	 */
+	public List<Cargo> listarCargoQueContengaDescripcion(String descripcion, int maximo){
+		
+		return CopiaEntidades.copiar(indiceDescripciones().buscarQueContenga(descripcion, maximo));
+	}
+	
+	
+	private IndiceTrigramas<Cargo> indiceDescripciones() {
+		
+		List<Cargo> cargos = catalogoCargos.listarCompartidas();
+		
+		IndiceTrigramas<Cargo> indice = indiceDescripciones;
+		
+		//Cada recarga del catálogo publica una lista nueva, así que basta con comparar referencias
+		if (indice == null || indice.getOrigen() != cargos) {
+			
+			indice = new IndiceTrigramas<>(cargos, Cargo::getDescripcion);
+			
+			indiceDescripciones = indice;
+		}
+		
+		return indice;
 	}
 }
@@ -4,24 +4,163 @@
  */
 package com.myapp.bricolaje.model.service;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
-
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+import javax.transaction.Transactional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+
 import com.myapp.bricolaje.model.persistency.IDireccionDao;
 import com.myapp.bricolaje.model.repo.Direccion;
 
 @Service
 public class GestorDireccion {
 
+	private static final Logger LOGGER = LoggerFactory.getLogger(GestorDireccion.class);
+	
 	@Autowired
 	private IDireccionDao direccionDao;
+	
+	@Autowired
+	private OutboxCambios outbox;
+	
+	//Su caché guarda cada Usuario con su Direccion
+	@Autowired
+	private GestorUsuario gestorUsuario;
+	
+	@PersistenceContext
+	private EntityManager entityManager;
+	
+	/**
+	 * Activa el índice en memoria de direcciones por código postal, localidad y provincia. Las altas y bajas de
+	 * este nodo se aplican al confirmarse; las de otros nodos solo al reconstruirlo periódicamente
+	 */
+	@Value("${bricolaje.direcciones.indice.habilitado:false}")
+	private boolean indiceHabilitado;
+	
+	/** Máxima antigüedad del índice frente a los cambios hechos desde otros nodos; 0 deshabilita la reconstrucción */
+	@Value("${bricolaje.direcciones.indice.periodo-reconstruccion-minutos:10}")
+	private long periodoReconstruccionIndice;
+	
+	private volatile IndiceDirecciones indice = new IndiceDirecciones();
+	
+	//Índice que se está leyendo de la BBDD para sustituir al actual; también recibe los cambios confirmados mientras tanto
+	private volatile IndiceDirecciones indiceEnReconstruccion;
+	
+	private ScheduledExecutorService planificadorIndice;
+	
+	@Autowired
+	private MeterRegistry meterRegistry;
+	
+	@Value("${bricolaje.direcciones.cache-negativa.capacidad:10000}")
+	private int capacidadCacheNegativa;
+	
+	@Value("${bricolaje.direcciones.cache-negativa.segundos-vida:60}")
+	private long segundosVidaCacheNegativa;
+	
+	//Ids que buscarDireccion() y obtenerDireccion() no encontraron hace poco; solo la usan esas dos lecturas
+	private CacheNegativa cacheNegativa;
+	
+	//Códigos de validarIntegridadDatos(); la existencia del id es la única regla que consulta la BBDD, y lo hace
+	//sin pasar por la caché negativa, que puede no conocer las direcciones creadas por otros nodos
+	private final ReglasValidacion<Direccion> reglasValidacion = ReglasValidacion.<Direccion>definir()
+			.enMemoria(1, direccion -> direccion.getIdDireccion() == 0)
+			.enMemoria(2, direccion -> direccion.getCalleAvenida() == null || direccion.getCalleAvenida().isEmpty())
+			.enMemoria(3, direccion -> direccion.getNumero() == null)
+			.enMemoria(4, direccion -> direccion.getPlanta() == null || direccion.getPlanta().isEmpty())
+			.enMemoria(5, direccion -> direccion.getPuerta() == null || direccion.getPuerta().isEmpty())
+			.enMemoria(6, direccion -> direccion.getLocalidad() == null || direccion.getLocalidad().isEmpty())
+			.enMemoria(7, direccion -> direccion.getProvincia() == null || direccion.getProvincia().isEmpty())
+			.enMemoria(9, direccion -> direccion.getCodigoPostal() == 0)
+			.enMemoria(10, direccion -> direccion.getTipoDireccion() == null || direccion.getTipoDireccion().getIdTipoDireccion() == 0)
+			.enBbdd(8, direccion -> direccionDao.existsById(direccion.getIdDireccion()))
+			.compilar();
+	
+	/** Número máximo de valores por cláusula IN y de filas por bloque en las lecturas por bloques */
+	static final int MAXIMO_PARAMETROS_IN = 1000;
+	
+	/** Filas que el driver JDBC trae de la BBDD en cada viaje durante las exportaciones */
+	@Value("${bricolaje.direcciones.exportacion.fetch-size:1000}")
+	private int tamanioFetchExportacion;
+	
+	private static final String[] COLUMNAS_EXPORTACION = { "idDireccion", "calleAvenida", "numero", "planta", "puerta", "localidad",
+			"provincia", "codigoPostal", "idTipoDireccion" };
+	
+	//Una sola sentencia: el número de filas afectadas indica si la Direccion existe
+	private static final String ACTUALIZACION_DIRECCION = "update Direccion d set d.calleAvenida = :calleAvenida, d.numero = :numero, "
+			+ "d.planta = :planta, d.puerta = :puerta, d.localidad = :localidad, d.provincia = :provincia, "
+			+ "d.codigoPostal = :codigoPostal, d.tipoDireccion = :tipoDireccion where d.idDireccion = :idDireccion";
+	
+	private static final String BORRADO_DIRECCIONES = "delete from Direccion d where d.idDireccion in :ids";
+	
+	private static final String CONSULTA_CLAVES_DESDE_ID = "select d.idDireccion, d.codigoPostal, d.localidad, d.provincia from Direccion d "
+			+ "where d.idDireccion > :ultimoId order by d.idDireccion";
 
 
 	//-------------------
 	
+	@PostConstruct
+	void iniciar() {
+		
+		cacheNegativa = new CacheNegativa("direccion", capacidadCacheNegativa, segundosVidaCacheNegativa);
+		
+		FunctionCounter.builder("bricolaje.cache.negativa.aciertos", cacheNegativa, CacheNegativa::getAciertos)
+				.tag("entidad", cacheNegativa.getEntidad()).register(meterRegistry);
+		FunctionCounter.builder("bricolaje.cache.negativa.fallos", cacheNegativa, CacheNegativa::getFallos)
+				.tag("entidad", cacheNegativa.getEntidad()).register(meterRegistry);
+		
+		if (indiceHabilitado && periodoReconstruccionIndice > 0) {
+			
+			planificadorIndice = Executors.newSingleThreadScheduledExecutor(tarea -> {
+				
+				Thread hilo = new Thread(tarea, "indice-direcciones");
+				
+				hilo.setDaemon(true);
+				
+				return hilo;
+			});
+			
+			planificadorIndice.scheduleWithFixedDelay(this::reconstruirIndicePlanificado, periodoReconstruccionIndice,
+					periodoReconstruccionIndice, TimeUnit.MINUTES);
+		}
+	}
+	
+	
+	@PreDestroy
+	void detener() {
+		
+		if (planificadorIndice != null) {
+			
+			planificadorIndice.shutdownNow();
+		}
+	}
+	
+	
 	/**
 	 * Método que agrega nuevas direcciones a la BBDD
 	 * @param direccion Recibe el objeto Direccion para ser validado 
@@ -38,6 +177,7 @@ public class GestorDireccion {
 	 * 			10 si el tipo de direccion es cero
 	 * 			11 Ha habido un fallo intentando persistir la nueva direccion en la BBDD
 	 */
+	@Transactional
 	public int agregarDireccion(Direccion direccion) {
 		
 		int resultadoValidacion = validarIntegridadDatos(direccion);
@@ -48,6 +188,12 @@ public class GestorDireccion {
 
 			if (optDireccion.isPresent()){
 
+				olvidarAusencia(direccion.getIdDireccion());
+
+				outbox.registrar(Direccion.class, direccion.getIdDireccion(), OperacionCambio.ALTA);
+
+				indexarTrasCommit(direccion);
+
 				return 0; //Se ha persistido la nueva direccion correctamente
 
 			}else {
@@ -61,47 +207,66 @@ public class GestorDireccion {
 	
 	
 	/**
-	 * Método para actualizar un objeto del tipo Direccion
+	 * Método para actualizar un objeto del tipo Direccion con una única sentencia UPDATE, sin leerlo antes.
+	 * Las entidades ya cargadas en el contexto de persistencia actual no reflejan el cambio
 	 * @param direccion Recibe el objeto direccion a modificar
 	 * @return 	Devuelve 0 si fue actualizado correctamente
 	 * 			Devuelve 1 si no lo encuentra para su actualización
 	 * 			Devuelve resultadoValidacion conjunto de error producto de la validacion de los atributos del objeto Direccion 
 	 * 			suministrado por parámetro
 	 */
+	@Transactional
 	public int actualizarDireccion(Direccion direccion) {
 		
-		int resultadoValidacion = validarIntegridadDatos(direccion);
+		//La existencia la comprueba el propio UPDATE, así que solo se aplican las reglas en memoria
+		int resultadoValidacion = reglasValidacion.evaluarEnMemoria(direccion);
 		
-		if (resultadoValidacion == 0) {
+		if (resultadoValidacion != 0) {
 			
-			Optional<Direccion> optDireccion = direccionDao.findById(direccion.getIdDireccion());
+			return resultadoValidacion;
+		}
+		
+		int actualizadas = entityManager.createQuery(ACTUALIZACION_DIRECCION)
+				.setParameter("calleAvenida", direccion.getCalleAvenida())
+				.setParameter("numero", direccion.getNumero())
+				.setParameter("planta", direccion.getPlanta())
+				.setParameter("puerta", direccion.getPuerta())
+				.setParameter("localidad", direccion.getLocalidad())
+				.setParameter("provincia", direccion.getProvincia())
+				.setParameter("codigoPostal", direccion.getCodigoPostal())
+				.setParameter("tipoDireccion", direccion.getTipoDireccion())
+				.setParameter("idDireccion", direccion.getIdDireccion())
+				.executeUpdate();
+		
+		if (actualizadas == 0) {
 			
-			if (optDireccion.isPresent()) {
-				
-				direccion.setIdDireccion(optDireccion.get().getIdDireccion());
-				
-				direccionDao.save(direccion);
-				
-				return 0;
-				
-			}else {
-				
-				return 1; //No se encuentra el objeto solicitado
-				
-			}
+			return 1; //No se encuentra el objeto solicitado
 		}
 		
-		return resultadoValidacion;
+		outbox.registrar(Direccion.class, direccion.getIdDireccion(), OperacionCambio.MODIFICACION);
+		
+		gestorUsuario.olvidarUsuariosConDirecciones(Collections.singletonList(direccion.getIdDireccion()));
+		
+		indexarTrasCommit(direccion);
+		
+		return 0;
 	}
 	
 	
 	/**
-	 * Método que busca si exsite una Direccion
+	 * Método que busca si exsite una Direccion. Una Direccion creada por otro nodo puede darse por inexistente
+	 * durante la vida de la caché negativa, por eso las altas y bajas comprueban la existencia en la BBDD
 	 * @param idDireccion Recibe el id de la dirección a buscar
 	 * @return Devuelve true si la consige y false si no existe
 	 */
+	@PresupuestoConsultas(1)
 	public boolean buscarDireccion(int idDireccion) {
 		
+		if (cacheNegativa.isAusente(idDireccion)) {
+			
+			return false; //Se ha buscado hace poco y no existía
+		}
+		
 		Optional<Direccion> optDireccion = direccionDao.findById(idDireccion);
 		
 		if (optDireccion.isPresent()){
@@ -109,10 +274,46 @@ public class GestorDireccion {
 			return true;
 			
 		}
+		
+		anotarAusencia(idDireccion);
+		
 		return false;
 	}
 	
 	
+	/**
+	 * Método que obtiene una Direccion por su id
+	 * @param idDireccion Recibe el id de la Direccion
+	 * @return Devuelve la Direccion o null si no existe
+	 */
+	@PresupuestoConsultas(1)
+	public Direccion obtenerDireccion(int idDireccion) {
+		
+		if (idDireccion == 0 || cacheNegativa.isAusente(idDireccion)) {
+			
+			return null;
+		}
+		
+		Optional<Direccion> optDireccion = direccionDao.findById(idDireccion);
+		
+		if (!optDireccion.isPresent()) {
+			
+			anotarAusencia(idDireccion);
+		}
+		
+		return optDireccion.orElse(null);
+	}
+	
+	
+	/**
+	 * @return La caché de ids de Direccion inexistentes, con sus contadores de aciertos y fallos
+	 */
+	public CacheNegativa getCacheNegativa() {
+		
+		return cacheNegativa;
+	}
+	
+	
 	/**
 	 * Método que busca si una direccion existe
 	 * @param idDireccion Recibe el id de la Direccion
@@ -120,14 +321,24 @@ public class GestorDireccion {
 	 * 			1 si el id recibido es cero
 	 * 			2 si el id recibuido no se existe BBDD
 	 */
+	@Transactional
 	public int eliminarDireccion(int idDireccion) {
 		
 		if (idDireccion != 0) {
 			
-			//Buscamos antes si el id existe 
-			if (buscarDireccion(idDireccion)) {
+			//Buscamos antes si el id existe, en la BBDD y no en la caché negativa
+			if (direccionDao.existsById(idDireccion)) {
 		
 				direccionDao.deleteById(idDireccion);
+				
+				outbox.registrar(Direccion.class, idDireccion, OperacionCambio.BAJA);
+				
+				gestorUsuario.olvidarUsuariosConDirecciones(Collections.singletonList(idDireccion));
+				
+				if (indiceHabilitado) {
+					
+					TrasCommit.ejecutar(() -> desindexar(idDireccion));
+				}
 			
 				return 0;
 			
@@ -142,6 +353,73 @@ public class GestorDireccion {
 	}
 	
 	
+	/**
+	 * Método que elimina de una vez un conjunto de direcciones, con una sentencia DELETE por cada
+	 * MAXIMO_PARAMETROS_IN ids dentro de una única transacción. Las sentencias no pasan por el contexto de
+	 * persistencia, por lo que no se aplican cascadas de JPA ni se desvinculan las entidades ya cargadas
+	 * @param idsDireccion Recibe los ids de las direcciones a eliminar; los que no existen se ignoran
+	 * @return Devuelve el número de direcciones eliminadas
+	 */
+	@Transactional
+	@DevuelveRecuento
+	public int eliminarDirecciones(List<Integer> idsDireccion) {
+		
+		List<Integer> existentes = new ArrayList<>(idsDireccion.size());
+		
+		//Solo se anotan en el registro de cambios las direcciones que existían; se bloquean para que ninguna otra
+		//transacción las elimine antes que nosotros
+		for (int desde = 0; desde < idsDireccion.size(); desde += MAXIMO_PARAMETROS_IN) {
+			
+			existentes.addAll(entityManager.createQuery("select d.idDireccion from Direccion d where d.idDireccion in :ids", Integer.class)
+					.setParameter("ids", idsDireccion.subList(desde, Math.min(desde + MAXIMO_PARAMETROS_IN, idsDireccion.size())))
+					.setLockMode(LockModeType.PESSIMISTIC_WRITE)
+					.getResultList());
+		}
+		
+		return eliminarExistentes(existentes);
+	}
+	
+	
+	/**
+	 * Método que elimina todas las direcciones de un código postal. Ver eliminarDirecciones()
+	 * @param codigoPostal Recibe el código postal
+	 * @return Devuelve el número de direcciones eliminadas
+	 */
+	@Transactional
+	@DevuelveRecuento
+	public int eliminarDireccionesPorCodigoPostal(int codigoPostal) {
+		
+		//Los ids se leen de la BBDD y no del índice, que puede no conocer las direcciones creadas por otros nodos
+		return eliminarExistentes(buscarIds("codigoPostal", codigoPostal));
+	}
+	
+	
+	/**
+	 * Método que elimina todas las direcciones de una localidad. Ver eliminarDirecciones()
+	 * @param localidad Recibe la localidad
+	 * @return Devuelve el número de direcciones eliminadas
+	 */
+	@Transactional
+	@DevuelveRecuento
+	public int eliminarDireccionesPorLocalidad(String localidad) {
+		
+		return eliminarExistentes(buscarIds("localidad", localidad));
+	}
+	
+	
+	/**
+	 * Método que elimina todas las direcciones de una provincia. Ver eliminarDirecciones()
+	 * @param provincia Recibe la provincia
+	 * @return Devuelve el número de direcciones eliminadas
+	 */
+	@Transactional
+	@DevuelveRecuento
+	public int eliminarDireccionesPorProvincia(String provincia) {
+		
+		return eliminarExistentes(buscarIds("provincia", provincia));
+	}
+	
+	
 	/**
 	 * Método que lista todas las direcciones
 	 * @return Una lista de direcciones
@@ -152,6 +430,82 @@ public class GestorDireccion {
 	}
 	
 	
+	/**
+	 * Método que exporta direcciones en streaming. Se leen solo columnas escalares con un cursor de solo avance,
+	 * por lo que no se cargan entidades en el contexto de persistencia y la memoria necesaria no depende del
+	 * número de direcciones exportadas
+	 * @param salida Recibe el flujo donde escribir; no se cierra al terminar
+	 * @param formato Recibe el formato de la exportación, NDJSON o CSV
+	 * @param provincia Recibe la provincia por la que filtrar, o null para no filtrar
+	 * @param codigoPostal Recibe el código postal por el que filtrar, o null para no filtrar
+	 * @return Devuelve el número de direcciones exportadas
+	 * @throws IOException si falla la escritura en el flujo de salida
+	 */
+	@Transactional
+	public long exportarDirecciones(OutputStream salida, FormatoExportacion formato, String provincia, Integer codigoPostal) throws IOException {
+		
+		StringBuilder jpql = new StringBuilder("select d.idDireccion, d.calleAvenida, d.numero, d.planta, d.puerta, d.localidad, "
+				+ "d.provincia, d.codigoPostal, t.idTipoDireccion from Direccion d left join d.tipoDireccion t where 1 = 1");
+		
+		if (provincia != null) {
+			
+			jpql.append(" and d.provincia = :provincia");
+		}
+		
+		if (codigoPostal != null) {
+			
+			jpql.append(" and d.codigoPostal = :codigoPostal");
+		}
+		
+		TypedQuery<Object[]> consulta = entityManager.createQuery(jpql.append(" order by d.idDireccion").toString(), Object[].class)
+				.setHint("org.hibernate.fetchSize", tamanioFetchExportacion)
+				.setHint("org.hibernate.readOnly", true);
+		
+		if (provincia != null) {
+			
+			consulta.setParameter("provincia", provincia);
+		}
+		
+		if (codigoPostal != null) {
+			
+			consulta.setParameter("codigoPostal", codigoPostal);
+		}
+		
+		EscritorExportacion escritor = new EscritorExportacion(salida, formato, COLUMNAS_EXPORTACION);
+		
+		escritor.escribirCabecera();
+		
+		long exportadas = 0;
+		
+		try (Stream<Object[]> filas = consulta.getResultStream()) {
+			
+			Iterator<Object[]> iterador = filas.iterator();
+			
+			while (iterador.hasNext()) {
+				
+				escritor.escribirFila(iterador.next());
+				
+				exportadas++;
+			}
+		}
+		
+		escritor.terminar();
+		
+		return exportadas;
+	}
+	
+	
+	/**
+	 * Método que exporta direcciones en streaming sobre un canal
+	 * @see #exportarDirecciones(OutputStream, FormatoExportacion, String, Integer)
+	 */
+	@Transactional
+	public long exportarDirecciones(WritableByteChannel canal, FormatoExportacion formato, String provincia, Integer codigoPostal) throws IOException {
+		
+		return exportarDirecciones(Channels.newOutputStream(canal), formato, provincia, codigoPostal);
+	}
+	
+	
 	/**
 	 * Método que lista todas las direcciones por calle/avenida
 	 * @return Una lista de direcciones
@@ -179,24 +533,327 @@ public class GestorDireccion {
 	 */
 	public List<Direccion> listarDireccionesPorCodigoPostal(int codigoPostal){
 		
+		if (indiceHabilitado) {
+			
+			return obtenerDirecciones(indice().idsPorCodigoPostal(codigoPostal));
+		}
+		
 		return direccionDao.findByCodigoPostal(codigoPostal);
 	}
 	
 	
+	/**
+	 * Método que devuelve una lista de direcciones por localidad
+	 * @param localidad Recibe la localidad
+	 * @return Devuelve una lista de direcciones de la localidad
+	 */
 	public List<Direccion> listarDireccionesPorLocalidad(String localidad){
 		
+		if (indiceHabilitado) {
+			
+			return obtenerDirecciones(indice().idsPorLocalidad(localidad));
+		}
+		
 		return direccionDao.findByLocalidad(localidad);
 	}
 	
 	
+	/**
+	 * Método que devuelve una lista de direcciones por provincia
+	 * @param provincia Recibe la provincia
+	 * @return Devuelve una lista de direcciones de la provincia
+	 */
 	public List<Direccion> listarDirecciionesPorProvincia(String provincia){
 		
+		if (indiceHabilitado) {
+			
+			return obtenerDirecciones(indice().idsPorProvincia(provincia));
+		}
+		
 		return direccionDao.findByProvincia(provincia);
 	}
 	
 	
 	/**
-	 * Método que valida los atributos recibidos de una Direccion
+	 * Método que recupera las direcciones de una lista de ids con una consulta por cada MAXIMO_PARAMETROS_IN ids
+	 * @param idsDireccion Recibe los ids de las direcciones
+	 * @return Devuelve la lista de direcciones encontradas, sin orden definido
+	 */
+	private List<Direccion> obtenerDirecciones(int[] idsDireccion) {
+		
+		List<Direccion> direcciones = new ArrayList<>(idsDireccion.length);
+		
+		for (int desde = 0; desde < idsDireccion.length; desde += MAXIMO_PARAMETROS_IN) {
+			
+			List<Integer> bloque = new ArrayList<>(Math.min(MAXIMO_PARAMETROS_IN, idsDireccion.length - desde));
+			
+			for (int i = desde; i < Math.min(desde + MAXIMO_PARAMETROS_IN, idsDireccion.length); i++) {
+				
+				bloque.add(idsDireccion[i]);
+			}
+			
+			direcciones.addAll(direccionDao.findAllById(bloque));
+		}
+		
+		return direcciones;
+	}
+	
+	
+	/**
+	 * Método que elimina direcciones que se sabe que existen, anotando cada baja en el registro de cambios
+	 * @param idsDireccion Recibe los ids de las direcciones, ya bloqueados en la transacción en curso para que
+	 * 			todos se eliminen aquí
+	 * @return Devuelve el número de direcciones eliminadas
+	 */
+	private int eliminarExistentes(List<Integer> idsDireccion) {
+		
+		int eliminadas = 0;
+		
+		for (int desde = 0; desde < idsDireccion.size(); desde += MAXIMO_PARAMETROS_IN) {
+			
+			eliminadas += entityManager.createQuery(BORRADO_DIRECCIONES)
+					.setParameter("ids", idsDireccion.subList(desde, Math.min(desde + MAXIMO_PARAMETROS_IN, idsDireccion.size())))
+					.executeUpdate();
+		}
+		
+		outbox.registrar(Direccion.class, idsDireccion, OperacionCambio.BAJA);
+		
+		gestorUsuario.olvidarUsuariosConDirecciones(idsDireccion);
+		
+		if (indiceHabilitado && eliminadas > 0) {
+			
+			int[] ids = idsDireccion.stream().mapToInt(Integer::intValue).toArray();
+			
+			TrasCommit.ejecutar(() -> {
+				
+				for (int idDireccion : ids) {
+					
+					desindexar(idDireccion);
+				}
+			});
+		}
+		
+		return eliminadas;
+	}
+	
+	
+	/**
+	 * Método que obtiene y bloquea para su eliminación los ids de las direcciones cuyo atributo tiene el valor
+	 * indicado, de forma que las que se anotan como dadas de baja son exactamente las que se eliminan
+	 * @param atributo Recibe el nombre del atributo de Direccion; nunca procede del cliente
+	 * @param valor Recibe el valor buscado
+	 * @return Devuelve la lista de ids
+	 */
+	private List<Integer> buscarIds(String atributo, Object valor) {
+		
+		return entityManager.createQuery("select d.idDireccion from Direccion d where d." + atributo + " = :valor", Integer.class)
+				.setParameter("valor", valor)
+				.setLockMode(LockModeType.PESSIMISTIC_WRITE)
+				.getResultList();
+	}
+	
+	
+	private IndiceDirecciones indice() {
+		
+		IndiceDirecciones actual = indice;
+		
+		if (!actual.isConstruido()) {
+			
+			construirIndice();
+			
+			actual = indice;
+		}
+		
+		return actual;
+	}
+	
+	
+	private synchronized void construirIndice() {
+		
+		if (!indice.isConstruido()) {
+			
+			cargarIndice(indice);
+		}
+	}
+	
+	
+	/**
+	 * Método que vuelve a leer el índice completo de la BBDD y sustituye al actual, para recoger las altas, bajas y
+	 * modificaciones hechas desde otros nodos. Mientras se lee, las consultas siguen usando el índice anterior
+	 */
+	public synchronized void reconstruirIndice() {
+		
+		if (!indice.isConstruido()) {
+			
+			return; //Aún no se ha usado; se construirá completo en la primera consulta
+		}
+		
+		IndiceDirecciones nuevo = new IndiceDirecciones();
+		
+		indiceEnReconstruccion = nuevo;
+		
+		try {
+			
+			cargarIndice(nuevo);
+			
+			indice = nuevo;
+			
+		} finally {
+			
+			indiceEnReconstruccion = null;
+		}
+	}
+	
+	
+	private void reconstruirIndicePlanificado() {
+		
+		try {
+			
+			reconstruirIndice();
+			
+		} catch (RuntimeException e) {
+			
+			LOGGER.error("No se ha podido reconstruir el índice de direcciones, se sigue usando el anterior", e);
+		}
+	}
+	
+	
+	//Los cambios confirmados se aplican también al índice en reconstrucción, donde prevalecen sobre las filas leídas
+	private void indexar(int idDireccion, int codigoPostal, String localidad, String provincia) {
+		
+		indice.agregar(idDireccion, codigoPostal, localidad, provincia);
+		
+		IndiceDirecciones enReconstruccion = indiceEnReconstruccion;
+		
+		if (enReconstruccion != null) {
+			
+			enReconstruccion.agregar(idDireccion, codigoPostal, localidad, provincia);
+		}
+	}
+	
+	
+	private void desindexar(int idDireccion) {
+		
+		indice.eliminar(idDireccion);
+		
+		IndiceDirecciones enReconstruccion = indiceEnReconstruccion;
+		
+		if (enReconstruccion != null) {
+			
+			enReconstruccion.eliminar(idDireccion);
+		}
+	}
+	
+	
+	/**
+	 * Método que carga en un índice las claves de todas las direcciones, leyendo solo las columnas necesarias
+	 * por bloques de idDireccion
+	 */
+	private void cargarIndice(IndiceDirecciones destino) {
+		
+		destino.iniciarConstruccion();
+		
+		//Desde la réplica podrían faltar altas ya confirmadas, que el índice no volvería a recibir
+		FuenteDatosEnrutada.enPrimaria(() -> {
+			
+			int ultimoId = 0;
+			List<Object[]> filas;
+			
+			do {
+				
+				filas = entityManager.createQuery(CONSULTA_CLAVES_DESDE_ID, Object[].class)
+						.setParameter("ultimoId", ultimoId)
+						.setMaxResults(MAXIMO_PARAMETROS_IN)
+						.getResultList();
+				
+				for (Object[] fila : filas) {
+					
+					destino.agregarLeida((Integer) fila[0], (Integer) fila[1], (String) fila[2], (String) fila[3]);
+					
+					ultimoId = (Integer) fila[0];
+				}
+				
+			} while (filas.size() == MAXIMO_PARAMETROS_IN);
+		});
+		
+		destino.marcarConstruido();
+	}
+	
+	
+	/**
+	 * Método que mantiene las estructuras en memoria tras un alta masiva hecha fuera de agregarDireccion()
+	 * @param direcciones Recibe las direcciones persistidas en la transacción en curso
+	 */
+	void registrarAltas(List<Direccion> direcciones) {
+		
+		List<Integer> idsDireccion = new ArrayList<>(direcciones.size());
+		
+		for (Direccion direccion : direcciones) {
+			
+			idsDireccion.add(direccion.getIdDireccion());
+			
+			olvidarAusencia(direccion.getIdDireccion());
+			
+			indexarTrasCommit(direccion);
+		}
+		
+		outbox.registrar(Direccion.class, idsDireccion, OperacionCambio.ALTA);
+	}
+	
+	
+	/**
+	 * Método que registra un id como ausente en la caché negativa, salvo que se haya leído de la réplica: allí
+	 * puede faltar una Direccion recién creada en la primaria
+	 */
+	private void anotarAusencia(int idDireccion) {
+		
+		if (!FuenteDatosEnrutada.isLecturaReplica()) {
+			
+			cacheNegativa.registrarAusente(idDireccion);
+		}
+	}
+	
+	
+	/**
+	 * Método que retira un id recién dado de alta de la caché negativa. Se retira en el acto y de nuevo al
+	 * confirmar, por si una búsqueda concurrente lo volvió a registrar como ausente antes del commit
+	 */
+	private void olvidarAusencia(int idDireccion) {
+		
+		cacheNegativa.invalidar(idDireccion);
+		
+		TrasCommit.ejecutar(() -> cacheNegativa.invalidar(idDireccion));
+	}
+	
+	
+	private void indexarTrasCommit(Direccion direccion) {
+		
+		if (indiceHabilitado) {
+			
+			int idDireccion = direccion.getIdDireccion();
+			int codigoPostal = direccion.getCodigoPostal();
+			String localidad = direccion.getLocalidad();
+			String provincia = direccion.getProvincia();
+			
+			//Se aplica aunque el índice no esté construido: los cambios confirmados mientras se construye prevalecen
+			//sobre las filas que la construcción leyó antes de ellos
+			TrasCommit.ejecutar(() -> indexar(idDireccion, codigoPostal, localidad, provincia));
+		}
+	}
+	
+	
+	/**
+	 * @return Las reglas de validación de la Direccion, por ejemplo para informar de todos los errores con evaluarTodas()
+	 */
+	public ReglasValidacion<Direccion> getReglasValidacion() {
+		
+		return reglasValidacion;
+	}
+	
+	
+	/**
+	 * Método que valida los atributos recibidos de una Direccion. Los atributos se comprueban antes que la
+	 * existencia del id, de modo que una Direccion incompleta no llega a consultar la BBDD
 	 * @param direccion Recibe el objeto Direccion para ser validado 
 	 * @return	0 el objeto ha sido validado
 	 * 			1 si el id es cero
@@ -212,78 +869,6 @@ public class GestorDireccion {
 	 */
 	private int validarIntegridadDatos(Direccion direccion) {
 	
-		//Procedemos a validar el objeto antes de persistirlo.
-
-		if (direccion.getIdDireccion() == 0) {
-
-			return 1; //El id es cero
-
-		}
-
-		if (buscarDireccion(direccion.getIdDireccion())) {
-
-			return 8; //Ya existe un id previo
-
-		}
-
-		if ((direccion.getCalleAvenida() != null) || (!direccion.getCalleAvenida().isEmpty())) {
-
-			if (direccion.getNumero() != null) {
-
-				if ((direccion.getPlanta() != null) || (!direccion.getPlanta().isEmpty())) {
-
-					if ((direccion.getPuerta() != null) || (!direccion.getPuerta().isEmpty())) {
-
-						if((direccion.getLocalidad() != null) || (!direccion.getLocalidad().isEmpty())){
-
-							if ((direccion.getProvincia() != null) || (!direccion.getProvincia().isEmpty())){
-
-								if (direccion.getCodigoPostal() != 0) {
-
-									if(direccion.getTipoDireccion().getIdTipoDireccion() != 0) {
-
-										return 0;
-
-									}else {
-
-										return 10; //El id del Tipo de Direccion es cero
-									}
-
-								}else {
-
-									return 9; //El codigo postal es cero
-								}
-
-							}else {
-
-								return 7; //La provincia es null
-							}
-
-						}else {
-
-							return 6; //La localidad es null
-						}
-
-					}else {
-
-						return 5; //La puerta es null
-					}
-
-				}else {
-
-					return 4; //La planta es null
-				}
-
-			}else {
-
-				return 3; //El numero es null
-			}
-
-		}else {
-
-			return 2; // Calle/Avenido es null
-
-		}
-
+		return reglasValidacion.evaluar(direccion);
 	}
 }
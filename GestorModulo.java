@@ -7,6 +7,10 @@ package com.myapp.bricolaje.model.service;
 import java.util.List;
 import java.util.Optional;
 
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.Transactional;
+
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
@@ -18,6 +22,29 @@ public class GestorModulo {
 	
 	@Autowired
 	private IModuloDao moduloDao;
+	
+	@Autowired
+	private OutboxCambios outbox;
+	
+	@PersistenceContext
+	private EntityManager entityManager;
+	
+	private final CatalogoReferencia<Modulo> catalogoModulos = new CatalogoReferencia<>("modulos", () -> moduloDao.findAll(), Modulo::getIdModulo);
+	
+	//Códigos de agregarModulo(); la existencia del Modulo se comprueba en último lugar
+	private final ReglasValidacion<Modulo> reglasAlta = ReglasValidacion.<Modulo>definir()
+			.enMemoria(1, modulo -> modulo.getModulo() == null || modulo.getModulo().isEmpty())
+			.enBbdd(3, modulo -> moduloDao.existsById(modulo.getIdModulo()))
+			.compilar();
+	
+	//Una sola sentencia: el número de filas afectadas indica si el Modulo existe
+	private static final String ACTUALIZACION_MODULO = "update Modulo m set m.modulo = :modulo where m.idModulo = :idModulo";
+	
+	//Códigos de modificarModulo()
+	private final ReglasValidacion<Modulo> reglasModificacion = ReglasValidacion.<Modulo>definir()
+			.enMemoria(1, modulo -> modulo.getIdModulo() == 0)
+			.enMemoria(2, modulo -> modulo.getModulo() == null)
+			.compilar();
 
 	//------------------
 	
@@ -30,80 +57,63 @@ public class GestorModulo {
 	 * 			Devuelve 2 si ha habido un fallo intentando persistir el nuevo objeto Modulo
 	 * 			Devuelve 3 si ya existe previamente un Modulo igual
 	 */
+	@Transactional
 	public int agregarModulo(Modulo modulo) {
 		
-		if (buscarModulo(modulo.getIdModulo())) {
-
-			return 3; //Ya existe un modulo igual
-
-		}else {
-
-			if ((modulo.getModulo() != null) || (!modulo.getModulo().isEmpty())){
-
-				Optional<Modulo> optModulo = Optional.of(moduloDao.save(modulo));
+		int resultadoValidacion = reglasAlta.evaluar(modulo);
+		
+		if (resultadoValidacion != 0) {
+			
+			return resultadoValidacion;
+		}
 
-				if (optModulo.isPresent()) {
+		Optional<Modulo> optModulo = Optional.of(moduloDao.save(modulo));
 
-					return 0; //Modulo persistido correctamente
+		if (optModulo.isPresent()) {
 
-				}else {
+			outbox.registrar(Modulo.class, optModulo.get().getIdModulo(), OperacionCambio.ALTA);
+			
+			catalogoModulos.recargarTrasCommit();
 
-					return 2; //Ha habido un fallo durante la persistencia
-				}
+			return 0; //Modulo persistido correctamente
 
-			}else {
+		}else {
 
-				return 1; //El nombre del modulo no se ha especificado
-			}
+			return 2; //Ha habido un fallo durante la persistencia
 		}
 	}
 	
 	
 	/**
-	 * Método que actualizado un objeto del tipo Modulo
+	 * Método que actualizado un objeto del tipo Modulo con una única sentencia UPDATE
 	 * @param 	modulo Recibe un objeto de tipo Modulo
-	 * @return	0 si ha sido actualizado correctamente
+	 * @return	0 si ha sido actualizado correctamente o si no existe
 	 * 			1 si no se ha suministrado Id
 	 * 			2 si no se suministrado una descripcion
-	 * 			3 si ha habido un fallo durante la persistencia
 	 */
+	@Transactional
 	public int modificarModulo(Modulo modulo) {
 		
-		if (modulo.getIdModulo() != 0) {
+		int resultadoValidacion = reglasModificacion.evaluar(modulo);
+		
+		if (resultadoValidacion != 0) {
 			
-			if (modulo.getModulo() != null) {
-				
-				Optional<Modulo> optModulo = moduloDao.findById(modulo.getIdModulo());
-				
-				if (optModulo.isPresent()) {
-					
-					modulo.setIdModulo(optModulo.get().getIdModulo());
-					
-					Optional<Modulo> auxModulo = Optional.of(moduloDao.save(modulo));
-					
-					if (auxModulo.isPresent()) {
-						
-						return 0; //Actualizado correctamente
-						
-					}else {
-						
-						return 3; //Ha habido un fallo durante la persistencia
-						
-					}
-					
-				}
-				
-			}else {
-				
-				return 2; //La descripcion del módulo es null
-			}
+			return resultadoValidacion;
+		}
+		
+		int actualizados = entityManager.createQuery(ACTUALIZACION_MODULO)
+				.setParameter("modulo", modulo.getModulo())
+				.setParameter("idModulo", modulo.getIdModulo())
+				.executeUpdate();
+		
+		if (actualizados > 0) {
 			
-		}else {
+			outbox.registrar(Modulo.class, modulo.getIdModulo(), OperacionCambio.MODIFICACION);
 			
-			return 1; //El id del módulo es cero
+			catalogoModulos.recargarTrasCommit();
 		}
 		
-		
+		//Si no existe el Modulo se mantiene el 0 que siempre ha devuelto este método
 		return 0;
 	}
 	
@@ -113,16 +123,10 @@ public class GestorModulo {
 	 * @param idModulo Recibe el id del modulo a buscar
 	 * @return Devuelve true si lo encuentra y false sino.
 	 */
+	@PresupuestoConsultas(1)
 	public boolean buscarModulo(int idModulo) {
 		
-		Optional<Modulo> optModulo = moduloDao.findById(idModulo);
-
-		if (optModulo.isPresent()) {
-			
-			return true;
-		}
-		
-		return false;
+		return catalogoModulos.contiene(idModulo);
 	}
 	
 	
@@ -131,12 +135,17 @@ public class GestorModulo {
 	 * @param idModulo Recibe el id del modulo a eliminar
 	 * @return Devuelve true si ha sido eliminado correctamente y false sino
 	 */
+	@Transactional
 	public boolean eliminarModulo(int idModulo) {
 		
 		if (idModulo != 0) {
 			
 			moduloDao.deleteById(idModulo);
 			
+			outbox.registrar(Modulo.class, idModulo, OperacionCambio.BAJA);
+			
+			catalogoModulos.recargarTrasCommit();
+			
 			return true;
 			
 			
@@ -150,10 +159,19 @@ public class GestorModulo {
 	
 	/**
 	 * Método que lista todos los Modulos de la app
-	 * @return lista con todos los objetos de tipo Modulo
+	 * @return lista inmutable con todos los objetos de tipo Modulo
 	 */
 	public List<Modulo> listarModulos(){
 		
-		return moduloDao.findAll();
+		return catalogoModulos.listar();
+	}
+	
+	
+	/**
+	 * @return El catálogo en memoria de Modulos, con sus contadores de aciertos, fallos y recargas
+	 */
+	public CatalogoReferencia<Modulo> getCatalogoModulos() {
+		
+		return catalogoModulos;
 	}
 }
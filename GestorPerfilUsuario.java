@@ -0,0 +1,237 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.hibernate.Hibernate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.myapp.bricolaje.model.repo.Direccion;
+import com.myapp.bricolaje.model.repo.Permiso;
+import com.myapp.bricolaje.model.repo.Rol;
+import com.myapp.bricolaje.model.repo.Usuario;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Obtiene el perfil completo de un Usuario lanzando en paralelo, en hilos virtuales, las lecturas que hasta ahora
+ * se hacían una detrás de otra: el Usuario y los Permisos a la vez, y el Rol y la Direccion en cuanto se conoce el
+ * Usuario. Todas comparten un mismo plazo; lo que no llega a tiempo se descarta y el perfil se devuelve parcial,
+ * salvo el Usuario, sin el cual no hay perfil. Cada lectura ocupa uno de los permisos de GestorUsuarioAsincrono,
+ * de modo que entre ambos no se piden más conexiones que las del pool, y una lectura que no consigue permiso
+ * dentro del plazo no llega a ejecutarse.
+ */
+@Service
+public class GestorPerfilUsuario {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(GestorPerfilUsuario.class);
+
+	@Autowired
+	private GestorUsuario gestorUsuario;
+
+	@Autowired
+	private GestorUsuarioAsincrono gestorUsuarioAsincrono;
+
+	@Autowired
+	private GestorRol gestorRol;
+
+	@Autowired
+	private GestorDireccion gestorDireccion;
+
+	@Autowired
+	private GestorPermiso gestorPermiso;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	/** Plazo total para obtener un perfil, desde que se pide hasta que se devuelve */
+	@Value("${bricolaje.perfil.plazo-ms:500}")
+	private long plazoMs;
+
+	@Value("${bricolaje.datasource.primaria.maximum-pool-size:${spring.datasource.hikari.maximum-pool-size:10}}")
+	private int tamanioPoolConexiones;
+
+	private ExecutorService ejecutor;
+
+	//------------------
+
+	@PostConstruct
+	void iniciar() {
+
+		ejecutor = EjecutoresVirtuales.crear("perfil-usuario", tamanioPoolConexiones);
+	}
+
+
+	@PreDestroy
+	void detener() {
+
+		ejecutor.shutdown();
+	}
+
+
+	/**
+	 * Método que obtiene el perfil de un Usuario
+	 * @param dni Recibe el DNI del Usuario
+	 * @return Devuelve el perfil, que puede estar incompleto (ver PerfilUsuario#getPiezasFaltantes()), o null si
+	 * 			el DNI es null o no existe un Usuario con ese DNI
+	 * @throws PerfilUsuarioNoDisponibleException si el Usuario no se obtiene dentro del plazo o su lectura falla
+	 */
+	public PerfilUsuario obtenerPerfil(String dni) {
+
+		if (dni == null) {
+
+			return null;
+		}
+
+		long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(plazoMs);
+
+		CompletableFuture<Usuario> usuario = CompletableFuture.supplyAsync(conPermiso(() -> gestorUsuario.obtenerUsuario(dni), limite), ejecutor);
+
+		CompletableFuture<List<Permiso>> permisos = CompletableFuture.supplyAsync(conPermiso(gestorPermiso::listarTodosPermisos, limite), ejecutor);
+
+		//El Rol y la Direccion dependen del Usuario y se piden en cuanto llega, sin esperar a los Permisos
+		CompletableFuture<Rol> rol = usuario.thenApplyAsync(encontrado -> conPermiso(() -> obtenerRol(encontrado), limite).get(), ejecutor);
+
+		CompletableFuture<Direccion> direccion = usuario.thenApplyAsync(encontrado -> conPermiso(() -> obtenerDireccion(encontrado), limite).get(), ejecutor);
+
+		Usuario encontrado;
+
+		try {
+
+			encontrado = esperar(usuario, limite);
+
+		} catch (TimeoutException | ExecutionException e) {
+
+			cancelar(usuario, permisos, rol, direccion);
+
+			throw new PerfilUsuarioNoDisponibleException(dni, e instanceof ExecutionException ? e.getCause() : e);
+		}
+
+		if (encontrado == null) {
+
+			cancelar(permisos);
+
+			return null; //No existe el Usuario
+		}
+
+		Set<PerfilUsuario.Pieza> faltantes = EnumSet.noneOf(PerfilUsuario.Pieza.class);
+
+		Rol rolEncontrado = obtenerPieza(rol, limite, PerfilUsuario.Pieza.ROL, dni, faltantes);
+
+		Direccion direccionEncontrada = obtenerPieza(direccion, limite, PerfilUsuario.Pieza.DIRECCION, dni, faltantes);
+
+		List<Permiso> permisosEncontrados = obtenerPieza(permisos, limite, PerfilUsuario.Pieza.PERMISOS, dni, faltantes);
+
+		return new PerfilUsuario(encontrado, rolEncontrado, direccionEncontrada, permisosEncontrados, faltantes);
+	}
+
+
+	private <T> Supplier<T> conPermiso(Supplier<T> lectura, long limite) {
+
+		return () -> gestorUsuarioAsincrono.ejecutarConPermiso(lectura, limite);
+	}
+
+
+	private Rol obtenerRol(Usuario usuario) {
+
+		if (usuario == null || usuario.getRol() == null) {
+
+			return null;
+		}
+
+		//Leer el id de un proxy no lo inicializa
+		return gestorRol.obtenerRol(usuario.getRol().getIdRol());
+	}
+
+
+	private Direccion obtenerDireccion(Usuario usuario) {
+
+		if (usuario == null || usuario.getDireccion() == null) {
+
+			return null;
+		}
+
+		//Con la caché de Usuarios la Direccion ya viene cargada y no hace falta volver a la BBDD
+		if (Hibernate.isInitialized(usuario.getDireccion())) {
+
+			return usuario.getDireccion();
+		}
+
+		return gestorDireccion.obtenerDireccion(usuario.getDireccion().getIdDireccion());
+	}
+
+
+	/**
+	 * Método que espera a una pieza opcional del perfil hasta el límite común y, si no llega o falla, la anota
+	 * como faltante
+	 */
+	private <T> T obtenerPieza(CompletableFuture<T> futuro, long limite, PerfilUsuario.Pieza pieza, String dni, Set<PerfilUsuario.Pieza> faltantes) {
+
+		try {
+
+			return esperar(futuro, limite);
+
+		} catch (TimeoutException e) {
+
+			cancelar(futuro);
+
+			LOGGER.debug("La pieza {} del perfil del Usuario {} no ha llegado dentro del plazo de {} ms", pieza, dni, plazoMs);
+
+		} catch (ExecutionException e) {
+
+			LOGGER.warn("No se ha podido obtener la pieza {} del perfil del Usuario {}", pieza, dni, e.getCause());
+		}
+
+		faltantes.add(pieza);
+
+		meterRegistry.counter("bricolaje.perfil.piezas.faltantes", "pieza", pieza.name()).increment();
+
+		return null;
+	}
+
+
+	private static <T> T esperar(CompletableFuture<T> futuro, long limite) throws TimeoutException, ExecutionException {
+
+		try {
+
+			return futuro.get(Math.max(0, limite - System.nanoTime()), TimeUnit.NANOSECONDS);
+
+		} catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+
+			throw new TimeoutException("Espera interrumpida");
+		}
+	}
+
+
+	/**
+	 * Método que descarta las lecturas que ya no se van a esperar, para que las que aún no han empezado no lleguen
+	 * a ejecutarse. Las que ya están en marcha no se interrumpen y terminan ocupando su permiso
+	 */
+	private static void cancelar(CompletableFuture<?>... futuros) {
+
+		for (CompletableFuture<?> futuro : futuros) {
+
+			futuro.cancel(true);
+		}
+	}
+}
@@ -7,6 +7,8 @@ package com.myapp.bricolaje.model.service;
 import java.util.List;
 import java.util.Optional;
 
+import javax.transaction.Transactional;
+
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
@@ -19,6 +21,18 @@ public class GestorPermiso {
 	@Autowired
 	private IPermisoDao permisoDao;
 	
+	@Autowired
+	private OutboxCambios outbox;
+	
+	private final CatalogoReferencia<Permiso> catalogoPermisos = new CatalogoReferencia<>("permisos", () -> permisoDao.findAll(), Permiso::getIdPermiso);
+	
+	//Códigos de validaIntegridadDatos(); la existencia del Permiso se comprueba en último lugar
+	private final ReglasValidacion<Permiso> reglasValidacion = ReglasValidacion.<Permiso>definir()
+			.enMemoria(1, permiso -> permiso.getIdPermiso() == 0)
+			.enMemoria(2, permiso -> permiso.getTipoPermiso() == null || permiso.getTipoPermiso().isEmpty())
+			.enBbdd(3, permiso -> permisoDao.existsById(permiso.getIdPermiso()))
+			.compilar();
+	
 	//---------------------------
 	
 	
@@ -29,6 +43,7 @@ public class GestorPermiso {
 	 * 			4 si ha habido un fallo en el proceso de persistencia del nuevo objeto
 	 * 			la variable resultadoValidar del método validarIntegridadDatos con diversos códigos de error
 	 */
+	@Transactional
 	public int agregarPermiso(Permiso permiso) {
 		
 		int resultadoValidar = validaIntegridadDatos(permiso);
@@ -39,6 +54,10 @@ public class GestorPermiso {
 			
 			if (optPermiso.isPresent()) {
 				
+				outbox.registrar(Permiso.class, optPermiso.get().getIdPermiso(), OperacionCambio.ALTA);
+				
+				catalogoPermisos.recargarTrasCommit();
+				
 				return 0;
 				
 			}else {
@@ -55,12 +74,17 @@ public class GestorPermiso {
 	 * @param idPermiso Recibe el id del permiso
 	 * @return	Devuelve true si lo ha eliminado correctamente o false si se ha recibido un Id incorrecto
 	 */
+	@Transactional
 	public boolean eliminarPermiso(int idPermiso) {
 		
 		if (idPermiso != 0) {
 			
 			permisoDao.deleteById(idPermiso);
 			
+			outbox.registrar(Permiso.class, idPermiso, OperacionCambio.BAJA);
+			
+			catalogoPermisos.recargarTrasCommit();
+			
 			return true;
 		}
 		
@@ -73,6 +97,7 @@ public class GestorPermiso {
 	 * @return	Devulve 0 si lo ha actualizado correctamente
 	 * 			Devuelve la variable resultadoValidar del metodo validarIntegridadDatos() con diversos valores.
 	 */
+	@Transactional
 	public int actualizarPermiso(Permiso permiso) {
 		
 		int resultadoValidar = validaIntegridadDatos(permiso);
@@ -87,6 +112,10 @@ public class GestorPermiso {
 				
 				permisoDao.save(permiso);
 				
+				outbox.registrar(Permiso.class, permiso.getIdPermiso(), OperacionCambio.MODIFICACION);
+				
+				catalogoPermisos.recargarTrasCommit();
+				
 				return 0;
 			}
 		}
@@ -99,16 +128,12 @@ public class GestorPermiso {
 	 * @param idPermiso Recibe un objeto del tipo Permiso
 	 * @return	Devuelve el objeto Permiso si es encontrado
 	 */
+	@PresupuestoConsultas(1)
 	public Permiso obtenerPermiso(int idPermiso) {
 		
 		if (idPermiso != 0) {
 			
-			if (buscarPermiso(idPermiso)) {
-				
-				Optional<Permiso> optPermiso = permisoDao.findById(idPermiso);
-				
-				return optPermiso.orElse(null);
-			}
+			return catalogoPermisos.obtener(idPermiso);
 		}
 		
 		return null;
@@ -119,16 +144,12 @@ public class GestorPermiso {
 	 * @param idPermiso Recibe el id del objeto Permiso
 	 * @return	Devuelve true si lo consigue y false sino
 	 */
+	@PresupuestoConsultas(1)
 	public boolean buscarPermiso(int idPermiso) {
 		
 		if (idPermiso !=0 ) {
 			
-			Optional<Permiso> optPermiso = permisoDao.findById(idPermiso);
-			
-			if (optPermiso.isPresent()) {
-			
-				return true;
-			}
+			return catalogoPermisos.contiene(idPermiso);
 		}
 		
 		return false;
@@ -137,11 +158,20 @@ public class GestorPermiso {
 	
 	/**
 	 * Método que lista todos los permisos existentes
-	 * @return Devuelve una lista con todos los permisos
+	 * @return Devuelve una lista inmutable con todos los permisos
 	 */
 	public List<Permiso> listarTodosPermisos(){
 		
-		return permisoDao.findAll();
+		return catalogoPermisos.listar();
+	}
+	
+	
+	/**
+	 * @return El catálogo en memoria de Permisos, con sus contadores de aciertos, fallos y recargas
+	 */
+	public CatalogoReferencia<Permiso> getCatalogoPermisos() {
+		
+		return catalogoPermisos;
 	}
 	
 	/**
@@ -154,28 +184,7 @@ public class GestorPermiso {
 	 */
 	public int validaIntegridadDatos(Permiso permiso) {
 		
-		if (permiso.getIdPermiso() != 0) {
-			
-			if (!buscarPermiso(permiso.getIdPermiso())) {
-			
-				if ((permiso.getTipoPermiso() != null) || (!permiso.getTipoPermiso().isEmpty())){
-					
-					return 0;
-					
-				}else {
-					
-					return 2; //La descripcion del permiso es null or dejado en blanco
-				}
-			}else {
-				
-				return 3; //Existe el permiso
-				
-			}
-				
-		}else {
-			
-			return 1; //El Id es igual a cero
-		}
+		return reglasValidacion.evaluar(permiso);
 	}
 
 }
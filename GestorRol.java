@@ -7,15 +7,29 @@ package com.myapp.bricolaje.model.service;
 import java.util.List;
 import java.util.Optional;
 
+import javax.transaction.Transactional;
+
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
 
 import com.myapp.bricolaje.model.persistency.IRolDao;
 import com.myapp.bricolaje.model.repo.Rol;
 
+@Service
 public class GestorRol {
 	
 	@Autowired
 	private IRolDao rolDao;
+	
+	@Autowired
+	private OutboxCambios outbox;
+	
+	private final CatalogoReferencia<Rol> catalogoRoles = new CatalogoReferencia<>("roles", () -> rolDao.findAll(), Rol::getIdRol);
+	
+	private final ReglasValidacion<Rol> reglasValidacion = ReglasValidacion.<Rol>definir()
+			.enMemoria(1, rol -> rol.getIdRol() == 0)
+			.enMemoria(2, rol -> rol.getDescripcion() == null)
+			.compilar();
 
 	//----------------------
 	
@@ -28,6 +42,7 @@ public class GestorRol {
 	 * 			4 si ha habido un fallo intentando persistir el nuevo objeto
 	 * 			resultadoValidacion, parametro devuelto a su vez por el método validarIntegridadDato. Ver este método para nuevo códigos de error.
 	 */
+	@Transactional
 	public int agregarRol(Rol rol) {
 		
 		int resultadoValidacion;
@@ -36,7 +51,7 @@ public class GestorRol {
 		
 		if (resultadoValidacion == 0) {
 			
-			if (buscarRol(rol.getIdRol())){
+			if (rolDao.existsById(rol.getIdRol())){
 				
 				return 3; //El rol ya existe
 		
@@ -46,6 +61,10 @@ public class GestorRol {
 				
 				if (optRol.isPresent()) {
 					
+					outbox.registrar(Rol.class, optRol.get().getIdRol(), OperacionCambio.ALTA);
+					
+					catalogoRoles.recargarTrasCommit();
+					
 					return 0;
 					
 				}else {
@@ -65,6 +84,7 @@ public class GestorRol {
 	 * @return	Devuelve 0 si fue eliminado correctamente
 	 * 			Devuelve conjunto de valores asociados a la variable resultadoValidacion (ver detalle en el método validarIntegridadDatos
 	 */
+	@Transactional
 	public int eliminarRol(Rol rol) {
 		
 		int resultadoValidacion;
@@ -75,6 +95,10 @@ public class GestorRol {
 			
 			rolDao.deleteById(rol.getIdRol());
 			
+			outbox.registrar(Rol.class, rol.getIdRol(), OperacionCambio.BAJA);
+			
+			catalogoRoles.recargarTrasCommit();
+			
 			return 0;
 		}
 		
@@ -86,13 +110,12 @@ public class GestorRol {
 	 * @param idRol Id del rol a obtener
 	 * @return	un Objeto de tipo Rol o null sino lo encuentra
 	 */
+	@PresupuestoConsultas(1)
 	public Rol obtenerRol(int idRol) {
 		
 		if (idRol != 0) {
 			
-			Optional<Rol> optRol = rolDao.findById(idRol);
-			
-				return optRol.orElse(null);
+			return catalogoRoles.obtener(idRol);
 
 		}
 		
@@ -104,16 +127,12 @@ public class GestorRol {
 	 * @param idRol Id del Rol a buscar
 	 * @return Devuelve true si lo consigue y false sino
 	 */
+	@PresupuestoConsultas(1)
 	public boolean buscarRol(int idRol) {
 		
 		if (idRol != 0) {
 			
-			Optional<Rol> optRol = rolDao.findById(idRol);
-			
-			if (optRol.isPresent()){
-				
-				return true;
-			}
+			return catalogoRoles.contiene(idRol);
 		}
 		
 		return false;
@@ -122,11 +141,20 @@ public class GestorRol {
 	
 	/**
 	 * Método que busca todos los roles existentes
-	 * @return Devuelve una lista con todos los roles
+	 * @return Devuelve una lista inmutable con todos los roles
 	 */
 	public List<Rol> listarTodosRoles() {
 		
-		return rolDao.findAll();
+		return catalogoRoles.listar();
+	}
+	
+	
+	/**
+	 * @return El catálogo en memoria de Roles, con sus contadores de aciertos, fallos y recargas
+	 */
+	public CatalogoReferencia<Rol> getCatalogoRoles() {
+		
+		return catalogoRoles;
 	}
 	
 
@@ -140,21 +168,6 @@ public class GestorRol {
 	 */
 	public int validarIntegridadDatos(Rol rol) {
 		
-		if (rol.getIdRol() != 0) {
-			
-			if (rol.getDescripcion() != null) {
-				
-				return 0; //Datos correctos
-				
-			}else {
-				
-				return 2; //La descripcion es null
-			}
-			
-		}else {
-			
-			return 1; // El id del rol es cero
-		}
-		
+		return reglasValidacion.evaluar(rol);
 	}
 }
@@ -6,9 +6,18 @@ package com.myapp.bricolaje.model.service;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.transaction.Transactional;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import com.myapp.bricolaje.model.persistency.ITipoProductoDao;
 import com.myapp.bricolaje.model.repo.TipoProducto;
@@ -18,10 +27,71 @@ public class GestorTipoProducto {
 	
 	@Autowired
 	private ITipoProductoDao tipoProductoDao;
+	
+	@Autowired
+	private OutboxCambios outbox;
+	
+	private final CatalogoReferencia<TipoProducto> catalogoTiposProducto = new CatalogoReferencia<>("tiposProducto", () -> tipoProductoDao.findAll(), TipoProducto::getIdTipoProducto);
+	
+	//Códigos de validarIntegridadDatos(); la existencia del Tipo de Producto se comprueba en último lugar
+	private final ReglasValidacion<TipoProducto> reglasValidacion = ReglasValidacion.<TipoProducto>definir()
+			.enMemoria(1, tipoProducto -> tipoProducto.getIdTipoProducto() == 0)
+			.enMemoria(2, tipoProducto -> tipoProducto.getDescripcion() == null)
+			.enBbdd(3, tipoProducto -> tipoProductoDao.existsById(tipoProducto.getIdTipoProducto()))
+			.compilar();
+	
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+	
+	/** Activa la escritura diferida de actualizarTipoProductoEnDiferido() */
+	@Value("${bricolaje.catalogos.escritura-diferida.habilitada:false}")
+	private boolean escrituraDiferidaHabilitada;
+	
+	@Value("${bricolaje.catalogos.escritura-diferida.tamanio-maximo:500}")
+	private int tamanioMaximoEscrituraDiferida;
+	
+	@Value("${bricolaje.catalogos.escritura-diferida.intervalo-ms:1000}")
+	private long intervaloEscrituraDiferida;
+	
+	//Null si la escritura diferida no está habilitada
+	private ColaEscrituraDiferida<TipoProducto> colaActualizaciones;
 
 	//-----------------------
 	
 	
+	@PostConstruct
+	void iniciar() {
+		
+		if (escrituraDiferidaHabilitada) {
+			
+			//Cada lote se confirma por su cuenta aunque se vuelque desde un llamante con una transacción abierta,
+			//para que un lote fallido no la marque como rollback-only y haga fallar también los reintentos uno a uno
+			TransactionTemplate transaccion = new TransactionTemplate(transactionManager);
+			transaccion.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+			
+			colaActualizaciones = new ColaEscrituraDiferida<>("tipos-producto", TipoProducto::getIdTipoProducto, lote -> {
+				
+				transaccion.executeWithoutResult(estado -> {
+					
+					tipoProductoDao.saveAll(lote);
+					
+					outbox.registrar(TipoProducto.class, lote.stream().map(TipoProducto::getIdTipoProducto).collect(Collectors.toList()), OperacionCambio.MODIFICACION);
+				});
+			}, catalogoTiposProducto::recargar, tamanioMaximoEscrituraDiferida, intervaloEscrituraDiferida);
+		}
+	}
+	
+	
+	@PreDestroy
+	void detener() {
+		
+		if (colaActualizaciones != null) {
+			
+			colaActualizaciones.close(); //Vuelca lo pendiente antes de cerrar
+		}
+	}
+	
+	
 	/**
 	 * Método que da de Alta a un nuevo Tipo de Producto
 	 * @param tipoProducto	Recibe un objeto del Tipo Producto
@@ -30,8 +100,12 @@ public class GestorTipoProducto {
 	 * 			5 si ya existe una con anteriordidad
 	 * 			la variable resultadoValidar utilizada por el método validarIntegridadDatos que devuelve deversos códigos de error
 	 */			
+	@Transactional
 	public int actualizarTipoProdicto(TipoProducto tipoProducto) {
 		
+		//Una actualización diferida anterior sobrescribiría a esta al volcarse
+		descartarPendiente(tipoProducto.getIdTipoProducto());
+		
 		int resultadoValidar = validarIntegridadDatos(tipoProducto);
 		
 		if (resultadoValidar == 0 || resultadoValidar == 3) {
@@ -46,6 +120,10 @@ public class GestorTipoProducto {
 				
 				if (auxTipoProducto.isPresent()) {
 					
+					outbox.registrar(TipoProducto.class, tipoProducto.getIdTipoProducto(), OperacionCambio.MODIFICACION);
+					
+					catalogoTiposProducto.recargarTrasCommit();
+					
 					return 0;
 					
 				}else {
@@ -64,21 +142,88 @@ public class GestorTipoProducto {
 	}
 	
 	
+	/**
+	 * Método para actualizaciones frecuentes de Tipos de Producto. Con la escritura diferida habilitada la
+	 * actualización se encola y se escribe más tarde junto con las demás, y si el mismo id se actualiza varias
+	 * veces antes del volcado solo se escribe la última; hasta entonces el catálogo sigue devolviendo los
+	 * valores anteriores. Sin ella equivale a actualizarTipoProdicto()
+	 * @param tipoProducto Recibe el objeto con sus nuevos valores; no debe modificarse después
+	 * @return	Devuelve 0 si se ha encolado (o actualizado) correctamente
+	 * 			1 si el Id es cero
+	 * 			2 si la descripcion es nula
+	 * 			5 si no existe en la BBDD
+	 * 			o los códigos de actualizarTipoProdicto() si la escritura diferida no está habilitada
+	 */
+	@Transactional
+	public int actualizarTipoProductoEnDiferido(TipoProducto tipoProducto) {
+		
+		if (colaActualizaciones == null) {
+			
+			return actualizarTipoProdicto(tipoProducto);
+		}
+		
+		int resultadoValidar = reglasValidacion.evaluarEnMemoria(tipoProducto);
+		
+		if (resultadoValidar != 0) {
+			
+			return resultadoValidar;
+		}
+		
+		if (!tipoProductoDao.existsById(tipoProducto.getIdTipoProducto())) {
+			
+			return 5; //No existe el objeto a actualizar
+		}
+		
+		colaActualizaciones.encolar(tipoProducto);
+		
+		return 0;
+	}
+	
+	
+	/**
+	 * Método que escribe en la BBDD, en el hilo llamante, todas las actualizaciones diferidas pendientes
+	 * @return Devuelve el número de tipos de producto escritos
+	 */
+	@DevuelveRecuento
+	public int volcarActualizacionesDiferidas() {
+		
+		return colaActualizaciones != null ? colaActualizaciones.flush() : 0;
+	}
+	
+	
+	/**
+	 * Método que retira la actualización diferida pendiente de un id, esperando al volcado en curso si lo hay
+	 * @param idTipoProducto Recibe el id
+	 */
+	private void descartarPendiente(int idTipoProducto) {
+		
+		if (colaActualizaciones != null) {
+			
+			colaActualizaciones.descartar(idTipoProducto);
+		}
+	}
+	
+	
+	/**
+	 * @return La cola de escritura diferida, con sus contadores, o null si no está habilitada
+	 */
+	public ColaEscrituraDiferida<TipoProducto> getColaActualizaciones() {
+		
+		return colaActualizaciones;
+	}
+	
+	
 	/**
 	 * Método que recupera un Tipo de Producto según el Id suministrado
 	 * @param idTipoProducto	Recibe el Id del Tipo de Producto
 	 * @return	Devuelve el objeto Tipo de Producto o null sino existe
 	 */
+	@PresupuestoConsultas(1)
 	public TipoProducto obtenerTipoProducto(int idTipoProducto) {
 		
 		if (idTipoProducto != 0) {
 			
-			if (buscarTipoProducto(idTipoProducto) == 0) {
-				
-				Optional<TipoProducto> optTipoProducto = tipoProductoDao.findById(idTipoProducto);
-					
-					return optTipoProducto.orElse(null);
-			}
+			return catalogoTiposProducto.obtener(idTipoProducto);
 		}
 		
 		return null;
@@ -89,14 +234,25 @@ public class GestorTipoProducto {
 	 * @param idTipoProducto	Recibe el Id del Tipo de Producto a eliminar de la BBDD
 	 * @return	Devuelve true si fue completado correctamente o false sino
 	 */
+	@Transactional
 	public boolean eliminarTipoProducto(int idTipoProducto) {
 		
 		if (idTipoProducto != 0) {
 			
-			if (buscarTipoProducto(idTipoProducto) == 0){
+			if (tipoProductoDao.existsById(idTipoProducto)){
+				
+				//Si no, el siguiente volcado la volvería a insertar
+				descartarPendiente(idTipoProducto);
 				
 				tipoProductoDao.deleteById(idTipoProducto);
 				
+				outbox.registrar(TipoProducto.class, idTipoProducto, OperacionCambio.BAJA);
+				
+				catalogoTiposProducto.recargarTrasCommit();
+				
+				//Y también la que se haya encolado mientras la transacción estaba abierta
+				TrasCommit.ejecutar(() -> descartarPendiente(idTipoProducto));
+				
 				return true;
 			}
 			
@@ -112,13 +268,12 @@ public class GestorTipoProducto {
 	 * 			1 si no lo consigue
 	 * 			2 si hemos recibido un Id inválido
 	 */
+	@PresupuestoConsultas(1)
 	public int buscarTipoProducto(int idTipoProducto) {
 		
 		if (idTipoProducto != 0) {
 			
-			Optional<TipoProducto> optTipoProducto = tipoProductoDao.findById(idTipoProducto);
-			
-			if (optTipoProducto.isPresent()) {
+			if (catalogoTiposProducto.contiene(idTipoProducto)) {
 				
 				return 0;
 				
@@ -138,39 +293,28 @@ public class GestorTipoProducto {
 	 * @return	Devuelve 0 si está Ok
 	 * 			1 si el Id suministrado es inválido
 	 * 			2 si la descripcion es inválida
+	 * 			3 si el tipo de producto ya existe
 	 */
 	public int validarIntegridadDatos(TipoProducto tipoProducto){
 		
-		if (buscarTipoProducto(tipoProducto.getIdTipoProducto()) == 0) {
-			
-			return 3; //El tipo de producto existe
-			
-		}
-		
-		if (tipoProducto.getIdTipoProducto() != 0) {
-			
-			if (tipoProducto.getDescripcion() != null) {
-				
-				return 0;
-				
-			}else {
-				
-				return 2; //La descripcion es inválida
-			}
-			
-		}else {
-				
-			return 1; //El id es inválido
-			
-		}
+		return reglasValidacion.evaluar(tipoProducto);
 	}
 	
 	/**
 	 * Método utilizado para obtener una lista de todos los tipos de productos
-	 * @return Una lista de objetos tipo de producto
+	 * @return Una lista inmutable de objetos tipo de producto
 	 */
 	public List<TipoProducto> listarTodosTipoProductos() {
 		
-		return tipoProductoDao.findAll();
+		return catalogoTiposProducto.listar();
+	}
+	
+	
+	/**
+	 * @return El catálogo en memoria de Tipos de Producto, con sus contadores de aciertos, fallos y recargas
+	 */
+	public CatalogoReferencia<TipoProducto> getCatalogoTiposProducto() {
+		
+		return catalogoTiposProducto;
 	}
 }
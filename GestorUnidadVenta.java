@@ -6,9 +6,18 @@ package com.myapp.bricolaje.model.service;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.transaction.Transactional;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import com.myapp.bricolaje.model.persistency.IUnidadVentaDao;
 import com.myapp.bricolaje.model.repo.UnidadVenta;
@@ -18,10 +27,71 @@ public class GestorUnidadVenta {
 
 	@Autowired
 	private IUnidadVentaDao unidadVentaDao;
+	
+	@Autowired
+	private OutboxCambios outbox;
+	
+	private final CatalogoReferencia<UnidadVenta> catalogoUnidadesVenta = new CatalogoReferencia<>("unidadesVenta", () -> unidadVentaDao.findAll(), UnidadVenta::getIdUnidadVenta);
+	
+	//Códigos de validarIntregidadDatos(); la existencia de la Unidad de Venta se comprueba en último lugar
+	private final ReglasValidacion<UnidadVenta> reglasValidacion = ReglasValidacion.<UnidadVenta>definir()
+			.enMemoria(1, unidadVenta -> unidadVenta.getIdUnidadVenta() == 0)
+			.enMemoria(2, unidadVenta -> unidadVenta.getDescripcion() == null || unidadVenta.getDescripcion().isEmpty())
+			.enBbdd(3, unidadVenta -> unidadVentaDao.existsById(unidadVenta.getIdUnidadVenta()))
+			.compilar();
+	
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+	
+	/** Activa la escritura diferida de actualizarUnidadVentaEnDiferido() */
+	@Value("${bricolaje.catalogos.escritura-diferida.habilitada:false}")
+	private boolean escrituraDiferidaHabilitada;
+	
+	@Value("${bricolaje.catalogos.escritura-diferida.tamanio-maximo:500}")
+	private int tamanioMaximoEscrituraDiferida;
+	
+	@Value("${bricolaje.catalogos.escritura-diferida.intervalo-ms:1000}")
+	private long intervaloEscrituraDiferida;
+	
+	//Null si la escritura diferida no está habilitada
+	private ColaEscrituraDiferida<UnidadVenta> colaActualizaciones;
 
 	//----------------------
 	
 	
+	@PostConstruct
+	void iniciar() {
+		
+		if (escrituraDiferidaHabilitada) {
+			
+			//Transacción propia aunque volcarActualizacionesDiferidas() se llame dentro de otra, que de lo contrario
+			//quedaría en rollback-only con el primer lote fallido
+			TransactionTemplate transaccion = new TransactionTemplate(transactionManager);
+			transaccion.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+			
+			colaActualizaciones = new ColaEscrituraDiferida<>("unidades-venta", UnidadVenta::getIdUnidadVenta, lote -> {
+				
+				transaccion.executeWithoutResult(estado -> {
+					
+					unidadVentaDao.saveAll(lote);
+					
+					outbox.registrar(UnidadVenta.class, lote.stream().map(UnidadVenta::getIdUnidadVenta).collect(Collectors.toList()), OperacionCambio.MODIFICACION);
+				});
+			}, catalogoUnidadesVenta::recargar, tamanioMaximoEscrituraDiferida, intervaloEscrituraDiferida);
+		}
+	}
+	
+	
+	@PreDestroy
+	void detener() {
+		
+		if (colaActualizaciones != null) {
+			
+			colaActualizaciones.close(); //Vuelca lo pendiente antes de cerrar
+		}
+	}
+	
+	
 	/**
 	 * Método que da de alta a una Unidad de Venta
 	 * @param unidadVenta	Recibe el nuevo objeto a persistir
@@ -29,6 +99,7 @@ public class GestorUnidadVenta {
 	 * 			4 si ha habido un fallo intentando persistir el objeto
 	 * 			resultadoValidar variable que devuelve el método validarIntegridadDatos.
 	 */
+	@Transactional
 	public int agregarUnidadVenta(UnidadVenta unidadVenta) {
 		
 		int resultadoValidar = validarIntregidadDatos(unidadVenta);
@@ -39,6 +110,10 @@ public class GestorUnidadVenta {
 			
 			if (optUnidadVenta.isPresent()) {
 				
+				outbox.registrar(UnidadVenta.class, optUnidadVenta.get().getIdUnidadVenta(), OperacionCambio.ALTA);
+				
+				catalogoUnidadesVenta.recargarTrasCommit();
+				
 				return 0;
 				
 			}else {
@@ -58,8 +133,13 @@ public class GestorUnidadVenta {
 	 * 			5 si no se ha podido recuperar el objeto de la BBDD para actualizarlo
 	 * 			variable resultadoValidar del método validarIntegridadDatos con diferentes valores. 
 	 */
+	@PresupuestoConsultas(5)
+	@Transactional
 	public int actualizarUnidadVenta(UnidadVenta unidadVenta) {
 		
+		//Una actualización diferida anterior sobrescribiría a esta al volcarse
+		descartarPendiente(unidadVenta.getIdUnidadVenta());
+		
 		int resultadoValidar = validarIntregidadDatos(unidadVenta);
 	
 		if (resultadoValidar == 0 || resultadoValidar == 3) {
@@ -74,6 +154,10 @@ public class GestorUnidadVenta {
 				
 				if (auxUnidadVenta.isPresent()) {
 					
+					outbox.registrar(UnidadVenta.class, unidadVenta.getIdUnidadVenta(), OperacionCambio.MODIFICACION);
+					
+					catalogoUnidadesVenta.recargarTrasCommit();
+					
 					return 0; //Persistido correctamente
 					
 				}else {
@@ -91,6 +175,77 @@ public class GestorUnidadVenta {
 		return resultadoValidar;
 	}
 	
+	/**
+	 * Método para actualizaciones frecuentes de Unidades de Venta. Con la escritura diferida habilitada la
+	 * actualización se encola y se escribe más tarde junto con las demás, y si el mismo id se actualiza varias
+	 * veces antes del volcado solo se escribe la última; hasta entonces el catálogo sigue devolviendo los
+	 * valores anteriores. Sin ella equivale a actualizarUnidadVenta()
+	 * @param unidadVenta Recibe el objeto con sus nuevos valores; no debe modificarse después
+	 * @return	Devuelve 0 si se ha encolado (o actualizado) correctamente
+	 * 			1 si el Id es cero
+	 * 			2 si la descripcion es nula
+	 * 			5 si no existe en la BBDD
+	 * 			o los códigos de actualizarUnidadVenta() si la escritura diferida no está habilitada
+	 */
+	@Transactional
+	public int actualizarUnidadVentaEnDiferido(UnidadVenta unidadVenta) {
+		
+		if (colaActualizaciones == null) {
+			
+			return actualizarUnidadVenta(unidadVenta);
+		}
+		
+		int resultadoValidar = reglasValidacion.evaluarEnMemoria(unidadVenta);
+		
+		if (resultadoValidar != 0) {
+			
+			return resultadoValidar;
+		}
+		
+		if (!unidadVentaDao.existsById(unidadVenta.getIdUnidadVenta())) {
+			
+			return 5; //No existe el objeto a actualizar
+		}
+		
+		colaActualizaciones.encolar(unidadVenta);
+		
+		return 0;
+	}
+	
+	
+	/**
+	 * Método que escribe en la BBDD, en el hilo llamante, todas las actualizaciones diferidas pendientes
+	 * @return Devuelve el número de unidades de venta escritas
+	 */
+	@DevuelveRecuento
+	public int volcarActualizacionesDiferidas() {
+		
+		return colaActualizaciones != null ? colaActualizaciones.flush() : 0;
+	}
+	
+	
+	/**
+	 * Método que retira la actualización diferida pendiente de un id, esperando al volcado en curso si lo hay
+	 * @param idUnidadVenta Recibe el id
+	 */
+	private void descartarPendiente(int idUnidadVenta) {
+		
+		if (colaActualizaciones != null) {
+			
+			colaActualizaciones.descartar(idUnidadVenta);
+		}
+	}
+	
+	
+	/**
+	 * @return La cola de escritura diferida, con sus contadores, o null si no está habilitada
+	 */
+	public ColaEscrituraDiferida<UnidadVenta> getColaActualizaciones() {
+		
+		return colaActualizaciones;
+	}
+	
+	
 	/**
 	 * Método que elimina un objeto del tipo Unidad de Venta
 	 * @param idUnidadVenta	Recibe el Id de la Unidad de Venta a eliminar de la BBDD
@@ -98,14 +253,25 @@ public class GestorUnidadVenta {
 	 * 			1 si el Id que nos pasan es cero
 	 * 			2 si el Id que nos pasan no se encuentra en la BBDD
 	 */
+	@Transactional
 	public int eliminaUnidadVenta(int idUnidadVenta) {
 		
 		if (idUnidadVenta != 0) {
 			
-			if (buscarUnidadVenta(idUnidadVenta)) {
+			if (unidadVentaDao.existsById(idUnidadVenta)) {
+				
+				//Si no, el siguiente volcado la volvería a insertar
+				descartarPendiente(idUnidadVenta);
 				
 				unidadVentaDao.deleteById(idUnidadVenta);
 				
+				outbox.registrar(UnidadVenta.class, idUnidadVenta, OperacionCambio.BAJA);
+				
+				catalogoUnidadesVenta.recargarTrasCommit();
+				
+				//Y también la que se haya encolado mientras la transacción estaba abierta
+				TrasCommit.ejecutar(() -> descartarPendiente(idUnidadVenta));
+				
 				return 0;
 			}else {
 				
@@ -122,19 +288,12 @@ public class GestorUnidadVenta {
 	 * @param idUnidadVenta Recibe el Id de la Unidad de Venta a recuperar
 	 * @return	Devuelve el objeto Unidad de Venta solicitado o null sino lo consigue
 	 */
+	@PresupuestoConsultas(1)
 	public UnidadVenta obtenerUnidadVenta(int idUnidadVenta) {
 		
 		if (idUnidadVenta != 0) {
 			
-			if (buscarUnidadVenta(idUnidadVenta)) {
-				
-				Optional<UnidadVenta> optUnidadVenta = unidadVentaDao.findById(idUnidadVenta);
-				
-				if (optUnidadVenta.isPresent()) {
-					
-					return optUnidadVenta.get();
-				}
-			}
+			return catalogoUnidadesVenta.obtener(idUnidadVenta);
 		}
 		
 		return null;
@@ -146,17 +305,12 @@ public class GestorUnidadVenta {
 	 * @param idUnidadVenta	Recibe el id de la Unidad de Ventas
 	 * @return	Devuelve true si lo consigue y false sino
 	 */
+	@PresupuestoConsultas(1)
 	public boolean buscarUnidadVenta(int idUnidadVenta) {
 		
 		if (idUnidadVenta != 0) {
 			
-			Optional<UnidadVenta> optUnidadVenta = unidadVentaDao.findById(idUnidadVenta);
-			
-			if (optUnidadVenta.isPresent()) {
-				
-				return true;
-			}
-			
+			return catalogoUnidadesVenta.contiene(idUnidadVenta);
 		}
 		
 		return false;
@@ -164,11 +318,20 @@ public class GestorUnidadVenta {
 	
 	/**
 	 * Método que lista todas las Unidades de Ventas de Productos
-	 * @return Una lista con todas la unidades de venta
+	 * @return Una lista inmutable con todas la unidades de venta
 	 */
 	public List<UnidadVenta>listarTodasUnidadesVenta() {
 		
-		return unidadVentaDao.findAll();
+		return catalogoUnidadesVenta.listar();
+	}
+	
+	
+	/**
+	 * @return El catálogo en memoria de Unidades de Venta, con sus contadores de aciertos, fallos y recargas
+	 */
+	public CatalogoReferencia<UnidadVenta> getCatalogoUnidadesVenta() {
+		
+		return catalogoUnidadesVenta;
 	}
 	
 	/**
@@ -181,29 +344,6 @@ public class GestorUnidadVenta {
 	 */
 	private int validarIntregidadDatos(UnidadVenta unidadVenta) {
 		
-		if (unidadVenta.getIdUnidadVenta() != 0) {
-			
-			if (!buscarUnidadVenta(unidadVenta.getIdUnidadVenta())) {
-				
-				if ((unidadVenta.getDescripcion() != null) || (!unidadVenta.getDescripcion().isEmpty())){
-					
-					return 0;
-					
-				}else {
-					
-					return 2; //La descripcion es nula
-					
-				}
-				
-			}else {
-				
-				return 3; //Ya existe una Unidad de Venta en la BBDD
-			}
-			
-		}else {
-			
-			return 1; //El Id es cero
-		}
-		
+		return reglasValidacion.evaluar(unidadVenta);
 	}
 }
@@ -4,11 +4,35 @@
  */
 package com.myapp.bricolaje.model.service;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.Transactional;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 
 import com.myapp.bricolaje.model.persistency.IUsuarioDao;
 import com.myapp.bricolaje.model.repo.Usuario;
@@ -19,16 +43,102 @@ public class GestorUsuario {
 	@Autowired
 	private IUsuarioDao usuarioDao;
 	
+	@PersistenceContext
+	private EntityManager entityManager;
+	
+	@Autowired
+	private FiltroDniUsuarios filtroDni;
+	
+	@Autowired
+	private OutboxCambios outbox;
+	
+	@Autowired
+	private MeterRegistry meterRegistry;
+	
+	/** Número máximo de Usuarios en la caché por DNI; 0 la deshabilita */
+	@Value("${bricolaje.usuarios.cache.capacidad:10000}")
+	private int capacidadCache;
+	
+	@Value("${bricolaje.usuarios.cache.segundos-vida:60}")
+	private long segundosVidaCache;
+	
+	//Copias desvinculadas de los Usuarios por DNI; null si está deshabilitada
+	private CacheFrecuencia<String, Usuario> cacheUsuarios;
+	
+	/** Número máximo de valores por cláusula IN en las consultas por conjunto */
+	static final int MAXIMO_PARAMETROS_IN = 1000;
+	
+	/** Tamaño máximo de página admitido en las consultas paginadas de Usuarios */
+	static final int TAMANIO_PAGINA_MAXIMO = 500;
+	
+	private static final String CONSULTA_USUARIOS_DESDE_ID = "select u from Usuario u left join fetch u.rol left join fetch u.direccion "
+			+ "where u.idUsuario > :ultimoId order by u.idUsuario";
+	
+	private static final String CONSULTA_USUARIO_POR_DNI = "select u from Usuario u left join fetch u.rol left join fetch u.direccion "
+			+ "where u.dni = :dni";
+	
+	private static final String CONSULTA_NOMBRES_DESDE_ID = "select u.idUsuario, u.dni, u.nombres, u.apellidos from Usuario u "
+			+ "where u.idUsuario > :ultimoId order by u.idUsuario";
+	
+	//Proyección construida en la propia consulta: una sola sentencia con el Rol unido, sin entidades gestionadas
+	private static final String SELECT_RESUMEN_USUARIO = "select new com.myapp.bricolaje.model.service.ResumenUsuario("
+			+ "u.idUsuario, u.dni, u.nombres, u.apellidos, u.email, r.descripcion) from Usuario u left join u.rol r ";
+	
+	private static final String CONSULTA_RESUMENES_DESDE_ID = SELECT_RESUMEN_USUARIO
+			+ "where u.idUsuario > :ultimoId order by u.idUsuario";
+	
+	private static final String CONSULTA_RESUMENES_POR_NOMBRE = SELECT_RESUMEN_USUARIO
+			+ "where u.nombres = :nombres order by u.idUsuario";
+	
+	//Una sola sentencia: el número de filas afectadas indica si el Usuario existe
+	private static final String ACTUALIZACION_USUARIO = "update Usuario u set u.nombres = :nombres, u.apellidos = :apellidos, "
+			+ "u.edad = :edad, u.email = :email, u.telefono = :telefono, u.rol = :rol, u.direccion = :direccion "
+			+ "where u.idUsuario = :idUsuario and u.dni = :dni";
+	
+	private final AutocompletadoUsuarios autocompletado = new AutocompletadoUsuarios();
+	
+	//Códigos de validarIntegridadDatos(); la existencia del DNI es la única regla que consulta la BBDD, y solo si el
+	//filtro de DNI no la descarta. El filtro puede no conocer aún un DNI dado de alta desde otro nodo: en ese caso
+	//es el índice único sobre usuario.dni el que rechaza la inserción, con una excepción en lugar del código 3
+	private final ReglasValidacion<Usuario> reglasValidacion = ReglasValidacion.<Usuario>definir()
+			.enMemoria(2, usuario -> usuario.getDni() == null)
+			.enMemoria(4, usuario -> usuario.getNombres() == null)
+			.enMemoria(5, usuario -> usuario.getApellidos() == null)
+			.enMemoria(6, usuario -> usuario.getEdad() == 0)
+			.enMemoria(7, usuario -> usuario.getEmail() == null)
+			.enMemoria(8, usuario -> usuario.getTelefono() == 0)
+			.enMemoria(10, usuario -> usuario.getRol() == null || usuario.getRol().getIdRol() == 0)
+			.enMemoria(11, usuario -> usuario.getDireccion() == null || usuario.getDireccion().getIdDireccion() == 0)
+			.enBbdd(3, usuario -> usuario.getDni() != null && existeDni(usuario.getDni()))
+			.compilar();
+	
 	//------------------
 	
+	@PostConstruct
+	void iniciar() {
+		
+		if (capacidadCache > 0) {
+			
+			cacheUsuarios = new CacheFrecuencia<>(capacidadCache, segundosVidaCache);
+			
+			FunctionCounter.builder("bricolaje.cache.usuarios.aciertos", cacheUsuarios, CacheFrecuencia::getAciertos).register(meterRegistry);
+			FunctionCounter.builder("bricolaje.cache.usuarios.fallos", cacheUsuarios, CacheFrecuencia::getFallos).register(meterRegistry);
+			FunctionCounter.builder("bricolaje.cache.usuarios.expulsiones", cacheUsuarios, CacheFrecuencia::getExpulsiones).register(meterRegistry);
+			Gauge.builder("bricolaje.cache.usuarios.tamanio", cacheUsuarios, CacheFrecuencia::getTamanio).register(meterRegistry);
+		}
+	}
+	
+	
 	/**
-	 * Método que da de Alta a nuevos Usuarios
+	 * Método que da de Alta a nuevos Usuarios. Si el DNI lo registró otro nodo después de la última reconstrucción
+	 * del filtro de DNI, el índice único de usuario.dni rechaza la inserción con una DataIntegrityViolationException
 	 * @param usuario Recibe el objeto Usuario
 	 * @return	0 Devuelve 0 si fue agregado el nuevo Usuario
 	 * 			9 Si ha habido un fallo en la persistencia
 	 * 			resultadoValidacion conjunto de códigos generados propios de la valicacion de cada atributo del objeto Usuario
 	 * 			Ver método validarIntegridadDatos()
 	 */
+	@Transactional
 	public int altaUsuario(Usuario usuario) {
 		
 		int resultadoValidacion = validarIntegridadDatos(usuario);
@@ -39,6 +149,12 @@ public class GestorUsuario {
 			
 			if (optUsuario.isPresent()) {
 				
+				filtroDni.agregar(usuario.getDni());
+				
+				outbox.registrar(Usuario.class, optUsuario.get().getIdUsuario(), OperacionCambio.ALTA);
+				
+				indexarTrasCommit(optUsuario.get());
+				
 				return 0; //Nuevo Usuario registrado correctamente
 			}else {
 			
@@ -51,15 +167,116 @@ public class GestorUsuario {
 		
 	}
 	
+	
+	/**
+	 * Método que da de Alta a un lote de Usuarios. La unicidad de los DNI se comprueba para todo el lote con una
+	 * consulta por cada MAXIMO_PARAMETROS_IN DNIs y los Usuarios válidos se insertan en bloques de tamanioBloque.
+	 * Para que cada bloque viaje en un único batch JDBC, hibernate.jdbc.batch_size debe ser al menos tamanioBloque
+	 * y la generación del id de Usuario no puede ser IDENTITY. Un fallo de persistencia, como un DNI registrado desde
+	 * otro nodo que el filtro de DNI aún no conoce, revierte el lote completo.
+	 * @param usuarios Recibe la lista de Usuarios a dar de alta
+	 * @param tamanioBloque Recibe el número de inserciones que se envían a la BBDD de una sola vez
+	 * @return	Devuelve un array con un código por Usuario, en el mismo orden de la lista recibida:
+	 * 			0 si fue agregado, o los códigos 2 a 11 de validarIntegridadDatos(). Un DNI repetido dentro del
+	 * 			propio lote se trata como ya existente (3) a partir de su segunda aparición
+	 */
+	@Transactional
+	public int[] altaUsuariosEnLote(List<Usuario> usuarios, int tamanioBloque) {
+		
+		int[] resultados = new int[usuarios.size()];
+		
+		List<Usuario> validos = new ArrayList<>(usuarios.size());
+		
+		//Mismo orden de códigos que validarIntegridadDatos(): primero las reglas en memoria de cada Usuario...
+		for (int i = 0; i < resultados.length; i++) {
+			
+			resultados[i] = reglasValidacion.evaluarEnMemoria(usuarios.get(i));
+			
+			if (resultados[i] == 0) {
+				
+				validos.add(usuarios.get(i));
+			}
+		}
+		
+		//...y después la existencia, con una consulta por bloque de DNIs y solo para los Usuarios válidos
+		Set<String> dnisExistentes = buscarDnisExistentes(validos);
+		
+		Set<String> dnisDelLote = new HashSet<>();
+		
+		for (int i = 0; i < resultados.length; i++) {
+			
+			String dni = usuarios.get(i).getDni();
+			
+			if (resultados[i] == 0 && (dnisExistentes.contains(dni) || !dnisDelLote.add(dni))) {
+				
+				resultados[i] = 3; //El usuario ya existe
+			}
+		}
+		
+		int bloque = Math.max(1, tamanioBloque);
+		int pendientes = 0;
+		
+		for (int i = 0; i < resultados.length; i++) {
+			
+			if (resultados[i] == 0) {
+				
+				entityManager.persist(usuarios.get(i));
+				
+				filtroDni.agregar(usuarios.get(i).getDni());
+				
+				if (++pendientes == bloque) {
+					
+					//Enviamos el bloque y vaciamos el contexto de persistencia para no acumular entidades gestionadas
+					entityManager.flush();
+					entityManager.clear();
+					
+					pendientes = 0;
+				}
+			}
+		}
+		
+		if (pendientes > 0) {
+			
+			entityManager.flush();
+			entityManager.clear();
+		}
+		
+		//Tras el flush todos los Usuarios persistidos tienen ya su id asignado
+		List<Integer> idsAgregados = new ArrayList<>(resultados.length);
+		
+		for (int i = 0; i < resultados.length; i++) {
+			
+			if (resultados[i] == 0) {
+				
+				idsAgregados.add(usuarios.get(i).getIdUsuario());
+				
+				indexarTrasCommit(usuarios.get(i));
+			}
+		}
+		
+		outbox.registrar(Usuario.class, idsAgregados, OperacionCambio.ALTA);
+		
+		return resultados;
+	}
+	
 	/**
 	 * Método que verifica la existencia de un Usuario
 	 * @param idUsuario El id del Usuario
 	 * @param dni El documento de identidad del Usuario
 	 * @return Devuelve true si lo encuentra y false si no.
 	 */
+	@PresupuestoConsultas(1)
 	public boolean buscarUsuario(String dni) {
 		
-		Optional<Usuario> optUsuario = Optional.of(usuarioDao.findByDni( dni));
+		//Casi todos los DNI que se comprueban son nuevos: si el filtro descarta el DNI nos ahorramos la consulta
+		if (!filtroDni.puedeExistir(dni)) {
+			
+			return false;
+		}
+		
+		Optional<Usuario> optUsuario = Optional.ofNullable(usuarioDao.findByDni( dni));
+		
+		filtroDni.registrarResultado(optUsuario.isPresent());
 		
 		if (optUsuario.isPresent()){
 			
@@ -71,17 +288,51 @@ public class GestorUsuario {
 	
 	
 	/**
-	 * Método que busca y obtiene un objeto del tipo Usuario por medio del DNI
+	 * Método que busca y obtiene un objeto del tipo Usuario por medio del DNI. Con la caché habilitada se
+	 * devuelve una copia desvinculada, con su Rol y su Direccion ya cargados, que se puede modificar sin afectar
+	 * a la caché ni a la BBDD; la caché solo se alimenta con lecturas de la primaria hechas fuera de una transacción
 	 * @param dni	Recive el DNI del Usuario como parámetro
 	 * @return	Devuelve el objeto Usuario encontrado, sino un null
 	 */
+	@PresupuestoConsultas(1)
 	public Usuario obtenerUsuario(String dni) {
 		
 		if (dni != null) {
 			
-			Optional<Usuario> optUsuario = Optional.of(usuarioDao.findByDni(dni));
+			if (cacheUsuarios == null) {
+				
+				Optional<Usuario> optUsuario = Optional.ofNullable(usuarioDao.findByDni(dni));
+				
+				return optUsuario.orElse(null); //Si no hay objeto de vuelta envía null
+			}
+			
+			Usuario cacheado = cacheUsuarios.obtener(dni);
+			
+			if (cacheado == null) {
+				
+				//Antes de la consulta, para no guardar lo leído si entretanto se confirma un cambio del Usuario
+				long generacion = cacheUsuarios.getGeneracion();
+				
+				List<Usuario> encontrados = entityManager.createQuery(CONSULTA_USUARIO_POR_DNI, Usuario.class)
+						.setParameter("dni", dni)
+						.getResultList();
+				
+				if (encontrados.isEmpty()) {
+					
+					return null;
+				}
+				
+				cacheado = CopiaEntidades.copiar(encontrados.get(0));
+				
+				//Dentro de una transacción podríamos estar leyendo cambios que aún pueden deshacerse, y la réplica
+				//puede ir por detrás de la primaria
+				if (!TransactionSynchronizationManager.isActualTransactionActive() && !FuenteDatosEnrutada.isLecturaReplica()) {
+					
+					cacheUsuarios.guardarSiGeneracion(dni, cacheado, generacion);
+				}
+			}
 			
-			return optUsuario.orElse(null); //Si no hay objeto de vuelta envía null
+			return CopiaEntidades.copiar(cacheado); //Cada llamante recibe su propia copia
 			
 		}else {
 			
@@ -91,35 +342,49 @@ public class GestorUsuario {
 	
 	
 	/**
-	 * Método que modifica los atributos del objeto Usuario
+	 * Método que modifica los atributos del objeto Usuario identificado por su idUsuario y DNI. Se actualizan
+	 * nombres, apellidos, edad, email, teléfono, Rol y Direccion con una única sentencia UPDATE, sin leer antes
+	 * el Usuario; las entidades ya cargadas en el contexto de persistencia actual no reflejan el cambio
 	 * @param usuario	Recibe el nuevo objeto Usuario a ser actualizado
 	 * @return	Devuelve 0 si el cambio ha sido persistido correctamente
 	 * 			Devuelve la variable resultadoValidacion para advertir si falta algun atributo del objeto por definir
-	 * 			Devuelve 12 si ha habido problemas actualizando el objeto en la BBDD
+	 * 			Devuelve 12 si no existe un Usuario con ese id y DNI
 	 */
+	@Transactional
 	public int modificarUsuario(Usuario usuario) {
 		
-		int resultadoValidacion = validarIntegridadDatos(usuario);
+		//La existencia la comprueba el propio UPDATE, así que solo se aplican las reglas en memoria
+		int resultadoValidacion = reglasValidacion.evaluarEnMemoria(usuario);
 		
-		if (resultadoValidacion == 0) {
+		if (resultadoValidacion != 0) {
 			
-			Optional<Usuario> optUsuario = Optional.of(usuarioDao.findByIdUsuarioAndDni(usuario.getIdUsuario(), usuario.getDni()));
-			
-			//Recuperamos el Id para asignarlo y pasandolo al método save se entiende que es una actualización y no una operacion de nuevo Usuario
-			//incrementando el Id
-			usuario.setIdUsuario(optUsuario.get().getIdUsuario());
+			return resultadoValidacion;
+		}
+		
+		int actualizados = entityManager.createQuery(ACTUALIZACION_USUARIO)
+				.setParameter("nombres", usuario.getNombres())
+				.setParameter("apellidos", usuario.getApellidos())
+				.setParameter("edad", usuario.getEdad())
+				.setParameter("email", usuario.getEmail())
+				.setParameter("telefono", usuario.getTelefono())
+				.setParameter("rol", usuario.getRol())
+				.setParameter("direccion", usuario.getDireccion())
+				.setParameter("idUsuario", usuario.getIdUsuario())
+				.setParameter("dni", usuario.getDni())
+				.executeUpdate();
+		
+		if (actualizados == 0) {
 			
-			if (optUsuario.isPresent()) {
-				
-				usuarioDao.save(usuario);
-				
-			}else {
-				
-				return 12; //Ha habido un fallo intentando actualizar el objeto en la BBDD
-			}
+			return 12; //No existe el Usuario que se quiere actualizar
 		}
 		
-		return resultadoValidacion;
+		outbox.registrar(Usuario.class, usuario.getIdUsuario(), OperacionCambio.MODIFICACION);
+		
+		olvidarEnCache(usuario.getDni());
+		
+		indexarTrasCommit(usuario);
+		
+		return 0;
 	}
 	
 	
@@ -128,15 +393,24 @@ public class GestorUsuario {
 	 * @param dni Recibe el DNI del usuario
 	 * @return
 	 */
+	@Transactional
 	public int eliminarUSuario(String dni) {
 
 		if (dni != null) {
 
-			Optional<Usuario> optUusuario = Optional.of(usuarioDao.findByDni(dni));
+			Optional<Usuario> optUusuario = Optional.ofNullable(usuarioDao.findByDni(dni));
 
 			if (optUusuario.isPresent()) {
 
 				usuarioDao.delete(optUusuario.get());
+				
+				int idUsuario = optUusuario.get().getIdUsuario();
+				
+				outbox.registrar(Usuario.class, idUsuario, OperacionCambio.BAJA);
+				
+				olvidarEnCache(dni);
+				
+				TrasCommit.ejecutar(() -> autocompletado.eliminar(idUsuario));
 
 				return 0; // La eliminacion ha sido completada
 
@@ -163,6 +437,39 @@ public class GestorUsuario {
 	}
 	
 	
+	/**
+	 * Método para buscar los Usuarios que coincidan con el nombre suministrado, devolviendo solo su resumen
+	 * @param nombres Recibe el nombre que será la coincidencia de la búsqueda
+	 * @return Devuelve la lista de resúmenes de los Usuarios cuyos nombres coincidan, en orden de idUsuario
+	 */
+	public List<ResumenUsuario> buscarResumenUsuariosPorNombre(String nombres){
+		
+		return entityManager.createQuery(CONSULTA_RESUMENES_POR_NOMBRE, ResumenUsuario.class)
+				.setParameter("nombres", nombres)
+				.getResultList();
+	}
+	
+	
+	/**
+	 * Método que sugiere Usuarios mientras se teclea su nombre. Cada palabra del texto debe ser el comienzo de
+	 * alguna palabra de los nombres o apellidos del Usuario, sin distinguir mayúsculas ni acentos.
+	 * La primera llamada construye el índice leyendo todos los Usuarios; después se mantiene con cada alta,
+	 * modificación y baja.
+	 * @param texto Recibe el texto tecleado, por ejemplo "jos gar"
+	 * @param maximo Recibe el número máximo de sugerencias
+	 * @return Devuelve la lista de pares idUsuario/DNI de los Usuarios que coinciden
+	 */
+	public List<SugerenciaUsuario> autocompletarUsuarios(String texto, int maximo) {
+		
+		if (!autocompletado.isConstruido()) {
+			
+			construirAutocompletado();
+		}
+		
+		return autocompletado.buscar(texto, maximo);
+	}
+	
+	
 	/**
 	 * Método que proporciona una lista de todos los usuarios existentes
 	 * @return Devuelve una lista de objetos tipo Usuario
@@ -172,8 +479,358 @@ public class GestorUsuario {
 		return usuarioDao.findAll();
 	}
 	
+	
+	/**
+	 * Método que proporciona una página de Usuarios ordenada por idUsuario usando paginación keyset,
+	 * de forma que el coste de cada página no depende de su posición en la tabla
+	 * @param cursor Recibe el cursor devuelto por la página anterior, o null para la primera página
+	 * @param tamanioPagina Recibe el número de Usuarios por página, limitado a TAMANIO_PAGINA_MAXIMO
+	 * @return Devuelve la página con sus Usuarios (Rol y Direccion ya cargados) y el cursor de la siguiente
+	 */
+	public PaginaCursor<Usuario> listarUsuarios(String cursor, int tamanioPagina) {
+		
+		int limite = limitarTamanioPagina(tamanioPagina);
+		
+		//Pedimos un elemento de más para saber si existe una página siguiente sin lanzar un count
+		List<Usuario> usuarios = buscarBloqueUsuarios(PaginaCursor.decodificarCursor(cursor), limite + 1);
+		
+		if (usuarios.size() > limite) {
+			
+			usuarios = usuarios.subList(0, limite);
+			
+			return new PaginaCursor<>(usuarios, PaginaCursor.codificarCursor(usuarios.get(usuarios.size() - 1).getIdUsuario()));
+		}
+		
+		return new PaginaCursor<>(usuarios, null); //Última página
+	}
+	
+	
+	/**
+	 * Método que proporciona una página de resúmenes de Usuario ordenada por idUsuario usando paginación keyset.
+	 * Pensado para listados: cada página es una única consulta que no carga entidades ni Direcciones
+	 * @param cursor Recibe el cursor devuelto por la página anterior, o null para la primera página
+	 * @param tamanioPagina Recibe el número de Usuarios por página, limitado a TAMANIO_PAGINA_MAXIMO
+	 * @return Devuelve la página de resúmenes y el cursor de la siguiente
+	 */
+	public PaginaCursor<ResumenUsuario> listarResumenUsuarios(String cursor, int tamanioPagina) {
+		
+		int limite = limitarTamanioPagina(tamanioPagina);
+		
+		List<ResumenUsuario> resumenes = entityManager.createQuery(CONSULTA_RESUMENES_DESDE_ID, ResumenUsuario.class)
+				.setParameter("ultimoId", PaginaCursor.decodificarCursor(cursor))
+				.setMaxResults(limite + 1)
+				.getResultList();
+		
+		if (resumenes.size() > limite) {
+			
+			resumenes = resumenes.subList(0, limite);
+			
+			return new PaginaCursor<>(resumenes, PaginaCursor.codificarCursor(resumenes.get(resumenes.size() - 1).getIdUsuario()));
+		}
+		
+		return new PaginaCursor<>(resumenes, null); //Última página
+	}
+	
+	
+	/**
+	 * Método que recorre todos los Usuarios como un Stream que se alimenta por bloques. Solo se mantiene
+	 * en memoria el bloque en curso: al pedir el siguiente, los Usuarios ya procesados se desvinculan
+	 * del contexto de persistencia, por lo que el consumo de memoria no crece con el tamaño de la tabla
+	 * @param tamanioBloque Recibe el número de Usuarios a leer en cada consulta, limitado a TAMANIO_PAGINA_MAXIMO
+	 * @return Devuelve un Stream secuencial de Usuarios en orden ascendente de idUsuario
+	 */
+	public Stream<Usuario> streamUsuarios(int tamanioBloque) {
+		
+		Iterator<Usuario> iterador = new IteradorBloquesUsuarios(limitarTamanioPagina(tamanioBloque));
+		
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterador, Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+	
+	
+	/**
+	 * Método que entrega todos los Usuarios, bloque a bloque, al consumidor suministrado
+	 * @param consumidor Recibe la acción a aplicar sobre cada Usuario
+	 * @param tamanioBloque Recibe el número de Usuarios a leer en cada consulta
+	 * @return Devuelve el número de Usuarios procesados
+	 */
+	public long recorrerUsuarios(Consumer<Usuario> consumidor, int tamanioBloque) {
+		
+		long procesados = 0;
+		
+		Iterator<Usuario> iterador = new IteradorBloquesUsuarios(limitarTamanioPagina(tamanioBloque));
+		
+		while (iterador.hasNext()) {
+			
+			consumidor.accept(iterador.next());
+			
+			procesados++;
+		}
+		
+		return procesados;
+	}
+	
+	/**
+	 * Método que obtiene cuáles de los DNI de los Usuarios recibidos ya están registrados en la BBDD
+	 * @param usuarios Recibe la lista de Usuarios
+	 * @return Devuelve el conjunto de DNIs existentes
+	 */
+	private Set<String> buscarDnisExistentes(List<Usuario> usuarios) {
+		
+		List<String> dnis = new ArrayList<>(usuarios.size());
+		
+		for (Usuario usuario : usuarios) {
+			
+			//Solo consultamos los DNI que el filtro no puede descartar
+			if (usuario.getDni() != null && filtroDni.puedeExistir(usuario.getDni())) {
+				
+				dnis.add(usuario.getDni());
+			}
+		}
+		
+		Set<String> existentes = new HashSet<>();
+		
+		for (int desde = 0; desde < dnis.size(); desde += MAXIMO_PARAMETROS_IN) {
+			
+			existentes.addAll(entityManager.createQuery("select u.dni from Usuario u where u.dni in :dnis", String.class)
+					.setParameter("dnis", dnis.subList(desde, Math.min(desde + MAXIMO_PARAMETROS_IN, dnis.size())))
+					.getResultList());
+		}
+		
+		return existentes;
+	}
+	
+	
+	/**
+	 * Método que comprueba si un DNI ya está registrado, consultando la BBDD solo si el filtro de DNI no lo descarta
+	 * @param dni Recibe el DNI a comprobar
+	 * @return Devuelve true si existe un Usuario con ese DNI
+	 */
+	private boolean existeDni(String dni) {
+		
+		if (!filtroDni.puedeExistir(dni)) {
+			
+			return false;
+		}
+		
+		boolean existe = entityManager.createQuery("select count(u) from Usuario u where u.dni = :dni", Long.class)
+				.setParameter("dni", dni)
+				.getSingleResult() > 0;
+		
+		filtroDni.registrarResultado(existe);
+		
+		return existe;
+	}
+	
+	
+	private void indexarTrasCommit(Usuario usuario) {
+		
+		int idUsuario = usuario.getIdUsuario();
+		String dni = usuario.getDni();
+		String nombres = usuario.getNombres();
+		String apellidos = usuario.getApellidos();
+		
+		//Se aplica aunque el índice no esté construido: los cambios confirmados mientras se construye prevalecen
+		//sobre las filas que la construcción leyó antes de ellos
+		TrasCommit.ejecutar(() -> autocompletado.agregar(idUsuario, dni, nombres, apellidos));
+	}
+	
+	
+	/**
+	 * Método que carga en el índice de autocompletado los nombres de todos los Usuarios, leyendo solo las
+	 * columnas necesarias por bloques de idUsuario
+	 */
+	private synchronized void construirAutocompletado() {
+		
+		if (autocompletado.isConstruido()) {
+			
+			return;
+		}
+		
+		autocompletado.iniciarConstruccion();
+		
+		//Desde la réplica podrían faltar altas ya confirmadas, que el índice no volvería a recibir
+		FuenteDatosEnrutada.enPrimaria(() -> {
+			
+			int ultimoId = 0;
+			List<Object[]> filas;
+			
+			do {
+				
+				filas = entityManager.createQuery(CONSULTA_NOMBRES_DESDE_ID, Object[].class)
+						.setParameter("ultimoId", ultimoId)
+						.setMaxResults(TAMANIO_PAGINA_MAXIMO)
+						.getResultList();
+				
+				for (Object[] fila : filas) {
+					
+					autocompletado.agregarLeido((Integer) fila[0], (String) fila[1], (String) fila[2], (String) fila[3]);
+					
+					ultimoId = (Integer) fila[0];
+				}
+				
+			} while (filas.size() == TAMANIO_PAGINA_MAXIMO);
+		});
+		
+		autocompletado.marcarConstruido();
+	}
+	
+	
+	private List<Usuario> buscarBloqueUsuarios(int ultimoId, int maximo) {
+		
+		return entityManager.createQuery(CONSULTA_USUARIOS_DESDE_ID, Usuario.class)
+				.setParameter("ultimoId", ultimoId)
+				.setMaxResults(maximo)
+				.getResultList();
+	}
+	
+	
+	private static int limitarTamanioPagina(int tamanioPagina) {
+		
+		if (tamanioPagina < 1) {
+			
+			return 1;
+		}
+		
+		return Math.min(tamanioPagina, TAMANIO_PAGINA_MAXIMO);
+	}
+	
+	
+	/**
+	 * Iterador que lee los Usuarios por bloques consecutivos de idUsuario y desvincula cada bloque
+	 * ya consumido antes de leer el siguiente
+	 */
+	private class IteradorBloquesUsuarios implements Iterator<Usuario> {
+		
+		private final int tamanioBloque;
+		
+		private List<Usuario> bloque = Collections.emptyList();
+		
+		private int posicion;
+		
+		private int ultimoId;
+		
+		private boolean agotado;
+		
+		IteradorBloquesUsuarios(int tamanioBloque) {
+			
+			this.tamanioBloque = tamanioBloque;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			
+			if (posicion < bloque.size()) {
+				
+				return true;
+			}
+			
+			if (agotado) {
+				
+				return false;
+			}
+			
+			liberarBloque();
+			
+			bloque = buscarBloqueUsuarios(ultimoId, tamanioBloque);
+			posicion = 0;
+			
+			//Un bloque incompleto indica que no quedan más Usuarios tras él
+			agotado = bloque.size() < tamanioBloque;
+			
+			if (!bloque.isEmpty()) {
+				
+				ultimoId = bloque.get(bloque.size() - 1).getIdUsuario();
+			}
+			
+			return !bloque.isEmpty();
+		}
+		
+		@Override
+		public Usuario next() {
+			
+			if (!hasNext()) {
+				
+				throw new NoSuchElementException();
+			}
+			
+			return bloque.get(posicion++);
+		}
+		
+		private void liberarBloque() {
+			
+			//Fuera de una transacción cada consulta usa su propio EntityManager y los Usuarios ya llegan desvinculados
+			if (TransactionSynchronizationManager.isActualTransactionActive()) {
+				
+				for (Usuario usuario : bloque) {
+					
+					entityManager.detach(usuario);
+					
+					if (usuario.getDireccion() != null) {
+						
+						entityManager.detach(usuario.getDireccion());
+					}
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * @return Las reglas de validación del Usuario, por ejemplo para informar de todos los errores con evaluarTodas()
+	 */
+	public ReglasValidacion<Usuario> getReglasValidacion() {
+		
+		return reglasValidacion;
+	}
+	
+	
+	/**
+	 * @return La caché de Usuarios por DNI, con sus contadores de aciertos, fallos y expulsiones, o null si está deshabilitada
+	 */
+	public CacheFrecuencia<String, Usuario> getCacheUsuarios() {
+		
+		return cacheUsuarios;
+	}
+	
+	
 	/**
-	 * Método utilizado para validar que los datos recibidos del Usuario son los esperados
+	 * Método que retira de la caché los Usuarios cuya Direccion se ha modificado o eliminado, ya que la caché
+	 * guarda cada Usuario con su Direccion. Debe invocarse dentro de la transacción que hace el cambio
+	 * @param idsDireccion Recibe los ids de las direcciones
+	 */
+	public void olvidarUsuariosConDirecciones(Collection<Integer> idsDireccion) {
+		
+		if (cacheUsuarios != null && !idsDireccion.isEmpty()) {
+			
+			Set<Integer> ids = new HashSet<>(idsDireccion);
+			
+			Predicate<Usuario> conDireccion = usuario -> usuario.getDireccion() != null && ids.contains(usuario.getDireccion().getIdDireccion());
+			
+			cacheUsuarios.invalidarSi(conDireccion);
+			
+			TrasCommit.ejecutar(() -> cacheUsuarios.invalidarSi(conDireccion));
+		}
+	}
+	
+	
+	/**
+	 * Método que retira un Usuario de la caché en el acto y de nuevo al confirmar, por si una lectura concurrente
+	 * lo volvió a guardar con los datos anteriores antes del commit
+	 */
+	private void olvidarEnCache(String dni) {
+		
+		if (cacheUsuarios != null) {
+			
+			cacheUsuarios.invalidar(dni);
+			
+			TrasCommit.ejecutar(() -> cacheUsuarios.invalidar(dni));
+		}
+	}
+	
+	
+	/**
+	 * Método utilizado para validar que los datos recibidos del Usuario son los esperados. Los atributos se
+	 * comprueban antes que la existencia del DNI, de modo que un Usuario incompleto no llega a consultar la BBDD
 	 * @param usuario Recibe como parámetro un objeto del tipo Usuario
 	 * @return	Devuelve 0 si la persistencia fue exitosa
 	 * 			2 si el DNI es nulo
@@ -188,74 +845,6 @@ public class GestorUsuario {
 	 */			
 	private int validarIntegridadDatos(Usuario usuario) {
 		
-		if (usuario.getDni() != null) {
-
-			if (buscarUsuario(usuario.getDni())) {
-
-				return 3; //El usuario ya existe
-
-			}else {
-
-				if (usuario.getNombres() != null) {
-
-					if (usuario.getApellidos() != null) {
-
-						if (usuario.getEdad() != 0) {
-
-							if (usuario.getEmail() != null) {
-
-								if (usuario.getTelefono() != 0) {
-									
-									if (usuario.getRol().getIdRol() != 0) {
-										
-										if(usuario.getDireccion().getIdDireccion() != 0) {
-											
-											return 0; //La validación de todos los datos del Usuario ha sido correcta
-											
-										}else {
-											
-											return 11; //No tiene direcciones definida
-										}
-										
-									}else {
-										
-										return 10; //No hay rol establecido
-									}
-
-								}else {
-
-									return 8; //El telefono es cero
-
-								}
-
-							}else {
-
-								return 7; //El email es null
-
-							}
-
-						}else {
-
-							return 6; //La edad es cero
-
-						}
-
-					}else {
-
-						return 5; //El apellido es null
-
-					}
-
-				}else {
-
-					return 4; //El nombre es null
-				}
-			}
-
-		}else {
-
-			return 2; // El dni es null
-
-		}
+		return reglasValidacion.evaluar(usuario);
 	}
 }
@@ -0,0 +1,180 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.myapp.bricolaje.model.repo.Usuario;
+
+/**
+ * Fachada asíncrona de GestorUsuario. Cada llamada se ejecuta en un hilo virtual, de forma que las esperas de
+ * JDBC no ocupan hilos del servidor web, y un semáforo limita las llamadas simultáneas al tamaño del pool de
+ * conexiones para que la cola de espera quede aquí y no dentro del pool. Otros servicios que leen en paralelo,
+ * como GestorPerfilUsuario, comparten esos permisos con ejecutarConPermiso(). Los códigos de resultado son los
+ * mismos que los de GestorUsuario.
+ */
+@Service
+public class GestorUsuarioAsincrono {
+
+	@Autowired
+	private GestorUsuario gestorUsuario;
+
+	//Con la réplica habilitada las escrituras y las lecturas dentro de la ventana usan el pool de la primaria
+	@Value("${bricolaje.datasource.primaria.maximum-pool-size:${spring.datasource.hikari.maximum-pool-size:10}}")
+	private int tamanioPoolConexiones;
+
+	private Semaphore permisos;
+
+	private ExecutorService ejecutor;
+
+	//------------------
+
+	@PostConstruct
+	void iniciar() {
+
+		permisos = new Semaphore(tamanioPoolConexiones, true);
+
+		ejecutor = EjecutoresVirtuales.crear("gestor-usuario-asincrono", tamanioPoolConexiones);
+	}
+
+
+	@PreDestroy
+	void detener() {
+
+		ejecutor.shutdown();
+	}
+
+
+	/**
+	 * @see GestorUsuario#altaUsuario(Usuario)
+	 */
+	public CompletableFuture<Integer> altaUsuario(Usuario usuario) {
+
+		return ejecutar(() -> gestorUsuario.altaUsuario(usuario));
+	}
+
+
+	/**
+	 * @see GestorUsuario#obtenerUsuario(String)
+	 */
+	public CompletableFuture<Usuario> obtenerUsuario(String dni) {
+
+		return ejecutar(() -> gestorUsuario.obtenerUsuario(dni));
+	}
+
+
+	/**
+	 * @see GestorUsuario#modificarUsuario(Usuario)
+	 */
+	public CompletableFuture<Integer> modificarUsuario(Usuario usuario) {
+
+		return ejecutar(() -> gestorUsuario.modificarUsuario(usuario));
+	}
+
+
+	/**
+	 * @see GestorUsuario#eliminarUSuario(String)
+	 */
+	public CompletableFuture<Integer> eliminarUSuario(String dni) {
+
+		return ejecutar(() -> gestorUsuario.eliminarUSuario(dni));
+	}
+
+
+	/**
+	 * @see GestorUsuario#listarUsuarios()
+	 */
+	public CompletableFuture<List<Usuario>> listarUsuarios() {
+
+		return ejecutar(() -> gestorUsuario.listarUsuarios());
+	}
+
+
+	/**
+	 * @return Número de llamadas esperando a que quede libre una conexión
+	 */
+	@DevuelveRecuento
+	public int getLlamadasEnEspera() {
+
+		return permisos.getQueueLength();
+	}
+
+
+	/**
+	 * Método que ejecuta una lectura en el hilo actual ocupando uno de los permisos de esta fachada, esperando
+	 * como mucho hasta el límite indicado a que quede uno libre
+	 * @param lectura Recibe la lectura a ejecutar
+	 * @param limite Recibe el System.nanoTime() hasta el que se puede esperar un permiso
+	 * @return Devuelve el resultado de la lectura
+	 * @throws CompletionException con una TimeoutException como causa si no queda un permiso libre a tiempo
+	 */
+	<T> T ejecutarConPermiso(Supplier<T> lectura, long limite) {
+
+		try {
+
+			if (!permisos.tryAcquire(limite - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+
+				throw new CompletionException(new TimeoutException("Sin conexión libre dentro del plazo"));
+			}
+
+		} catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+
+			throw new CompletionException(e);
+		}
+
+		try {
+
+			return lectura.get();
+
+		} finally {
+
+			permisos.release();
+		}
+	}
+
+
+	private <T> CompletableFuture<T> ejecutar(Supplier<T> llamada) {
+
+		return CompletableFuture.supplyAsync(() -> {
+
+			try {
+
+				permisos.acquire();
+
+			} catch (InterruptedException e) {
+
+				Thread.currentThread().interrupt();
+
+				throw new CompletionException(e);
+			}
+
+			try {
+
+				return llamada.get();
+
+			} finally {
+
+				permisos.release();
+			}
+
+		}, ejecutor);
+	}
+}
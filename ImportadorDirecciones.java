@@ -0,0 +1,504 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.myapp.bricolaje.model.repo.Direccion;
+import com.myapp.bricolaje.model.repo.TipoDireccion;
+
+/**
+ * Importación masiva de direcciones desde ficheros CSV de varios GB. El fichero se lee por segmentos mapeados en
+ * memoria y las filas se trocean directamente sobre los bytes, sin crear una cadena por línea. Cada bloque de
+ * filas se valida en paralelo con las mismas reglas que GestorDireccion, comprueba con una consulta los ids ya
+ * existentes y con otra que los tipos de dirección existan, y se inserta en su propia transacción con batching
+ * JDBC (hibernate.jdbc.batch_size).
+ * 
+ * Formato de cada línea, sin comillas ni separadores dentro de los valores:
+ * 		idDireccion;calleAvenida;numero;planta;puerta;localidad;provincia;codigoPostal;idTipoDireccion
+ * Las filas rechazadas se escriben en el fichero de rechazos como "linea;codigo;contenido original", usando
+ * los códigos de error de GestorDireccion.agregarDireccion().
+ */
+@Service
+public class ImportadorDirecciones {
+
+	private static final int COLUMNAS = 9;
+
+	/** Tamaño de los segmentos del fichero que se mapean en memoria a la vez */
+	private static final long TAMANIO_SEGMENTO = 256L * 1024 * 1024;
+
+	@PersistenceContext
+	private EntityManager entityManager;
+
+	@Autowired
+	private GestorDireccion gestorDireccion;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	//------------------
+
+	/**
+	 * Método que importa un fichero CSV de direcciones
+	 * @param fichero Recibe la ruta del fichero a importar
+	 * @param separador Recibe el carácter separador de columnas, normalmente ';'
+	 * @param conCabecera Recibe si la primera línea es una cabecera que hay que saltar
+	 * @param ficheroRechazos Recibe la ruta donde escribir las filas rechazadas
+	 * @param progreso Recibe quien será notificado tras cada bloque, o null
+	 * @return Devuelve el estado final de la importación
+	 * @throws IOException si falla la lectura del fichero o la escritura de los rechazos
+	 */
+	public ProgresoImportacion importar(Path fichero, char separador, boolean conCabecera, Path ficheroRechazos, Consumer<ProgresoImportacion> progreso)
+			throws IOException {
+
+		long inicio = System.nanoTime();
+
+		TransactionTemplate transaccion = new TransactionTemplate(transactionManager);
+
+		try (FileChannel canal = FileChannel.open(fichero, StandardOpenOption.READ);
+				OutputStream rechazos = new BufferedOutputStream(Files.newOutputStream(ficheroRechazos), 64 * 1024)) {
+
+			long tamanio = canal.size();
+
+			Bloque bloque = new Bloque(GestorDireccion.MAXIMO_PARAMETROS_IN);
+
+			//Ids ya importados desde este fichero, para detectar duplicados entre bloques
+			ConjuntoEnteros importados = new ConjuntoEnteros();
+
+			long[] totales = new long[3]; //leidas, aceptadas, rechazadas
+
+			long posicion = 0;
+			long numeroLinea = 0;
+
+			while (posicion < tamanio) {
+
+				MappedByteBuffer segmento = canal.map(FileChannel.MapMode.READ_ONLY, posicion, Math.min(TAMANIO_SEGMENTO, tamanio - posicion));
+
+				int limite = segmento.limit();
+
+				//Solo procesamos hasta el último salto de línea; el resto se vuelve a mapear con el siguiente segmento
+				int finUltimaLinea = limite;
+
+				if (posicion + limite < tamanio) {
+
+					while (finUltimaLinea > 0 && segmento.get(finUltimaLinea - 1) != '\n') {
+
+						finUltimaLinea--;
+					}
+
+					if (finUltimaLinea == 0) {
+
+						throw new IOException("Línea de más de " + TAMANIO_SEGMENTO + " bytes en la posición " + posicion + " de " + fichero);
+					}
+				}
+
+				int inicioLinea = 0;
+
+				while (inicioLinea < finUltimaLinea) {
+
+					int finLinea = inicioLinea;
+
+					while (finLinea < finUltimaLinea && segmento.get(finLinea) != '\n') {
+
+						finLinea++;
+					}
+
+					numeroLinea++;
+
+					if (!(conCabecera && numeroLinea == 1) && finLinea > inicioLinea) {
+
+						bloque.agregar(segmento, inicioLinea, finLinea, separador, numeroLinea);
+					}
+
+					inicioLinea = finLinea + 1;
+
+					if (bloque.isLleno()) {
+
+						procesarBloque(bloque, importados, transaccion, rechazos, totales);
+
+						notificar(progreso, totales, posicion + inicioLinea, tamanio, inicio);
+					}
+				}
+
+				//El bloque guarda posiciones dentro del segmento, así que se procesa antes de mapear el siguiente
+				if (!bloque.isVacio()) {
+
+					procesarBloque(bloque, importados, transaccion, rechazos, totales);
+
+					notificar(progreso, totales, posicion + finUltimaLinea, tamanio, inicio);
+				}
+
+				posicion += finUltimaLinea;
+			}
+
+			ProgresoImportacion resultado = new ProgresoImportacion(totales[0], totales[1], totales[2], tamanio, tamanio, System.nanoTime() - inicio);
+
+			if (progreso != null) {
+
+				progreso.accept(resultado);
+			}
+
+			return resultado;
+		}
+	}
+
+
+	/**
+	 * Método que valida, resuelve colisiones e inserta un bloque de filas en una transacción
+	 */
+	private void procesarBloque(Bloque bloque, ConjuntoEnteros importados, TransactionTemplate transaccion, OutputStream rechazos, long[] totales)
+			throws IOException {
+
+		int filas = bloque.tamanio;
+
+		int[] codigos = new int[filas];
+
+		transaccion.executeWithoutResult(estado -> {
+
+			for (int i = 0; i < filas; i++) {
+
+				if (bloque.idsTipoDireccion[i] != 0) {
+
+					bloque.direcciones[i].setTipoDireccion(entityManager.getReference(TipoDireccion.class, bloque.idsTipoDireccion[i]));
+				}
+			}
+
+			//Reglas en memoria en paralelo y después la existencia, en el mismo orden que GestorDireccion.validarIntegridadDatos()
+			ReglasValidacion<Direccion> reglas = gestorDireccion.getReglasValidacion();
+
+			IntStream.range(0, filas).parallel().forEach(i -> codigos[i] = reglas.evaluarEnMemoria(bloque.direcciones[i]));
+
+			//Un tipo desconocido solo fallaría al hacer flush, abortando el bloque entero, así que se rechaza aquí la fila
+			Set<Integer> tiposExistentes = buscarTiposDireccionExistentes(bloque, codigos);
+
+			for (int i = 0; i < filas; i++) {
+
+				if (codigos[i] == 0 && !tiposExistentes.contains(bloque.idsTipoDireccion[i])) {
+
+					codigos[i] = 10; //No existe el tipo de dirección
+				}
+			}
+
+			Set<Integer> existentes = buscarIdsExistentes(bloque, codigos);
+
+			List<Direccion> aceptadas = new ArrayList<>(filas);
+
+			for (int i = 0; i < filas; i++) {
+
+				int idDireccion = bloque.direcciones[i].getIdDireccion();
+
+				if (codigos[i] != 0) {
+
+					continue; //Rechazada por las reglas en memoria
+				}
+
+				if (existentes.contains(idDireccion) || importados.contiene(idDireccion)) {
+
+					codigos[i] = 8; //Ya existe un id previo, en la BBDD o antes en el propio fichero
+
+				}else {
+
+					importados.agregar(idDireccion);
+
+					entityManager.persist(bloque.direcciones[i]);
+
+					aceptadas.add(bloque.direcciones[i]);
+				}
+			}
+
+			entityManager.flush();
+			entityManager.clear();
+
+			gestorDireccion.registrarAltas(aceptadas);
+		});
+
+		for (int i = 0; i < filas; i++) {
+
+			totales[0]++;
+
+			if (codigos[i] == 0) {
+
+				totales[1]++;
+
+			}else {
+
+				rechazos.write((bloque.numerosLinea[i] + ";" + codigos[i] + ";").getBytes(StandardCharsets.UTF_8));
+
+				for (int j = bloque.iniciosLinea[i]; j < bloque.finesLinea[i]; j++) {
+
+					rechazos.write(bloque.segmento.get(j));
+				}
+
+				rechazos.write('\n');
+
+				totales[2]++;
+			}
+		}
+
+		bloque.vaciar();
+	}
+
+
+	private Set<Integer> buscarIdsExistentes(Bloque bloque, int[] codigos) {
+
+		List<Integer> ids = new ArrayList<>(bloque.tamanio);
+
+		for (int i = 0; i < bloque.tamanio; i++) {
+
+			//Solo las filas que han superado las reglas en memoria, cuyo id ya sabemos que no es cero
+			if (codigos[i] == 0) {
+
+				ids.add(bloque.direcciones[i].getIdDireccion());
+			}
+		}
+
+		if (ids.isEmpty()) {
+
+			return new HashSet<>();
+		}
+
+		return new HashSet<>(entityManager.createQuery("select d.idDireccion from Direccion d where d.idDireccion in :ids", Integer.class)
+				.setParameter("ids", ids)
+				.getResultList());
+	}
+
+
+	private Set<Integer> buscarTiposDireccionExistentes(Bloque bloque, int[] codigos) {
+
+		Set<Integer> ids = new HashSet<>();
+
+		for (int i = 0; i < bloque.tamanio; i++) {
+
+			//Las filas sin tipo ya las ha rechazado la regla 10 en memoria
+			if (codigos[i] == 0) {
+
+				ids.add(bloque.idsTipoDireccion[i]);
+			}
+		}
+
+		if (ids.isEmpty()) {
+
+			return ids;
+		}
+
+		return new HashSet<>(entityManager.createQuery("select t.idTipoDireccion from TipoDireccion t where t.idTipoDireccion in :ids", Integer.class)
+				.setParameter("ids", ids)
+				.getResultList());
+	}
+
+
+	private static void notificar(Consumer<ProgresoImportacion> progreso, long[] totales, long bytesProcesados, long bytesTotales, long inicio) {
+
+		if (progreso != null) {
+
+			progreso.accept(new ProgresoImportacion(totales[0], totales[1], totales[2], bytesProcesados, bytesTotales, System.nanoTime() - inicio));
+		}
+	}
+
+
+	/**
+	 * Filas pendientes de procesar. Los arrays se reutilizan entre bloques; solo se crean las cadenas de los
+	 * valores que necesita la entidad Direccion.
+	 */
+	private static final class Bloque {
+
+		private final Direccion[] direcciones;
+
+		private final int[] idsTipoDireccion;
+
+		private final long[] numerosLinea;
+
+		//Posición de cada línea en el segmento, solo para copiarla al fichero de rechazos
+		private final int[] iniciosLinea;
+
+		private final int[] finesLinea;
+
+		private MappedByteBuffer segmento;
+
+		private final int[] inicios = new int[COLUMNAS];
+
+		private final int[] fines = new int[COLUMNAS];
+
+		private byte[] buffer = new byte[256];
+
+		private int tamanio;
+
+		Bloque(int capacidad) {
+
+			direcciones = new Direccion[capacidad];
+			idsTipoDireccion = new int[capacidad];
+			numerosLinea = new long[capacidad];
+			iniciosLinea = new int[capacidad];
+			finesLinea = new int[capacidad];
+		}
+
+		boolean isLleno() {
+
+			return tamanio == direcciones.length;
+		}
+
+		boolean isVacio() {
+
+			return tamanio == 0;
+		}
+
+		void vaciar() {
+
+			for (int i = 0; i < tamanio; i++) {
+
+				direcciones[i] = null;
+			}
+
+			segmento = null;
+			tamanio = 0;
+		}
+
+		void agregar(MappedByteBuffer segmento, int inicio, int fin, char separador, long numeroLinea) {
+
+			if (fin > inicio && segmento.get(fin - 1) == '\r') {
+
+				fin--;
+			}
+
+			int columnas = trocear(segmento, inicio, fin, (byte) separador);
+
+			Direccion direccion = new Direccion();
+
+			direccion.setIdDireccion(entero(segmento, 0, columnas));
+			direccion.setCalleAvenida(texto(segmento, 1, columnas));
+			direccion.setNumero(texto(segmento, 2, columnas));
+			direccion.setPlanta(texto(segmento, 3, columnas));
+			direccion.setPuerta(texto(segmento, 4, columnas));
+			direccion.setLocalidad(texto(segmento, 5, columnas));
+			direccion.setProvincia(texto(segmento, 6, columnas));
+			direccion.setCodigoPostal(entero(segmento, 7, columnas));
+
+			this.segmento = segmento;
+
+			direcciones[tamanio] = direccion;
+			idsTipoDireccion[tamanio] = entero(segmento, 8, columnas);
+			numerosLinea[tamanio] = numeroLinea;
+			iniciosLinea[tamanio] = inicio;
+			finesLinea[tamanio] = fin;
+
+			tamanio++;
+		}
+
+		/**
+		 * @return Devuelve el número de columnas encontradas, como máximo COLUMNAS
+		 */
+		private int trocear(MappedByteBuffer segmento, int inicio, int fin, byte separador) {
+
+			int columna = 0;
+
+			inicios[0] = inicio;
+
+			for (int i = inicio; i < fin && columna < COLUMNAS; i++) {
+
+				if (segmento.get(i) == separador) {
+
+					fines[columna++] = i;
+
+					if (columna < COLUMNAS) {
+
+						inicios[columna] = i + 1;
+					}
+				}
+			}
+
+			if (columna < COLUMNAS) {
+
+				fines[columna++] = fin;
+			}
+
+			return columna;
+		}
+
+		/**
+		 * @return Devuelve el valor de la columna, o null si la línea no la tiene o está vacía
+		 */
+		private String texto(MappedByteBuffer segmento, int columna, int columnas) {
+
+			if (columna >= columnas || fines[columna] == inicios[columna]) {
+
+				return null;
+			}
+
+			int longitud = fines[columna] - inicios[columna];
+
+			if (buffer.length < longitud) {
+
+				buffer = new byte[longitud * 2];
+			}
+
+			for (int i = 0; i < longitud; i++) {
+
+				buffer[i] = segmento.get(inicios[columna] + i);
+			}
+
+			return new String(buffer, 0, longitud, StandardCharsets.UTF_8).trim();
+		}
+
+		/**
+		 * @return Devuelve el valor numérico de la columna, o 0 si falta o no es un número, de forma que la
+		 * 			validación lo rechace con el código correspondiente al valor cero
+		 */
+		private int entero(MappedByteBuffer segmento, int columna, int columnas) {
+
+			if (columna >= columnas) {
+
+				return 0;
+			}
+
+			long valor = 0;
+			boolean hayDigitos = false;
+
+			for (int i = inicios[columna]; i < fines[columna]; i++) {
+
+				byte b = segmento.get(i);
+
+				if (b >= '0' && b <= '9') {
+
+					valor = valor * 10 + (b - '0');
+
+					hayDigitos = true;
+
+					if (valor > Integer.MAX_VALUE) {
+
+						return 0;
+					}
+
+				}else if (b != ' ') {
+
+					return 0;
+				}
+			}
+
+			return hayDigitos ? (int) valor : 0;
+		}
+	}
+}
@@ -0,0 +1,332 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Índice en memoria de los ids de Direccion por código postal, localidad y provincia. Los ids se guardan en
+ * ConjuntoEnteros y las claves de cada id en arrays paralelos con direccionamiento abierto, de forma que no hay
+ * objetos por dirección y se puede actualizar o retirar una dirección conociendo solo su id.
+ * Admite lecturas concurrentes; las modificaciones toman el bloqueo de escritura.
+ */
+class IndiceDirecciones {
+
+	private static final int[] SIN_IDS = new int[0];
+
+	private final ReadWriteLock bloqueo = new ReentrantReadWriteLock();
+
+	private final Map<Integer, ConjuntoEnteros> porCodigoPostal = new HashMap<>();
+
+	private final Map<String, GrupoTexto> porLocalidad = new HashMap<>();
+
+	private final Map<String, GrupoTexto> porProvincia = new HashMap<>();
+
+	//Claves indexadas de cada id: ids[] con direccionamiento abierto y el resto de arrays en paralelo
+	private int[] ids = new int[1024];
+
+	private int[] codigosPostales = new int[1024];
+
+	private String[] localidades = new String[1024];
+
+	private String[] provincias = new String[1024];
+
+	private int tamanio;
+
+	private volatile boolean construido;
+
+	//Direcciones modificadas o eliminadas mientras se construye el índice; null fuera de la construcción
+	private ConjuntoEnteros cambiadasDuranteConstruccion;
+
+	//------------------
+
+	boolean isConstruido() {
+
+		return construido;
+	}
+
+
+	/**
+	 * Método que empieza a anotar las direcciones que cambian mientras se leen todas de la BBDD, para que una fila
+	 * leída antes de una modificación o un borrado no lo deshaga al indexarse después
+	 */
+	void iniciarConstruccion() {
+
+		bloqueo.writeLock().lock();
+
+		try {
+
+			cambiadasDuranteConstruccion = new ConjuntoEnteros();
+
+		} finally {
+
+			bloqueo.writeLock().unlock();
+		}
+	}
+
+
+	void marcarConstruido() {
+
+		bloqueo.writeLock().lock();
+
+		try {
+
+			cambiadasDuranteConstruccion = null;
+
+			construido = true;
+
+		} finally {
+
+			bloqueo.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Método que indexa una dirección o, si ya estaba indexada, sustituye sus claves por las nuevas
+	 */
+	void agregar(int idDireccion, int codigoPostal, String localidad, String provincia) {
+
+		bloqueo.writeLock().lock();
+
+		try {
+
+			anotarCambio(idDireccion);
+
+			indexar(idDireccion, codigoPostal, localidad, provincia);
+
+		} finally {
+
+			bloqueo.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Método que indexa una dirección leída durante la construcción. Se descarta si la dirección ha cambiado desde
+	 * que empezó, porque lo indexado por agregar() o eliminar() es más reciente que lo leído
+	 */
+	void agregarLeida(int idDireccion, int codigoPostal, String localidad, String provincia) {
+
+		bloqueo.writeLock().lock();
+
+		try {
+
+			if (cambiadasDuranteConstruccion == null || !cambiadasDuranteConstruccion.contiene(idDireccion)) {
+
+				indexar(idDireccion, codigoPostal, localidad, provincia);
+			}
+
+		} finally {
+
+			bloqueo.writeLock().unlock();
+		}
+	}
+
+
+	void eliminar(int idDireccion) {
+
+		bloqueo.writeLock().lock();
+
+		try {
+
+			anotarCambio(idDireccion);
+
+			retirar(idDireccion);
+
+		} finally {
+
+			bloqueo.writeLock().unlock();
+		}
+	}
+
+
+	private void indexar(int idDireccion, int codigoPostal, String localidad, String provincia) {
+
+		retirar(idDireccion);
+
+		if ((tamanio + 1) * 4 > ids.length * 3) {
+
+			redimensionar(ids.length * 2);
+		}
+
+		int posicion = ConjuntoEnteros.posicion(ids, idDireccion);
+
+		ids[posicion] = idDireccion;
+		codigosPostales[posicion] = codigoPostal;
+		localidades[posicion] = agregarA(porLocalidad, localidad, idDireccion);
+		provincias[posicion] = agregarA(porProvincia, provincia, idDireccion);
+
+		porCodigoPostal.computeIfAbsent(codigoPostal, k -> new ConjuntoEnteros()).agregar(idDireccion);
+
+		tamanio++;
+	}
+
+
+	private void anotarCambio(int idDireccion) {
+
+		if (cambiadasDuranteConstruccion != null) {
+
+			cambiadasDuranteConstruccion.agregar(idDireccion);
+		}
+	}
+
+
+	int[] idsPorCodigoPostal(int codigoPostal) {
+
+		bloqueo.readLock().lock();
+
+		try {
+
+			ConjuntoEnteros conjunto = porCodigoPostal.get(codigoPostal);
+
+			return conjunto != null ? conjunto.aArray() : SIN_IDS;
+
+		} finally {
+
+			bloqueo.readLock().unlock();
+		}
+	}
+
+
+	int[] idsPorLocalidad(String localidad) {
+
+		return ids(porLocalidad, localidad);
+	}
+
+
+	int[] idsPorProvincia(String provincia) {
+
+		return ids(porProvincia, provincia);
+	}
+
+
+	private int[] ids(Map<String, GrupoTexto> porClave, String clave) {
+
+		bloqueo.readLock().lock();
+
+		try {
+
+			GrupoTexto grupo = porClave.get(clave);
+
+			return grupo != null ? grupo.ids.aArray() : SIN_IDS;
+
+		} finally {
+
+			bloqueo.readLock().unlock();
+		}
+	}
+
+
+	private void retirar(int idDireccion) {
+
+		int posicion = ConjuntoEnteros.posicion(ids, idDireccion);
+
+		if (ids[posicion] != idDireccion) {
+
+			return; //No estaba indexada
+		}
+
+		ConjuntoEnteros conjunto = porCodigoPostal.get(codigosPostales[posicion]);
+
+		if (conjunto != null && conjunto.eliminar(idDireccion) && conjunto.isVacio()) {
+
+			porCodigoPostal.remove(codigosPostales[posicion]);
+		}
+
+		quitarDe(porLocalidad, localidades[posicion], idDireccion);
+		quitarDe(porProvincia, provincias[posicion], idDireccion);
+
+		int vacia = ConjuntoEnteros.liberar(ids, posicion, (desde, hasta) -> {
+
+			codigosPostales[hasta] = codigosPostales[desde];
+			localidades[hasta] = localidades[desde];
+			provincias[hasta] = provincias[desde];
+		});
+
+		localidades[vacia] = null;
+		provincias[vacia] = null;
+
+		tamanio--;
+	}
+
+
+	private void redimensionar(int capacidad) {
+
+		int[] idsAnteriores = ids;
+		int[] codigosPostalesAnteriores = codigosPostales;
+		String[] localidadesAnteriores = localidades;
+		String[] provinciasAnteriores = provincias;
+
+		ids = new int[capacidad];
+		codigosPostales = new int[capacidad];
+		localidades = new String[capacidad];
+		provincias = new String[capacidad];
+
+		for (int i = 0; i < idsAnteriores.length; i++) {
+
+			if (idsAnteriores[i] != 0) {
+
+				int posicion = ConjuntoEnteros.posicion(ids, idsAnteriores[i]);
+
+				ids[posicion] = idsAnteriores[i];
+				codigosPostales[posicion] = codigosPostalesAnteriores[i];
+				localidades[posicion] = localidadesAnteriores[i];
+				provincias[posicion] = provinciasAnteriores[i];
+			}
+		}
+	}
+
+
+	/**
+	 * @return Devuelve la clave tal y como está guardada en el mapa, para que todas las direcciones con la misma
+	 * 			localidad o provincia compartan una única cadena
+	 */
+	private static String agregarA(Map<String, GrupoTexto> porClave, String clave, int idDireccion) {
+
+		if (clave == null) {
+
+			return null;
+		}
+
+		GrupoTexto grupo = porClave.computeIfAbsent(clave, GrupoTexto::new);
+
+		grupo.ids.agregar(idDireccion);
+
+		return grupo.clave;
+	}
+
+
+	private static void quitarDe(Map<String, GrupoTexto> porClave, String clave, int idDireccion) {
+
+		if (clave == null) {
+
+			return;
+		}
+
+		GrupoTexto grupo = porClave.get(clave);
+
+		if (grupo != null && grupo.ids.eliminar(idDireccion) && grupo.ids.isVacio()) {
+
+			porClave.remove(clave);
+		}
+	}
+
+
+	private static final class GrupoTexto {
+
+		private final String clave;
+
+		private final ConjuntoEnteros ids = new ConjuntoEnteros();
+
+		GrupoTexto(String clave) {
+
+			this.clave = clave;
+		}
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Índice invertido de trigramas, inmutable, sobre un texto de cada elemento de una lista. Resuelve búsquedas de
+ * tipo "contiene" intersecando las listas de posiciones de los trigramas de la consulta y verificando solo los
+ * candidatos resultantes, en lugar de recorrer todos los textos como haría un LIKE '%x%'.
+ * Los textos se comparan en mayúsculas, igual que las consultas a la BBDD a las que sustituye.
+ * @param <T> Tipo de los elementos indexados
+ */
+class IndiceTrigramas<T> {
+
+	private static final int[] SIN_POSICIONES = new int[0];
+
+	private final List<T> origen;
+
+	private final String[] textos;
+
+	private final Map<Long, int[]> posicionesPorTrigrama;
+
+	private final Map<String, int[]> posicionesPorTexto;
+
+	//------------------
+
+	/**
+	 * @param origen Lista de elementos a indexar; no debe modificarse después
+	 * @param extractorTexto Obtiene el texto a indexar de cada elemento
+	 */
+	IndiceTrigramas(List<T> origen, Function<T, String> extractorTexto) {
+
+		this.origen = origen;
+		this.textos = new String[origen.size()];
+
+		Map<Long, List<Integer>> trigramas = new HashMap<>();
+		Map<String, List<Integer>> iguales = new HashMap<>();
+
+		for (int i = 0; i < textos.length; i++) {
+
+			String texto = extractorTexto.apply(origen.get(i));
+
+			textos[i] = texto != null ? texto.toUpperCase(Locale.ROOT) : "";
+
+			iguales.computeIfAbsent(textos[i], k -> new ArrayList<>()).add(i);
+
+			for (int j = 0; j + 3 <= textos[i].length(); j++) {
+
+				List<Integer> posiciones = trigramas.computeIfAbsent(trigrama(textos[i], j), k -> new ArrayList<>());
+
+				//Un texto con el mismo trigrama repetido solo aparece una vez en su lista
+				if (posiciones.isEmpty() || posiciones.get(posiciones.size() - 1) != i) {
+
+					posiciones.add(i);
+				}
+			}
+		}
+
+		this.posicionesPorTrigrama = aArrays(trigramas);
+		this.posicionesPorTexto = aArrays(iguales);
+	}
+
+
+	/**
+	 * @return La lista a partir de la cual se construyó el índice
+	 */
+	List<T> getOrigen() {
+
+		return origen;
+	}
+
+
+	/**
+	 * Método que busca los elementos cuyo texto contiene la consulta, sin distinguir mayúsculas
+	 * @param consulta Recibe el texto a buscar
+	 * @param maximo Recibe el número máximo de resultados; si es mayor que cero se devuelven los mejor
+	 * 			clasificados (coincidencia más cercana al inicio y, a igualdad, texto más corto), si no todos
+	 * 			en el orden original
+	 * @return Devuelve la lista de elementos encontrados
+	 */
+	List<T> buscarQueContenga(String consulta, int maximo) {
+
+		String buscado = consulta.toUpperCase(Locale.ROOT);
+
+		List<Integer> encontrados = new ArrayList<>();
+
+		if (buscado.length() < 3) {
+
+			//Sin trigramas que intersecar verificamos todos los textos
+			for (int i = 0; i < textos.length; i++) {
+
+				if (textos[i].contains(buscado)) {
+
+					encontrados.add(i);
+				}
+			}
+
+		}else {
+
+			for (int posicion : candidatos(buscado)) {
+
+				if (textos[posicion].contains(buscado)) {
+
+					encontrados.add(posicion);
+				}
+			}
+		}
+
+		if (maximo > 0 && encontrados.size() > 1) {
+
+			encontrados.sort(Comparator.<Integer>comparingInt(i -> textos[i].indexOf(buscado))
+					.thenComparingInt(i -> textos[i].length())
+					.thenComparingInt(i -> i));
+
+			if (encontrados.size() > maximo) {
+
+				encontrados = encontrados.subList(0, maximo);
+			}
+		}
+
+		return elementos(encontrados);
+	}
+
+
+	/**
+	 * Método que busca los elementos cuyo texto es igual a la consulta, sin distinguir mayúsculas
+	 * @param consulta Recibe el texto a buscar
+	 * @return Devuelve la lista de elementos encontrados
+	 */
+	List<T> buscarIguales(String consulta) {
+
+		int[] posiciones = posicionesPorTexto.getOrDefault(consulta.toUpperCase(Locale.ROOT), SIN_POSICIONES);
+
+		List<T> resultado = new ArrayList<>(posiciones.length);
+
+		for (int posicion : posiciones) {
+
+			resultado.add(origen.get(posicion));
+		}
+
+		return resultado;
+	}
+
+
+	private int[] candidatos(String buscado) {
+
+		int numeroTrigramas = buscado.length() - 2;
+
+		int[][] listas = new int[numeroTrigramas][];
+
+		for (int j = 0; j < numeroTrigramas; j++) {
+
+			listas[j] = posicionesPorTrigrama.get(trigrama(buscado, j));
+
+			if (listas[j] == null) {
+
+				return SIN_POSICIONES; //Algún trigrama no aparece en ningún texto
+			}
+		}
+
+		//Empezamos por la lista más corta para que las intersecciones sean lo más baratas posible
+		Arrays.sort(listas, Comparator.comparingInt(lista -> lista.length));
+
+		int[] resultado = listas[0];
+
+		for (int j = 1; j < listas.length && resultado.length > 0; j++) {
+
+			resultado = intersecar(resultado, listas[j]);
+		}
+
+		return resultado;
+	}
+
+
+	private List<T> elementos(List<Integer> posiciones) {
+
+		List<T> resultado = new ArrayList<>(posiciones.size());
+
+		for (int posicion : posiciones) {
+
+			resultado.add(origen.get(posicion));
+		}
+
+		return resultado;
+	}
+
+
+	private static int[] intersecar(int[] a, int[] b) {
+
+		int[] resultado = new int[Math.min(a.length, b.length)];
+
+		int i = 0;
+		int j = 0;
+		int n = 0;
+
+		while (i < a.length && j < b.length) {
+
+			if (a[i] < b[j]) {
+
+				i++;
+
+			}else if (a[i] > b[j]) {
+
+				j++;
+
+			}else {
+
+				resultado[n++] = a[i];
+
+				i++;
+				j++;
+			}
+		}
+
+		return Arrays.copyOf(resultado, n);
+	}
+
+
+	private static long trigrama(String texto, int desde) {
+
+		return ((long) texto.charAt(desde) << 32) | ((long) texto.charAt(desde + 1) << 16) | texto.charAt(desde + 2);
+	}
+
+
+	private static <K> Map<K, int[]> aArrays(Map<K, List<Integer>> listas) {
+
+		Map<K, int[]> resultado = new HashMap<>(listas.size() * 2);
+
+		for (Map.Entry<K, List<Integer>> entrada : listas.entrySet()) {
+
+			resultado.put(entrada.getKey(), entrada.getValue().stream().mapToInt(Integer::intValue).toArray());
+		}
+
+		return Collections.unmodifiableMap(resultado);
+	}
+}
@@ -0,0 +1,335 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.myapp.bricolaje.model.repo.Cargo;
+import com.myapp.bricolaje.model.repo.Modulo;
+import com.myapp.bricolaje.model.repo.Permiso;
+import com.myapp.bricolaje.model.repo.Rol;
+import com.myapp.bricolaje.model.repo.TipoProducto;
+import com.myapp.bricolaje.model.repo.UnidadVenta;
+
+/**
+ * Instantánea en disco local de los catálogos de referencia, para que un nodo recién arrancado no tenga que leer
+ * todas las tablas de referencia de la BBDD a la vez que empieza a recibir peticiones. Al arrancar se cargan los
+ * catálogos desde el archivo, si existe y es válido, y en segundo plano se recargan desde la BBDD para comprobar
+ * que siguen vigentes; mientras tanto las lecturas pueden devolver datos tan antiguos como la instantánea. Si esa
+ * recarga falla, por ejemplo porque la BBDD aún no está disponible, se reintenta con esperas crecientes hasta que
+ * una termina bien.
+ * El archivo se reescribe tras cada modificación de un catálogo, agrupando las que llegan seguidas.
+ * Se habilita indicando la ruta del archivo en bricolaje.catalogos.instantanea.ruta.
+ */
+@Component
+public class InstantaneaCatalogos {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(InstantaneaCatalogos.class);
+
+	@Autowired
+	private GestorCargo gestorCargo;
+
+	@Autowired
+	private GestorRol gestorRol;
+
+	@Autowired
+	private GestorPermiso gestorPermiso;
+
+	@Autowired
+	private GestorModulo gestorModulo;
+
+	@Autowired
+	private GestorTipoProducto gestorTipoProducto;
+
+	@Autowired
+	private GestorUnidadVenta gestorUnidadVenta;
+
+	/** Ruta del archivo de la instantánea; vacía la deshabilita */
+	@Value("${bricolaje.catalogos.instantanea.ruta:}")
+	private String ruta;
+
+	@Value("${bricolaje.catalogos.instantanea.retardo-escritura-ms:5000}")
+	private long retardoEscrituraMs;
+
+	/** Espera antes del primer reintento de la recarga de arranque; se duplica en cada fallo */
+	@Value("${bricolaje.catalogos.instantanea.reintento-inicial-ms:1000}")
+	private long reintentoInicialMs;
+
+	@Value("${bricolaje.catalogos.instantanea.reintento-maximo-ms:60000}")
+	private long reintentoMaximoMs;
+
+	private final Map<String, Registro<?>> registros = new LinkedHashMap<>();
+
+	private final AtomicBoolean escrituraPendiente = new AtomicBoolean();
+
+	private ScheduledExecutorService planificador;
+
+	private Path archivo;
+
+	//CRC del contenido que hay en disco, para no reescribirlo si no ha cambiado
+	private long crcEnDisco = -1;
+
+	//------------------
+
+	@PostConstruct
+	void iniciar() {
+
+		if (ruta == null || ruta.trim().isEmpty()) {
+
+			return; //Instantánea deshabilitada
+		}
+
+		archivo = Paths.get(ruta.trim());
+
+		registrar(gestorCargo.getCatalogoCargos(), Cargo.class);
+		registrar(gestorRol.getCatalogoRoles(), Rol.class);
+		registrar(gestorPermiso.getCatalogoPermisos(), Permiso.class);
+		registrar(gestorModulo.getCatalogoModulos(), Modulo.class);
+		registrar(gestorTipoProducto.getCatalogoTiposProducto(), TipoProducto.class);
+		registrar(gestorUnidadVenta.getCatalogoUnidadesVenta(), UnidadVenta.class);
+
+		planificador = Executors.newSingleThreadScheduledExecutor(tarea -> {
+
+			Thread hilo = new Thread(tarea, "instantanea-catalogos");
+
+			hilo.setDaemon(true);
+
+			return hilo;
+		});
+
+		cargar();
+
+		planificador.execute(() -> validarAlArrancar(reintentoInicialMs));
+
+		for (Registro<?> registro : registros.values()) {
+
+			registro.catalogo.alRecargar(this::programarEscritura);
+		}
+	}
+
+
+	@PreDestroy
+	void detener() {
+
+		if (planificador != null) {
+
+			planificador.shutdownNow();
+		}
+	}
+
+
+	/**
+	 * Método que recarga todos los catálogos desde la BBDD y guarda la instantánea si ha cambiado. Se ejecuta en
+	 * segundo plano al arrancar para sustituir los datos cargados del archivo, y puede invocarse en cualquier
+	 * momento para forzar la comprobación
+	 */
+	public void validar() {
+
+		comprobarVigencia();
+	}
+
+
+	//Hasta que una recarga termina bien los catálogos pueden seguir con los datos del archivo, así que no basta con un intento
+	private void validarAlArrancar(long esperaMs) {
+
+		if (comprobarVigencia() || planificador.isShutdown()) {
+
+			return;
+		}
+
+		LOGGER.info("Se reintentará la recarga de los catálogos desde la BBDD en {} ms", esperaMs);
+
+		planificador.schedule(() -> validarAlArrancar(Math.min(esperaMs * 2, reintentoMaximoMs)), esperaMs, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * @return Devuelve true si se han recargado todos los catálogos desde la BBDD
+	 */
+	private boolean comprobarVigencia() {
+
+		try {
+
+			for (Registro<?> registro : registros.values()) {
+
+				registro.catalogo.recargar();
+			}
+
+		} catch (RuntimeException e) {
+
+			LOGGER.warn("No se pudo comprobar la vigencia de la instantánea de catálogos contra la BBDD", e);
+
+			return false;
+		}
+
+		if (!guardar()) {
+
+			LOGGER.info("La instantánea de catálogos de {} está vigente", archivo);
+		}
+
+		return true;
+	}
+
+
+	private void cargar() {
+
+		if (!Files.isRegularFile(archivo)) {
+
+			LOGGER.info("No hay instantánea de catálogos en {}, se cargarán desde la BBDD", archivo);
+
+			return;
+		}
+
+		long inicio = System.nanoTime();
+
+		try {
+
+			ArchivoCatalogos.Contenido contenido = ArchivoCatalogos.leer(archivo);
+
+			List<String> sembrados = new ArrayList<>();
+
+			for (Map.Entry<String, List<Object>> catalogo : contenido.getCatalogos().entrySet()) {
+
+				Registro<?> registro = registros.get(catalogo.getKey());
+
+				if (registro != null && registro.sembrar(catalogo.getValue())) {
+
+					sembrados.add(catalogo.getKey());
+				}
+			}
+
+			synchronized (this) {
+
+				crcEnDisco = contenido.getCrc();
+			}
+
+			LOGGER.info("Instantánea de catálogos del {} cargada en {} ms: {}", Instant.ofEpochMilli(contenido.getGenerada()),
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio), sembrados);
+
+		} catch (IOException | RuntimeException e) {
+
+			LOGGER.warn("Instantánea de catálogos de {} descartada, se cargarán desde la BBDD", archivo, e);
+		}
+	}
+
+
+	private void programarEscritura() {
+
+		//Las modificaciones seguidas se agrupan en una sola escritura
+		if (!planificador.isShutdown() && escrituraPendiente.compareAndSet(false, true)) {
+
+			planificador.schedule(() -> {
+
+				escrituraPendiente.set(false);
+
+				guardar();
+
+			}, retardoEscrituraMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+
+	/**
+	 * Método que escribe la instantánea con el contenido actual de los catálogos
+	 * @return Devuelve true si se escribió y false si el archivo ya tenía ese contenido o no se pudo escribir
+	 */
+	private synchronized boolean guardar() {
+
+		try {
+
+			Map<String, List<?>> catalogos = new LinkedHashMap<>();
+
+			for (Registro<?> registro : registros.values()) {
+
+				catalogos.put(registro.catalogo.getNombre(), registro.catalogo.listarCompartidas());
+			}
+
+			byte[] cuerpo = ArchivoCatalogos.codificar(catalogos);
+
+			long crc = ArchivoCatalogos.crc(cuerpo);
+
+			if (crc == crcEnDisco) {
+
+				return false;
+			}
+
+			ArchivoCatalogos.escribir(archivo, cuerpo, crc);
+
+			crcEnDisco = crc;
+
+			LOGGER.info("Instantánea de catálogos guardada en {} ({} bytes)", archivo, cuerpo.length);
+
+			return true;
+
+		} catch (IOException | RuntimeException e) {
+
+			LOGGER.warn("No se pudo guardar la instantánea de catálogos en {}", archivo, e);
+
+			return false;
+		}
+	}
+
+
+	private <T> void registrar(CatalogoReferencia<T> catalogo, Class<T> clase) {
+
+		registros.put(catalogo.getNombre(), new Registro<>(catalogo, clase));
+	}
+
+
+	private static final class Registro<T> {
+
+		private final CatalogoReferencia<T> catalogo;
+
+		private final Class<T> clase;
+
+		Registro(CatalogoReferencia<T> catalogo, Class<T> clase) {
+
+			this.catalogo = catalogo;
+			this.clase = clase;
+		}
+
+
+		boolean sembrar(List<Object> entidades) {
+
+			List<T> tipadas = new ArrayList<>(entidades.size());
+
+			for (Object entidad : entidades) {
+
+				if (!clase.isInstance(entidad)) {
+
+					LOGGER.warn("El catálogo {} de la instantánea contiene un {}, se cargará desde la BBDD", catalogo.getNombre(),
+							entidad == null ? null : entidad.getClass().getName());
+
+					return false;
+				}
+
+				tipadas.add(clase.cast(entidad));
+			}
+
+			return catalogo.sembrar(tipadas);
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Aspecto que mide la latencia de cada invocación de un método público de los Gestores y la publica como
+ * bricolaje.gestor.latencia, con histograma de percentiles y etiquetada con clase, metodo y resultado. El
+ * resultado es el código devuelto por los métodos que devuelven int, salvo en los marcados con DevuelveRecuento,
+ * donde es "0" o ">0" para no crear un temporizador por cada recuento distinto, true/false en los que devuelven
+ * boolean, "null" si no se ha devuelto nada, "excepcion" si ha fallado y "ok" en el resto; así las validaciones
+ * rechazadas y los fallos de persistencia aparecen por separado. En los métodos asíncronos se mide hasta que
+ * se completa el CompletableFuture devuelto.
+ * Solo se registra con bricolaje.gestor.latencia.habilitada=true, de modo que deshabilitado no añade ningún
+ * coste. Las métricas se consultan con el registro de Micrometer configurado: /actuator/metrics o
+ * /actuator/prometheus con management.endpoints.web.exposure.include, o JMX con micrometer-registry-jmx.
+ */
+@Aspect
+@Component
+@ConditionalOnProperty(name = "bricolaje.gestor.latencia.habilitada", havingValue = "true")
+@Order(-1)
+public class LatenciaGestoresAspect {
+
+	private static final String RESULTADO_EXCEPCION = "excepcion";
+
+	private static final String RESULTADO_NULO = "null";
+
+	private static final String RESULTADO_OK = "ok";
+
+	private static final String RESULTADO_CERO = "0";
+
+	private static final String RESULTADO_POSITIVO = ">0";
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private final ConcurrentMap<Method, Temporizadores> temporizadores = new ConcurrentHashMap<>();
+
+	//------------------
+
+	//Por fuera de ContabilidadConsultasAspect y de la transacción, para incluir el tiempo de confirmación
+	@Around("execution(public * com.myapp.bricolaje.model.service.Gestor*.*(..))")
+	public Object medir(ProceedingJoinPoint joinPoint) throws Throwable {
+
+		Method metodo = ((MethodSignature) joinPoint.getSignature()).getMethod();
+
+		Temporizadores temporizadoresMetodo = temporizadores.computeIfAbsent(metodo, Temporizadores::new);
+
+		long inicio = System.nanoTime();
+
+		Object resultado;
+
+		try {
+
+			resultado = joinPoint.proceed();
+
+		} catch (Throwable e) {
+
+			temporizadoresMetodo.registrar(RESULTADO_EXCEPCION, System.nanoTime() - inicio);
+
+			throw e;
+		}
+
+		if (resultado instanceof CompletionStage) {
+
+			((CompletionStage<?>) resultado).whenComplete((valor, error) -> temporizadoresMetodo.registrar(
+					error != null ? RESULTADO_EXCEPCION : temporizadoresMetodo.clave(valor), System.nanoTime() - inicio));
+
+		}else {
+
+			temporizadoresMetodo.registrar(temporizadoresMetodo.clave(resultado), System.nanoTime() - inicio);
+		}
+
+		return resultado;
+	}
+
+
+	/**
+	 * Temporizadores de un método, uno por cada resultado distinto que ha devuelto
+	 */
+	private final class Temporizadores {
+
+		private final String clase;
+
+		private final String nombreMetodo;
+
+		private final boolean recuento;
+
+		private final ConcurrentMap<Object, Timer> porResultado = new ConcurrentHashMap<>();
+
+		Temporizadores(Method metodo) {
+
+			this.clase = metodo.getDeclaringClass().getSimpleName();
+			this.nombreMetodo = metodo.getName();
+			this.recuento = metodo.isAnnotationPresent(DevuelveRecuento.class);
+		}
+
+
+		/**
+		 * Método que obtiene la clave del resultado sin crear objetos: los Integer y Boolean devueltos sirven de
+		 * clave directamente y su etiqueta solo se construye la primera vez que aparecen
+		 */
+		Object clave(Object valor) {
+
+			if (valor == null) {
+
+				return RESULTADO_NULO;
+			}
+
+			if (valor instanceof Integer && recuento) {
+
+				return ((Integer) valor) == 0 ? RESULTADO_CERO : RESULTADO_POSITIVO;
+			}
+
+			if (valor instanceof Integer || valor instanceof Boolean) {
+
+				return valor;
+			}
+
+			return RESULTADO_OK;
+		}
+
+
+		void registrar(Object resultado, long nanos) {
+
+			porResultado.computeIfAbsent(resultado, this::crear).record(nanos, TimeUnit.NANOSECONDS);
+		}
+
+
+		private Timer crear(Object resultado) {
+
+			return Timer.builder("bricolaje.gestor.latencia")
+					.description("Latencia por invocación de los métodos de los Gestores")
+					.tag("clase", clase)
+					.tag("metodo", nombreMetodo)
+					.tag("resultado", resultado.toString())
+					.publishPercentileHistogram()
+					.publishPercentiles(0.5, 0.95, 0.99)
+					.register(meterRegistry);
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import org.hibernate.BaseSessionEventListener;
+
+/**
+ * Escucha de sesión de Hibernate que imputa cada sentencia y cada batch JDBC a la ContabilidadConsultas del hilo.
+ * Se registra con la propiedad:
+ * spring.jpa.properties.hibernate.session.events.auto=com.myapp.bricolaje.model.service.MedidorSentenciasJdbc
+ */
+public class MedidorSentenciasJdbc extends BaseSessionEventListener {
+
+	private static final long serialVersionUID = 1L;
+
+	private long inicioSentencia;
+
+	private long inicioBatch;
+
+	//------------------
+
+	@Override
+	public void jdbcExecuteStatementStart() {
+
+		inicioSentencia = System.nanoTime();
+	}
+
+
+	@Override
+	public void jdbcExecuteStatementEnd() {
+
+		ContabilidadConsultas.registrarSentencia(System.nanoTime() - inicioSentencia);
+	}
+
+
+	@Override
+	public void jdbcExecuteBatchStart() {
+
+		inicioBatch = System.nanoTime();
+	}
+
+
+	@Override
+	public void jdbcExecuteBatchEnd() {
+
+		//Un batch es un único viaje de ida y vuelta a la BBDD aunque agrupe varias sentencias
+		ContabilidadConsultas.registrarSentencia(System.nanoTime() - inicioBatch);
+	}
+}
@@ -0,0 +1,273 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Motor de autorización que compila el grafo Rol -> Permiso -> Modulo en un bitset denso, de forma que decidir
+ * si un Rol tiene un Permiso sobre un Modulo es un único test de bit sin acceder a la BBDD ni crear objetos.
+ * Se recompila y se sustituye de forma atómica cada vez que GestorRol, GestorPermiso o GestorModulo modifican
+ * datos en este nodo, y además periódicamente para recoger los cambios hechos desde otros nodos: una concesión
+ * retirada en otro nodo puede seguir concediéndose aquí como mucho durante
+ * bricolaje.autorizacion.periodo-recompilacion-segundos. Los ids de Rol, Permiso y Modulo se usan como índices de arrays, por lo que deben ser enteros
+ * positivos pequeños, como los que genera un autoincremento.
+ */
+@Service
+public class MotorAutorizacion {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MotorAutorizacion.class);
+
+	@PersistenceContext
+	private EntityManager entityManager;
+
+	@Autowired
+	private GestorRol gestorRol;
+
+	@Autowired
+	private GestorPermiso gestorPermiso;
+
+	@Autowired
+	private GestorModulo gestorModulo;
+
+	/** Consulta JPQL que devuelve las concesiones como filas (idRol, idPermiso, idModulo) */
+	@Value("${bricolaje.autorizacion.consulta:select r.idRol, p.idPermiso, m.idModulo from Rol r join r.permisos p join p.modulo m}")
+	private String consultaConcesiones;
+
+	/** Máxima antigüedad de la matriz frente a los cambios hechos desde otros nodos */
+	@Value("${bricolaje.autorizacion.periodo-recompilacion-segundos:30}")
+	private long periodoRecompilacionSegundos;
+
+	private volatile Matriz matriz;
+
+	private ScheduledExecutorService planificador;
+
+	//------------------
+
+	@PostConstruct
+	void iniciar() {
+
+		gestorRol.getCatalogoRoles().alRecargar(this::recompilar);
+		gestorPermiso.getCatalogoPermisos().alRecargar(this::recompilar);
+		gestorModulo.getCatalogoModulos().alRecargar(this::recompilar);
+
+		planificador = Executors.newSingleThreadScheduledExecutor(tarea -> {
+
+			Thread hilo = new Thread(tarea, "motor-autorizacion");
+
+			hilo.setDaemon(true);
+
+			return hilo;
+		});
+
+		planificador.scheduleWithFixedDelay(this::recompilarPlanificado, periodoRecompilacionSegundos, periodoRecompilacionSegundos, TimeUnit.SECONDS);
+	}
+
+
+	@PreDestroy
+	void detener() {
+
+		planificador.shutdownNow();
+	}
+
+
+	/**
+	 * Método que decide si un Rol tiene concedido un Permiso sobre un Modulo
+	 * @param idRol Recibe el id del Rol
+	 * @param idPermiso Recibe el id del Permiso
+	 * @param idModulo Recibe el id del Modulo
+	 * @return Devuelve true si la concesión existe y false en cualquier otro caso, incluidos ids desconocidos
+	 */
+	public boolean tienePermiso(int idRol, int idPermiso, int idModulo) {
+
+		Matriz actual = matriz;
+
+		if (actual == null) {
+
+			actual = compilarSiHaceFalta();
+		}
+
+		return actual.contiene(idRol, idPermiso, idModulo);
+	}
+
+
+	/**
+	 * Método que vuelve a compilar la matriz desde la BBDD y la publica de una sola vez; las comprobaciones en
+	 * curso siguen usando la anterior hasta entonces
+	 */
+	public synchronized void recompilar() {
+
+		matriz = compilar();
+	}
+
+
+	private void recompilarPlanificado() {
+
+		try {
+
+			recompilar();
+
+		} catch (RuntimeException e) {
+
+			//Se sigue usando la matriz anterior hasta el siguiente intento
+			LOGGER.error("Fallo recompilando la matriz de autorización", e);
+		}
+	}
+
+
+	private synchronized Matriz compilarSiHaceFalta() {
+
+		if (matriz == null) {
+
+			matriz = compilar();
+		}
+
+		return matriz;
+	}
+
+
+	private Matriz compilar() {
+
+		List<Object[]> filas = entityManager.createQuery(consultaConcesiones, Object[].class).getResultList();
+
+		int[][] concesiones = new int[filas.size()][];
+
+		int maximoRol = 0;
+		int maximoPermiso = 0;
+		int maximoModulo = 0;
+
+		for (int i = 0; i < concesiones.length; i++) {
+
+			Object[] fila = filas.get(i);
+
+			concesiones[i] = new int[] { ((Number) fila[0]).intValue(), ((Number) fila[1]).intValue(), ((Number) fila[2]).intValue() };
+
+			maximoRol = Math.max(maximoRol, concesiones[i][0]);
+			maximoPermiso = Math.max(maximoPermiso, concesiones[i][1]);
+			maximoModulo = Math.max(maximoModulo, concesiones[i][2]);
+		}
+
+		//Primera pasada: índices densos para que solo ocupen bits los ids que aparecen en alguna concesión
+		int[] indiceRol = sinIndice(maximoRol + 1);
+		int[] indicePermiso = sinIndice(maximoPermiso + 1);
+		int[] indiceModulo = sinIndice(maximoModulo + 1);
+
+		int roles = 0;
+		int permisos = 0;
+		int modulos = 0;
+
+		for (int[] concesion : concesiones) {
+
+			if (indiceRol[concesion[0]] < 0) {
+
+				indiceRol[concesion[0]] = roles++;
+			}
+
+			if (indicePermiso[concesion[1]] < 0) {
+
+				indicePermiso[concesion[1]] = permisos++;
+			}
+
+			if (indiceModulo[concesion[2]] < 0) {
+
+				indiceModulo[concesion[2]] = modulos++;
+			}
+		}
+
+		//Segunda pasada: con las dimensiones definitivas fijamos los bits
+		Matriz nueva = new Matriz(indiceRol, indicePermiso, indiceModulo, permisos, modulos,
+				new long[(int) (((long) roles * modulos * permisos + 63) / 64)]);
+
+		for (int[] concesion : concesiones) {
+
+			int bit = nueva.bit(indiceRol[concesion[0]], indicePermiso[concesion[1]], indiceModulo[concesion[2]]);
+
+			nueva.bits[bit >>> 6] |= 1L << bit;
+		}
+
+		return nueva;
+	}
+
+
+	private static int[] sinIndice(int longitud) {
+
+		int[] indice = new int[longitud];
+
+		Arrays.fill(indice, -1);
+
+		return indice;
+	}
+
+
+	/**
+	 * Matriz de concesiones indexada por Rol, Modulo y Permiso. Es inmutable una vez publicada.
+	 */
+	private static final class Matriz {
+
+		private final int[] indiceRol;
+
+		private final int[] indicePermiso;
+
+		private final int[] indiceModulo;
+
+		private final int permisos;
+
+		private final int modulos;
+
+		private final long[] bits;
+
+		Matriz(int[] indiceRol, int[] indicePermiso, int[] indiceModulo, int permisos, int modulos, long[] bits) {
+
+			this.indiceRol = indiceRol;
+			this.indicePermiso = indicePermiso;
+			this.indiceModulo = indiceModulo;
+			this.permisos = permisos;
+			this.modulos = modulos;
+			this.bits = bits;
+		}
+
+		boolean contiene(int idRol, int idPermiso, int idModulo) {
+
+			if (idRol < 0 || idRol >= indiceRol.length || idPermiso < 0 || idPermiso >= indicePermiso.length
+					|| idModulo < 0 || idModulo >= indiceModulo.length) {
+
+				return false;
+			}
+
+			int rol = indiceRol[idRol];
+			int permiso = indicePermiso[idPermiso];
+			int modulo = indiceModulo[idModulo];
+
+			if ((rol | permiso | modulo) < 0) {
+
+				return false; //Alguno no aparece en ninguna concesión
+			}
+
+			int bit = bit(rol, permiso, modulo);
+
+			return (bits[bit >>> 6] & (1L << bit)) != 0;
+		}
+
+		private int bit(int rol, int permiso, int modulo) {
+
+			return (rol * modulos + modulo) * permisos + permiso;
+		}
+	}
+}
@@ -0,0 +1,17 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+/**
+ * Operaciones que se anotan en el registro de cambios
+ */
+public enum OperacionCambio {
+
+	ALTA,
+
+	MODIFICACION,
+
+	BAJA
+}
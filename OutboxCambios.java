@@ -0,0 +1,150 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.Transactional;
+import javax.transaction.Transactional.TxType;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Registro de cambios de las entidades gestionadas (patrón outbox). Los Gestores anotan cada alta, modificación
+ * y baja en la misma transacción que la produce, de modo que el registro nunca contiene cambios deshechos ni le
+ * faltan cambios confirmados. Los consumidores (índices de búsqueda, cachés, réplicas de informes) piden los
+ * cambios posteriores al último offset procesado en lugar de recorrer las tablas completas.
+ * La secuencia registro_cambio_seq debe crearse con incremento 1 y sin caché por sesión: cada hueco en los
+ * idCambio retrasa la entrega, como se explica en obtenerCambiosDesde().
+ */
+@Service
+public class OutboxCambios {
+
+	/** Número máximo de cambios devueltos por petición */
+	static final int MAXIMO_CAMBIOS = 1000;
+
+	private static final String CONSULTA_CAMBIOS_DESDE = "select c from RegistroCambio c "
+			+ "where c.idCambio > :offset order by c.idCambio";
+
+	@PersistenceContext
+	private EntityManager entityManager;
+
+	/** Duración máxima de una transacción de escritura. Ver obtenerCambiosDesde() */
+	@Value("${bricolaje.outbox.margen-visibilidad-ms:60000}")
+	private long margenVisibilidad;
+
+	//Primer id de cada hueco visto en el registro y el System.nanoTime() de este nodo en que se vio por primera vez
+	private final Map<Long, Long> huecosVistos = new ConcurrentHashMap<>();
+
+	//------------------
+
+	/**
+	 * Método que anota el cambio de una entidad. Debe invocarse dentro de la transacción que hace el cambio y
+	 * después de hacerlo
+	 * @param entidad Recibe la clase de la entidad modificada
+	 * @param idEntidad Recibe el id de la entidad
+	 * @param operacion Recibe la operación realizada
+	 */
+	@Transactional(TxType.MANDATORY)
+	public void registrar(Class<?> entidad, int idEntidad, OperacionCambio operacion) {
+
+		//Bloquea las filas modificadas antes de pedir el idCambio, que así sigue el orden de confirmación por entidad
+		entityManager.flush();
+
+		entityManager.persist(new RegistroCambio(entidad.getSimpleName(), idEntidad, operacion));
+	}
+
+
+	/**
+	 * Método que anota el mismo cambio para varias entidades del mismo tipo, para las operaciones por lotes
+	 * @param entidad Recibe la clase de las entidades modificadas
+	 * @param idsEntidad Recibe los ids de las entidades
+	 * @param operacion Recibe la operación realizada
+	 */
+	@Transactional(TxType.MANDATORY)
+	public void registrar(Class<?> entidad, List<Integer> idsEntidad, OperacionCambio operacion) {
+
+		String nombre = entidad.getSimpleName();
+
+		entityManager.flush();
+
+		for (int idEntidad : idsEntidad) {
+
+			entityManager.persist(new RegistroCambio(nombre, idEntidad, operacion));
+		}
+	}
+
+
+	/**
+	 * Método que entrega los cambios posteriores a un offset. Los idCambio se asignan al anotar el cambio pero se
+	 * hacen visibles al confirmar, así que una transacción aún abierta deja un hueco delante de cambios ya
+	 * visibles. La entrega se detiene en el primer hueco, para no saltarse ese cambio, hasta que lleva abierto más
+	 * de bricolaje.outbox.margen-visibilidad-ms desde que este nodo lo vio: como el id del hueco se asignó antes
+	 * que los visibles que lo siguen, para entonces su transacción habrá durado más que el margen y se da por
+	 * deshecha. El margen debe superar la duración máxima de las transacciones de escritura (su timeout), y solo
+	 * retrasa la entrega cuando hay huecos. Con offset 0 se empieza por el primer cambio que haya en el registro
+	 * @param offset Recibe el idCambio del último cambio procesado, 0 para empezar desde el principio
+	 * @param maximo Recibe el número máximo de cambios, limitado a MAXIMO_CAMBIOS
+	 * @return Devuelve los cambios en orden de idCambio; el idCambio del último es el offset de la siguiente
+	 * 			petición. Una lista vacía indica que no hay más cambios por ahora
+	 */
+	@Transactional
+	public List<RegistroCambio> obtenerCambiosDesde(long offset, int maximo) {
+
+		List<RegistroCambio> cambios = entityManager.createQuery(CONSULTA_CAMBIOS_DESDE, RegistroCambio.class)
+				.setParameter("offset", offset)
+				.setMaxResults(Math.max(1, Math.min(maximo, MAXIMO_CAMBIOS)))
+				.getResultList();
+
+		long ahora = System.nanoTime();
+
+		long margen = TimeUnit.MILLISECONDS.toNanos(margenVisibilidad);
+
+		huecosVistos.values().removeIf(visto -> ahora - visto > 2 * margen);
+
+		long esperado = offset + 1;
+
+		int entregables = 0;
+
+		for (RegistroCambio cambio : cambios) {
+
+			if (cambio.getIdCambio() != esperado && (offset != 0 || entregables > 0)) {
+
+				long visto = huecosVistos.computeIfAbsent(esperado, hueco -> ahora);
+
+				if (ahora - visto <= margen) {
+
+					break; //Puede ser una transacción que aún no ha confirmado
+				}
+			}
+
+			entregables++;
+
+			esperado = cambio.getIdCambio() + 1;
+		}
+
+		return cambios.subList(0, entregables);
+	}
+
+
+	/**
+	 * Método que elimina los cambios que ya han procesado todos los consumidores
+	 * @param offset Recibe el menor offset confirmado por los consumidores
+	 * @return Devuelve el número de cambios eliminados
+	 */
+	@Transactional
+	public int purgarHasta(long offset) {
+
+		return entityManager.createQuery("delete from RegistroCambio c where c.idCambio <= :offset")
+				.setParameter("offset", offset)
+				.executeUpdate();
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Página de resultados obtenida por paginación keyset (seek). El cursor es opaco para el cliente:
+ * codifica el último id devuelto y solo debe reenviarse tal cual para obtener la página siguiente.
+ * @param <T> Tipo de los elementos de la página
+ */
+public class PaginaCursor<T> {
+
+	private final List<T> elementos;
+
+	private final String siguienteCursor;
+
+	//------------------
+
+	public PaginaCursor(List<T> elementos, String siguienteCursor) {
+
+		this.elementos = Collections.unmodifiableList(elementos);
+		this.siguienteCursor = siguienteCursor;
+	}
+
+
+	/**
+	 * @return Los elementos de la página, en orden ascendente de id
+	 */
+	public List<T> getElementos() {
+
+		return elementos;
+	}
+
+
+	/**
+	 * @return El cursor para pedir la página siguiente o null si esta es la última
+	 */
+	public String getSiguienteCursor() {
+
+		return siguienteCursor;
+	}
+
+
+	public boolean hayMasPaginas() {
+
+		return siguienteCursor != null;
+	}
+
+
+	/**
+	 * Método que codifica el último id de una página como cursor opaco
+	 * @param ultimoId Recibe el id del último elemento devuelto
+	 * @return Devuelve el cursor en Base64 apto para URL
+	 */
+	static String codificarCursor(int ultimoId) {
+
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(ByteBuffer.allocate(4).putInt(ultimoId).array());
+	}
+
+
+	/**
+	 * Método que recupera el último id a partir de un cursor recibido del cliente
+	 * @param cursor Recibe el cursor, null o vacío para la primera página
+	 * @return Devuelve el id a partir del cual continuar, 0 si es la primera página
+	 */
+	static int decodificarCursor(String cursor) {
+
+		if (cursor == null || cursor.isEmpty()) {
+
+			return 0; //Primera página
+		}
+
+		byte[] bytes;
+
+		try {
+
+			bytes = Base64.getUrlDecoder().decode(cursor);
+
+		} catch (IllegalArgumentException e) {
+
+			throw new IllegalArgumentException("Cursor de paginación inválido: " + cursor, e);
+		}
+
+		if (bytes.length != 4) {
+
+			throw new IllegalArgumentException("Cursor de paginación inválido: " + cursor);
+		}
+
+		return ByteBuffer.wrap(bytes).getInt();
+	}
+}
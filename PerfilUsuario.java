@@ -0,0 +1,108 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import com.myapp.bricolaje.model.repo.Direccion;
+import com.myapp.bricolaje.model.repo.Permiso;
+import com.myapp.bricolaje.model.repo.Rol;
+import com.myapp.bricolaje.model.repo.Usuario;
+
+/**
+ * Perfil completo de un Usuario, con su Rol, su Direccion y los Permisos, obtenido por GestorPerfilUsuario.
+ * El Usuario es la única pieza imprescindible: las demás pueden faltar si no se obtuvieron dentro del plazo o
+ * fallaron, en cuyo caso son null o una lista vacía y aparecen en getPiezasFaltantes().
+ */
+public final class PerfilUsuario {
+
+	/**
+	 * Piezas opcionales del perfil
+	 */
+	public enum Pieza {
+		ROL, DIRECCION, PERMISOS
+	}
+
+	private final Usuario usuario;
+
+	private final Rol rol;
+
+	private final Direccion direccion;
+
+	private final List<Permiso> permisos;
+
+	private final Set<Pieza> piezasFaltantes;
+
+	//------------------
+
+	PerfilUsuario(Usuario usuario, Rol rol, Direccion direccion, List<Permiso> permisos, Set<Pieza> piezasFaltantes) {
+
+		this.usuario = usuario;
+		this.rol = rol;
+		this.direccion = direccion;
+		this.permisos = permisos != null ? Collections.unmodifiableList(permisos) : Collections.emptyList();
+		this.piezasFaltantes = Collections.unmodifiableSet(piezasFaltantes.isEmpty() ? EnumSet.noneOf(Pieza.class) : EnumSet.copyOf(piezasFaltantes));
+	}
+
+
+	public Usuario getUsuario() {
+
+		return usuario;
+	}
+
+
+	/**
+	 * @return El Rol del Usuario, o null si no tiene o si falta la pieza ROL
+	 */
+	public Rol getRol() {
+
+		return rol;
+	}
+
+
+	/**
+	 * @return La Direccion del Usuario, o null si no tiene o si falta la pieza DIRECCION. Debe usarse esta y no
+	 * 			la del Usuario, que puede no estar cargada
+	 */
+	public Direccion getDireccion() {
+
+		return direccion;
+	}
+
+
+	/**
+	 * @return Lista inmutable de Permisos, vacía si falta la pieza PERMISOS
+	 */
+	public List<Permiso> getPermisos() {
+
+		return permisos;
+	}
+
+
+	/**
+	 * @return Las piezas que no se pudieron obtener a tiempo
+	 */
+	public Set<Pieza> getPiezasFaltantes() {
+
+		return piezasFaltantes;
+	}
+
+
+	public boolean isCompleto() {
+
+		return piezasFaltantes.isEmpty();
+	}
+
+
+	@Override
+	public String toString() {
+
+		return "PerfilUsuario [usuario=" + usuario + ", rol=" + rol + ", direccion=" + direccion + ", permisos=" + permisos.size()
+				+ ", piezasFaltantes=" + piezasFaltantes + "]";
+	}
+}
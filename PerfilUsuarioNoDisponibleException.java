@@ -0,0 +1,31 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+/**
+ * Excepción lanzada cuando no se puede obtener el Usuario de un perfil dentro del plazo, o su lectura falla.
+ * Sin el Usuario no hay perfil parcial que devolver.
+ */
+public class PerfilUsuarioNoDisponibleException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String dni;
+
+	//------------------
+
+	public PerfilUsuarioNoDisponibleException(String dni, Throwable causa) {
+
+		super("No se ha podido obtener el perfil del Usuario con DNI " + dni, causa);
+
+		this.dni = dni;
+	}
+
+
+	public String getDni() {
+
+		return dni;
+	}
+}
@@ -0,0 +1,26 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declara el número máximo de sentencias SQL que puede ejecutar un método de un Gestor en cada invocación.
+ * ContabilidadConsultasAspect lo comprueba en cada llamada.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface PresupuestoConsultas {
+
+	/**
+	 * @return Número máximo de sentencias SQL por invocación
+	 */
+	int value();
+}
@@ -0,0 +1,39 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+/**
+ * Excepción lanzada cuando un método ejecuta más sentencias SQL de las declaradas en su PresupuestoConsultas
+ */
+public class PresupuestoConsultasExcedidoException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int presupuesto;
+
+	private final int sentencias;
+
+	//------------------
+
+	public PresupuestoConsultasExcedidoException(String metodo, int presupuesto, int sentencias) {
+
+		super(metodo + " ha ejecutado " + sentencias + " sentencias SQL y su presupuesto es de " + presupuesto);
+
+		this.presupuesto = presupuesto;
+		this.sentencias = sentencias;
+	}
+
+
+	public int getPresupuesto() {
+
+		return presupuesto;
+	}
+
+
+	public int getSentencias() {
+
+		return sentencias;
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+/**
+ * Estado de una importación masiva tras procesar un bloque de filas
+ */
+public final class ProgresoImportacion {
+
+	private final long filasLeidas;
+
+	private final long filasAceptadas;
+
+	private final long filasRechazadas;
+
+	private final long bytesProcesados;
+
+	private final long bytesTotales;
+
+	private final long nanosTranscurridos;
+
+	//------------------
+
+	public ProgresoImportacion(long filasLeidas, long filasAceptadas, long filasRechazadas, long bytesProcesados, long bytesTotales,
+			long nanosTranscurridos) {
+
+		this.filasLeidas = filasLeidas;
+		this.filasAceptadas = filasAceptadas;
+		this.filasRechazadas = filasRechazadas;
+		this.bytesProcesados = bytesProcesados;
+		this.bytesTotales = bytesTotales;
+		this.nanosTranscurridos = nanosTranscurridos;
+	}
+
+
+	public long getFilasLeidas() {
+
+		return filasLeidas;
+	}
+
+
+	public long getFilasAceptadas() {
+
+		return filasAceptadas;
+	}
+
+
+	public long getFilasRechazadas() {
+
+		return filasRechazadas;
+	}
+
+
+	public long getBytesProcesados() {
+
+		return bytesProcesados;
+	}
+
+
+	public long getBytesTotales() {
+
+		return bytesTotales;
+	}
+
+
+	/**
+	 * @return Porcentaje del fichero procesado, de 0 a 100
+	 */
+	public double getPorcentaje() {
+
+		return bytesTotales == 0 ? 100 : bytesProcesados * 100.0 / bytesTotales;
+	}
+
+
+	/**
+	 * @return Filas leídas por segundo desde el inicio de la importación
+	 */
+	public double getFilasPorSegundo() {
+
+		return nanosTranscurridos == 0 ? 0 : filasLeidas * 1_000_000_000.0 / nanosTranscurridos;
+	}
+
+
+	@Override
+	public String toString() {
+
+		return String.format("ProgresoImportacion [%.1f%%, leidas=%d, aceptadas=%d, rechazadas=%d, %.0f filas/s]", getPorcentaje(), filasLeidas,
+				filasAceptadas, filasRechazadas, getFilasPorSegundo());
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Recarga periódicamente desde la BBDD los catálogos de referencia. Cada nodo solo recarga sus catálogos al
+ * confirmar sus propias modificaciones, así que sin esta recarga los cambios hechos desde otros nodos no se
+ * verían nunca; con ella las lecturas van como mucho bricolaje.catalogos.periodo-recarga-segundos por detrás de
+ * la BBDD. Un periodo de 0 la deshabilita.
+ */
+@Component
+public class RecargaCatalogos {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RecargaCatalogos.class);
+
+	@Autowired
+	private GestorCargo gestorCargo;
+
+	@Autowired
+	private GestorRol gestorRol;
+
+	@Autowired
+	private GestorPermiso gestorPermiso;
+
+	@Autowired
+	private GestorModulo gestorModulo;
+
+	@Autowired
+	private GestorTipoProducto gestorTipoProducto;
+
+	@Autowired
+	private GestorUnidadVenta gestorUnidadVenta;
+
+	@Value("${bricolaje.catalogos.periodo-recarga-segundos:60}")
+	private long periodoRecargaSegundos;
+
+	private ScheduledExecutorService planificador;
+
+	//------------------
+
+	@PostConstruct
+	void iniciar() {
+
+		if (periodoRecargaSegundos <= 0) {
+
+			return; //Recarga periódica deshabilitada
+		}
+
+		List<CatalogoReferencia<?>> catalogos = Arrays.asList(gestorCargo.getCatalogoCargos(), gestorRol.getCatalogoRoles(),
+				gestorPermiso.getCatalogoPermisos(), gestorModulo.getCatalogoModulos(), gestorTipoProducto.getCatalogoTiposProducto(),
+				gestorUnidadVenta.getCatalogoUnidadesVenta());
+
+		planificador = Executors.newSingleThreadScheduledExecutor(tarea -> {
+
+			Thread hilo = new Thread(tarea, "recarga-catalogos");
+
+			hilo.setDaemon(true);
+
+			return hilo;
+		});
+
+		planificador.scheduleWithFixedDelay(() -> recargar(catalogos), periodoRecargaSegundos, periodoRecargaSegundos, TimeUnit.SECONDS);
+	}
+
+
+	@PreDestroy
+	void detener() {
+
+		if (planificador != null) {
+
+			planificador.shutdownNow();
+		}
+	}
+
+
+	private void recargar(List<CatalogoReferencia<?>> catalogos) {
+
+		for (CatalogoReferencia<?> catalogo : catalogos) {
+
+			try {
+
+				catalogo.recargar();
+
+			} catch (RuntimeException e) {
+
+				//Se sigue sirviendo la instantánea anterior hasta el siguiente intento
+				LOGGER.warn("Fallo recargando el catálogo {}", catalogo.getNombre(), e);
+			}
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.time.Instant;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+
+/**
+ * Cambio de una entidad anotado en la misma transacción que lo produjo (patrón outbox). Solo identifica la
+ * entidad afectada: los consumidores leen sus datos actuales si los necesitan. El idCambio es la posición del
+ * cambio en el registro y sirve de offset para pedir los siguientes. Lo asigna la secuencia de la BBDD de uno en
+ * uno, de modo que es único y creciente entre todos los nodos.
+ */
+@Entity
+@Table(name = "registro_cambio")
+public class RegistroCambio {
+
+	@Id
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "registro_cambio_seq")
+	@SequenceGenerator(name = "registro_cambio_seq", sequenceName = "registro_cambio_seq", allocationSize = 1)
+	private long idCambio;
+
+	@Column(nullable = false, length = 40)
+	private String entidad;
+
+	@Column(nullable = false)
+	private int idEntidad;
+
+	@Enumerated(EnumType.STRING)
+	@Column(nullable = false, length = 12)
+	private OperacionCambio operacion;
+
+	//Lo fija la BBDD al insertar, con su propio reloj
+	@Column(nullable = false, insertable = false, updatable = false, columnDefinition = "timestamp default current_timestamp")
+	private Instant registrado;
+
+	//------------------
+
+	protected RegistroCambio() {
+		//Requerido por JPA
+	}
+
+
+	public RegistroCambio(String entidad, int idEntidad, OperacionCambio operacion) {
+
+		this.entidad = entidad;
+		this.idEntidad = idEntidad;
+		this.operacion = operacion;
+	}
+
+
+	public long getIdCambio() {
+
+		return idCambio;
+	}
+
+
+	/**
+	 * @return El nombre simple de la clase de la entidad, por ejemplo "Usuario"
+	 */
+	public String getEntidad() {
+
+		return entidad;
+	}
+
+
+	public int getIdEntidad() {
+
+		return idEntidad;
+	}
+
+
+	public OperacionCambio getOperacion() {
+
+		return operacion;
+	}
+
+
+	/**
+	 * @return Versión del cambio, creciente para una misma entidad: permite descartar un cambio que llega después
+	 * 			de otro más reciente de la misma entidad. Es el idCambio, que OutboxCambios asigna con la fila de la
+	 * 			entidad ya bloqueada, así que dos cambios de la misma entidad reciben ids en el orden en que se
+	 * 			confirman
+	 */
+	public long getVersion() {
+
+		return idCambio;
+	}
+
+
+	/**
+	 * @return El momento en que se anotó el cambio según el reloj de la BBDD, o null en una instancia recién
+	 * 			persistida que no se ha vuelto a leer
+	 */
+	public Instant getRegistrado() {
+
+		return registrado;
+	}
+
+
+	@Override
+	public String toString() {
+
+		return "RegistroCambio [idCambio=" + idCambio + ", entidad=" + entidad + ", idEntidad=" + idEntidad + ", operacion=" + operacion
+				+ ", registrado=" + registrado + "]";
+	}
+}
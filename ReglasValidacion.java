@@ -0,0 +1,193 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Conjunto inmutable de reglas de validación de una entidad. Cada regla asocia un código de error a la condición
+ * que lo provoca. Al compilarse, las reglas que solo examinan atributos se colocan delante de las que consultan
+ * la BBDD, respetando el orden de declaración dentro de cada grupo, de forma que una entidad con un atributo
+ * incorrecto se rechaza sin llegar a la BBDD. La evaluación recorre arrays y no reserva memoria.
+ * Es seguro compartir una instancia entre hilos si las condiciones lo son.
+ * @param <T> Tipo de la entidad validada
+ */
+public final class ReglasValidacion<T> {
+
+	private final int[] codigos;
+
+	private final Predicate<? super T>[] incumplimientos;
+
+	//Las reglas en memoria ocupan las primeras posiciones de los arrays
+	private final int numeroEnMemoria;
+
+	//------------------
+
+	private ReglasValidacion(int[] codigos, Predicate<? super T>[] incumplimientos, int numeroEnMemoria) {
+
+		this.codigos = codigos;
+		this.incumplimientos = incumplimientos;
+		this.numeroEnMemoria = numeroEnMemoria;
+	}
+
+
+	/**
+	 * Método que inicia la declaración de un conjunto de reglas
+	 * @return Devuelve la definición vacía sobre la que declarar las reglas
+	 */
+	public static <T> Definicion<T> definir() {
+
+		return new Definicion<>();
+	}
+
+
+	/**
+	 * Método que valida una entidad
+	 * @param entidad Recibe la entidad a validar
+	 * @return Devuelve 0 si cumple todas las reglas o el código de la primera regla incumplida
+	 */
+	public int evaluar(T entidad) {
+
+		return evaluarHasta(entidad, codigos.length);
+	}
+
+
+	/**
+	 * Método que valida una entidad aplicando solo las reglas que no consultan la BBDD, para los procesos por lotes
+	 * que resuelven la existencia de todas las entidades con una sola consulta
+	 * @param entidad Recibe la entidad a validar
+	 * @return Devuelve 0 si cumple las reglas en memoria o el código de la primera regla incumplida
+	 */
+	public int evaluarEnMemoria(T entidad) {
+
+		return evaluarHasta(entidad, numeroEnMemoria);
+	}
+
+
+	/**
+	 * Método que valida una entidad aplicando todas las reglas, aunque alguna ya se haya incumplido, para informar
+	 * de todos los errores de una vez. Las reglas que consultan la BBDD se evalúan siempre
+	 * @param entidad Recibe la entidad a validar
+	 * @return Devuelve los códigos de las reglas incumplidas en orden de evaluación, vacío si es correcta
+	 */
+	public int[] evaluarTodas(T entidad) {
+
+		int[] incumplidas = new int[codigos.length];
+		int n = 0;
+
+		for (int i = 0; i < codigos.length; i++) {
+
+			if (incumplimientos[i].test(entidad)) {
+
+				incumplidas[n++] = codigos[i];
+			}
+		}
+
+		return Arrays.copyOf(incumplidas, n);
+	}
+
+
+	private int evaluarHasta(T entidad, int limite) {
+
+		for (int i = 0; i < limite; i++) {
+
+			if (incumplimientos[i].test(entidad)) {
+
+				return codigos[i];
+			}
+		}
+
+		return 0;
+	}
+
+
+	/**
+	 * Declaración de las reglas de una entidad. Cada condición debe devolver true cuando la entidad es incorrecta
+	 * @param <T> Tipo de la entidad validada
+	 */
+	public static final class Definicion<T> {
+
+		private final List<Integer> codigosMemoria = new ArrayList<>();
+
+		private final List<Predicate<? super T>> reglasMemoria = new ArrayList<>();
+
+		private final List<Integer> codigosBbdd = new ArrayList<>();
+
+		private final List<Predicate<? super T>> reglasBbdd = new ArrayList<>();
+
+		private Definicion() {
+		}
+
+
+		/**
+		 * Método que declara una regla que solo examina atributos de la entidad
+		 * @param codigo Recibe el código de error, distinto de cero
+		 * @param incumple Recibe la condición que hace incorrecta a la entidad
+		 * @return Devuelve la propia definición
+		 */
+		public Definicion<T> enMemoria(int codigo, Predicate<? super T> incumple) {
+
+			codigosMemoria.add(comprobarCodigo(codigo));
+			reglasMemoria.add(incumple);
+
+			return this;
+		}
+
+
+		/**
+		 * Método que declara una regla que necesita consultar la BBDD
+		 * @param codigo Recibe el código de error, distinto de cero
+		 * @param incumple Recibe la condición que hace incorrecta a la entidad
+		 * @return Devuelve la propia definición
+		 */
+		public Definicion<T> enBbdd(int codigo, Predicate<? super T> incumple) {
+
+			codigosBbdd.add(comprobarCodigo(codigo));
+			reglasBbdd.add(incumple);
+
+			return this;
+		}
+
+
+		/**
+		 * Método que fija el orden de evaluación y construye el conjunto de reglas inmutable
+		 * @return Devuelve las reglas compiladas
+		 */
+		@SuppressWarnings("unchecked")
+		public ReglasValidacion<T> compilar() {
+
+			int total = reglasMemoria.size() + reglasBbdd.size();
+
+			int[] codigos = new int[total];
+			Predicate<? super T>[] incumplimientos = new Predicate[total];
+
+			for (int i = 0; i < total; i++) {
+
+				boolean enMemoria = i < reglasMemoria.size();
+
+				int j = enMemoria ? i : i - reglasMemoria.size();
+
+				codigos[i] = enMemoria ? codigosMemoria.get(j) : codigosBbdd.get(j);
+				incumplimientos[i] = enMemoria ? reglasMemoria.get(j) : reglasBbdd.get(j);
+			}
+
+			return new ReglasValidacion<>(codigos, incumplimientos, reglasMemoria.size());
+		}
+
+
+		private static int comprobarCodigo(int codigo) {
+
+			if (codigo == 0) {
+
+				throw new IllegalArgumentException("El código 0 está reservado para una validación correcta");
+			}
+
+			return codigo;
+		}
+	}
+}
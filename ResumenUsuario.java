@@ -0,0 +1,84 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+/**
+ * Proyección de solo lectura de un Usuario para listados y búsquedas. Se construye directamente en la consulta
+ * JPQL, con la descripción del Rol ya resuelta, por lo que no es una entidad gestionada ni provoca cargas
+ * perezosas al serializarse.
+ */
+public final class ResumenUsuario {
+
+	private final int idUsuario;
+
+	private final String dni;
+
+	private final String nombres;
+
+	private final String apellidos;
+
+	private final String email;
+
+	private final String descripcionRol;
+
+	//------------------
+
+	public ResumenUsuario(int idUsuario, String dni, String nombres, String apellidos, String email, String descripcionRol) {
+
+		this.idUsuario = idUsuario;
+		this.dni = dni;
+		this.nombres = nombres;
+		this.apellidos = apellidos;
+		this.email = email;
+		this.descripcionRol = descripcionRol;
+	}
+
+
+	public int getIdUsuario() {
+
+		return idUsuario;
+	}
+
+
+	public String getDni() {
+
+		return dni;
+	}
+
+
+	public String getNombres() {
+
+		return nombres;
+	}
+
+
+	public String getApellidos() {
+
+		return apellidos;
+	}
+
+
+	public String getEmail() {
+
+		return email;
+	}
+
+
+	/**
+	 * @return La descripción del Rol del Usuario o null si no tiene Rol asignado
+	 */
+	public String getDescripcionRol() {
+
+		return descripcionRol;
+	}
+
+
+	@Override
+	public String toString() {
+
+		return "ResumenUsuario [idUsuario=" + idUsuario + ", dni=" + dni + ", nombres=" + nombres + ", apellidos=" + apellidos
+				+ ", email=" + email + ", descripcionRol=" + descripcionRol + "]";
+	}
+}
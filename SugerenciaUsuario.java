@@ -0,0 +1,42 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+/**
+ * Sugerencia devuelta por el autocompletado de Usuarios: identifica al Usuario sin cargar la entidad
+ */
+public final class SugerenciaUsuario {
+
+	private final int idUsuario;
+
+	private final String dni;
+
+	//------------------
+
+	public SugerenciaUsuario(int idUsuario, String dni) {
+
+		this.idUsuario = idUsuario;
+		this.dni = dni;
+	}
+
+
+	public int getIdUsuario() {
+
+		return idUsuario;
+	}
+
+
+	public String getDni() {
+
+		return dni;
+	}
+
+
+	@Override
+	public String toString() {
+
+		return "SugerenciaUsuario [idUsuario=" + idUsuario + ", dni=" + dni + "]";
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Utilidad para aplicar cambios a las estructuras en memoria solo cuando la transacción en curso se confirma,
+ * de forma que nunca reflejen datos que luego se deshagan
+ */
+final class TrasCommit {
+
+	private TrasCommit() {
+	}
+
+
+	/**
+	 * Método que ejecuta una acción al confirmarse la transacción en curso, o en el acto si no hay ninguna
+	 * @param accion Recibe la acción a ejecutar
+	 */
+	static void ejecutar(Runnable accion) {
+
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+
+				@Override
+				public void afterCommit() {
+
+					accion.run();
+				}
+			});
+
+		}else {
+
+			accion.run();
+		}
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.util.function.Supplier;
+
+/**
+ * Utilidad para las pruebas que comprueba cuántas sentencias SQL ejecuta un bloque de código, por ejemplo:
+ * 		VerificadorConsultas.comprobarPresupuesto(1, () -> gestorPermiso.obtenerPermiso(7));
+ * Requiere que MedidorSentenciasJdbc esté registrado en Hibernate.
+ */
+public final class VerificadorConsultas {
+
+	private VerificadorConsultas() {
+	}
+
+
+	/**
+	 * Método que ejecuta un bloque de código y cuenta sus sentencias SQL
+	 * @param accion Recibe el código a ejecutar
+	 * @return Devuelve el número de sentencias SQL ejecutadas
+	 */
+	public static int contarSentencias(Runnable accion) {
+
+		try (ContabilidadConsultas.Ambito ambito = ContabilidadConsultas.abrir("VerificadorConsultas")) {
+
+			accion.run();
+
+			return ambito.getSentencias();
+		}
+	}
+
+
+	/**
+	 * Método que ejecuta un bloque de código y falla si supera el número de sentencias SQL indicado
+	 * @param maximo Recibe el número máximo de sentencias permitidas
+	 * @param accion Recibe el código a ejecutar
+	 * @return Devuelve el resultado del bloque de código
+	 * @throws AssertionError si se ejecutan más de maximo sentencias
+	 */
+	public static <T> T comprobarPresupuesto(int maximo, Supplier<T> accion) {
+
+		try (ContabilidadConsultas.Ambito ambito = ContabilidadConsultas.abrir("VerificadorConsultas")) {
+
+			T resultado = accion.get();
+
+			if (ambito.getSentencias() > maximo) {
+
+				throw new AssertionError("Se esperaban como máximo " + maximo + " sentencias SQL y se han ejecutado " + ambito.getSentencias());
+			}
+
+			return resultado;
+		}
+	}
+}
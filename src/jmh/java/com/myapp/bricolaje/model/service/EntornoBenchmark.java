@@ -0,0 +1,219 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+
+import com.myapp.bricolaje.model.repo.Cargo;
+import com.myapp.bricolaje.model.repo.Direccion;
+import com.myapp.bricolaje.model.repo.Rol;
+import com.myapp.bricolaje.model.repo.Usuario;
+
+/**
+ * Entorno compartido por los benchmarks JMH de la capa de servicio. Arranca los Gestores contra una H2 en memoria
+ * y la siembra una sola vez por fork con bricolaje.benchmark.usuarios Usuarios (1.000.000 por defecto) y
+ * bricolaje.benchmark.direcciones Direcciones (2.000.000 por defecto), que se pueden reducir con -D para pruebas
+ * rápidas. Los fork necesitan memoria para la H2: -Xmx8g con los volúmenes por defecto.
+ * Las fuentes de src/jmh/java las compila el plugin de Gradle me.champeau.jmh, con jmh { resultFormat = 'JSON' }
+ * para que los resultados se puedan comparar entre versiones:
+ * <pre>
+ * ./gradlew jmh                      (resultados en build/results/jmh/results.json)
+ * ./gradlew jmhJar
+ * java -Xmx8g -jar build/libs/bricolaje-jmh.jar -rf json -rff resultados.json [-prof gc] [regex del benchmark]
+ * </pre>
+ */
+final class EntornoBenchmark {
+
+	static final int USUARIOS = Integer.getInteger("bricolaje.benchmark.usuarios", 1_000_000);
+
+	static final int DIRECCIONES = Integer.getInteger("bricolaje.benchmark.direcciones", 2_000_000);
+
+	static final int CARGOS = 200;
+
+	static final int CODIGOS_POSTALES = 5_000;
+
+	static final int ID_ROL = 1;
+
+	private static final String[] PALABRAS_CARGO = { "Jefe", "Encargado", "Ayudante", "Responsable", "Tecnico", "Director",
+			"almacen", "tienda", "compras", "ventas", "logistica", "jardineria", "fontaneria", "electricidad" };
+
+	private static final int TAMANIO_LOTE_USUARIOS = 10_000;
+
+	private static ConfigurableApplicationContext contexto;
+
+	//------------------
+
+	private EntornoBenchmark() {
+	}
+
+
+	/**
+	 * Método que arranca y siembra la aplicación la primera vez que se invoca en el fork
+	 * @return Devuelve el contexto de la aplicación
+	 */
+	static synchronized ConfigurableApplicationContext arrancar() {
+
+		if (contexto == null) {
+
+			contexto = new SpringApplicationBuilder(AplicacionBenchmark.class)
+					.properties("spring.main.web-application-type=none",
+							"spring.datasource.url=jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1",
+							"spring.datasource.username=sa",
+							"spring.jpa.hibernate.ddl-auto=create",
+							"spring.jpa.properties.hibernate.jdbc.batch_size=1000",
+							"spring.jpa.properties.hibernate.order_inserts=true",
+							"logging.level.root=WARN")
+					.run();
+
+			sembrar();
+		}
+
+		return contexto;
+	}
+
+
+	/**
+	 * Método que cierra la aplicación cuando ya no la usa ningún benchmark del fork
+	 */
+	static synchronized void detener() {
+
+		if (contexto != null) {
+
+			contexto.close();
+
+			contexto = null;
+		}
+	}
+
+
+	/**
+	 * @return El DNI del Usuario sembrado en la posición indicada
+	 */
+	static String dni(int posicion) {
+
+		return String.format("%08dB", posicion);
+	}
+
+
+	/**
+	 * @return Un Usuario válido para altaUsuario(), con el DNI de la posición indicada
+	 */
+	static Usuario nuevoUsuario(int posicion) {
+
+		Rol rol = new Rol();
+		rol.setIdRol(ID_ROL);
+
+		Direccion direccion = new Direccion();
+		direccion.setIdDireccion(posicion % DIRECCIONES + 1);
+
+		Usuario usuario = new Usuario();
+
+		usuario.setDni(dni(posicion));
+		usuario.setNombres("Nombre" + posicion % 5_000);
+		usuario.setApellidos("Apellido" + posicion % 20_000);
+		usuario.setEdad(18 + posicion % 60);
+		usuario.setEmail("usuario" + posicion + "@bricolaje.com");
+		usuario.setTelefono(600_000_000 + posicion);
+		usuario.setRol(rol);
+		usuario.setDireccion(direccion);
+
+		return usuario;
+	}
+
+
+	/**
+	 * @return Una descripción de Cargo sembrada, formada por dos palabras
+	 */
+	static String descripcionCargo(int posicion) {
+
+		return PALABRAS_CARGO[posicion % 6] + " de " + PALABRAS_CARGO[6 + posicion % (PALABRAS_CARGO.length - 6)] + " " + posicion;
+	}
+
+
+	private static void sembrar() {
+
+		Rol rol = new Rol();
+		rol.setIdRol(ID_ROL);
+		rol.setDescripcion("Empleado");
+
+		contexto.getBean(GestorRol.class).agregarRol(rol);
+
+		GestorCargo gestorCargo = contexto.getBean(GestorCargo.class);
+
+		for (int i = 1; i <= CARGOS; i++) {
+
+			Cargo cargo = new Cargo();
+			cargo.setIdCargo(i);
+			cargo.setDescripcion(descripcionCargo(i));
+
+			gestorCargo.agregarCargo(cargo);
+		}
+
+		sembrarDirecciones();
+
+		GestorUsuario gestorUsuario = contexto.getBean(GestorUsuario.class);
+
+		for (int desde = 0; desde < USUARIOS; desde += TAMANIO_LOTE_USUARIOS) {
+
+			List<Usuario> lote = new ArrayList<>(TAMANIO_LOTE_USUARIOS);
+
+			for (int i = desde; i < Math.min(desde + TAMANIO_LOTE_USUARIOS, USUARIOS); i++) {
+
+				lote.add(nuevoUsuario(i));
+			}
+
+			gestorUsuario.altaUsuariosEnLote(lote, 1_000);
+		}
+	}
+
+
+	//Las Direcciones se siembran con el importador, que es la vía prevista para grandes volúmenes
+	private static void sembrarDirecciones() {
+
+		try {
+
+			Path fichero = Files.createTempFile("direcciones-benchmark", ".csv");
+			Path rechazos = Files.createTempFile("direcciones-benchmark", ".rechazos");
+
+			try (BufferedWriter escritor = Files.newBufferedWriter(fichero, StandardCharsets.UTF_8)) {
+
+				for (int id = 1; id <= DIRECCIONES; id++) {
+
+					escritor.write(id + ";Calle " + id % 10_000 + ";" + id % 200 + ";" + (1 + id % 12) + ";" + (char) ('A' + id % 6)
+							+ ";Localidad " + id % 2_000 + ";Provincia " + id % 52 + ";" + (1_000 + id % CODIGOS_POSTALES) + ";0\n");
+				}
+			}
+
+			contexto.getBean(ImportadorDirecciones.class).importar(fichero, ';', false, rechazos, null);
+
+			Files.delete(fichero);
+			Files.delete(rechazos);
+
+		} catch (IOException e) {
+
+			throw new UncheckedIOException(e);
+		}
+	}
+
+
+	@SpringBootApplication(scanBasePackages = "com.myapp.bricolaje.model")
+	@EntityScan("com.myapp.bricolaje.model.repo")
+	@EnableJpaRepositories("com.myapp.bricolaje.model.persistency")
+	static class AplicacionBenchmark {
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Compara GestorUsuario con GestorUsuarioAsincrono cuando hay LLAMANTES peticiones simultáneas leyendo Usuarios.
+ * La vía síncrona reparte las llamadas en un pool de LLAMANTES hilos de plataforma, como haría Tomcat con un
+ * hilo por petición, y la asíncrona las lanza todas sobre la fachada y espera al conjunto de futuros. Cada
+ * invocación cuenta como LLAMANTES operaciones, de modo que el resultado es de Usuarios leídos por segundo.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class GestorUsuarioAsincronoBenchmark {
+
+	private static final int LLAMANTES = 1_024;
+
+	private GestorUsuario gestorUsuario;
+
+	private GestorUsuarioAsincrono gestorUsuarioAsincrono;
+
+	private ExecutorService hilosPlataforma;
+
+	//------------------
+
+	@Setup(Level.Trial)
+	public void preparar() {
+
+		ConfigurableApplicationContext contexto = EntornoBenchmark.arrancar();
+
+		gestorUsuario = contexto.getBean(GestorUsuario.class);
+		gestorUsuarioAsincrono = contexto.getBean(GestorUsuarioAsincrono.class);
+
+		hilosPlataforma = Executors.newFixedThreadPool(LLAMANTES);
+	}
+
+
+	@TearDown(Level.Trial)
+	public void terminar() {
+
+		hilosPlataforma.shutdownNow();
+
+		EntornoBenchmark.detener();
+	}
+
+
+	@Benchmark
+	@OperationsPerInvocation(LLAMANTES)
+	public Object sincrono() {
+
+		CompletableFuture<?>[] llamadas = new CompletableFuture<?>[LLAMANTES];
+
+		for (int i = 0; i < LLAMANTES; i++) {
+
+			String dni = dniAleatorio();
+
+			llamadas[i] = CompletableFuture.supplyAsync(() -> gestorUsuario.obtenerUsuario(dni), hilosPlataforma);
+		}
+
+		return CompletableFuture.allOf(llamadas).join();
+	}
+
+
+	@Benchmark
+	@OperationsPerInvocation(LLAMANTES)
+	public Object asincrono() {
+
+		CompletableFuture<?>[] llamadas = new CompletableFuture<?>[LLAMANTES];
+
+		for (int i = 0; i < LLAMANTES; i++) {
+
+			llamadas[i] = gestorUsuarioAsincrono.obtenerUsuario(dniAleatorio());
+		}
+
+		return CompletableFuture.allOf(llamadas).join();
+	}
+
+
+	private static String dniAleatorio() {
+
+		return EntornoBenchmark.dni(ThreadLocalRandom.current().nextInt(EntornoBenchmark.USUARIOS));
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.myapp.bricolaje.model.repo.Cargo;
+import com.myapp.bricolaje.model.repo.Direccion;
+import com.myapp.bricolaje.model.repo.Permiso;
+import com.myapp.bricolaje.model.repo.Rol;
+import com.myapp.bricolaje.model.repo.Usuario;
+
+/**
+ * Rendimiento y latencia de las operaciones más frecuentes de los Gestores sobre los volúmenes de
+ * EntornoBenchmark, que explica cómo ejecutarlo. Cada benchmark se mide en operaciones por segundo y, con
+ * SampleTime, en percentiles de latencia.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@Threads(4)
+public class GestoresBenchmark {
+
+	//Usuarios leídos al preparar el benchmark, que modificarUsuario() va modificando por turnos
+	private static final int USUARIOS_A_MODIFICAR = 10_000;
+
+	private static final String[] FRAGMENTOS_CARGO = { "jefe", "almac", "encargado de ven", "ica", "de tienda", "director de l" };
+
+	private GestorUsuario gestorUsuario;
+
+	private GestorDireccion gestorDireccion;
+
+	private GestorCargo gestorCargo;
+
+	private GestorRol gestorRol;
+
+	private GestorPermiso gestorPermiso;
+
+	private final List<Usuario> usuariosAModificar = new ArrayList<>(USUARIOS_A_MODIFICAR);
+
+	private final AtomicInteger siguienteModificacion = new AtomicInteger();
+
+	private final AtomicInteger siguienteAlta = new AtomicInteger(EntornoBenchmark.USUARIOS);
+
+	//------------------
+
+	@Setup(Level.Trial)
+	public void preparar() {
+
+		ConfigurableApplicationContext contexto = EntornoBenchmark.arrancar();
+
+		gestorUsuario = contexto.getBean(GestorUsuario.class);
+		gestorDireccion = contexto.getBean(GestorDireccion.class);
+		gestorCargo = contexto.getBean(GestorCargo.class);
+		gestorRol = contexto.getBean(GestorRol.class);
+		gestorPermiso = contexto.getBean(GestorPermiso.class);
+
+		for (int i = 0; i < USUARIOS_A_MODIFICAR; i++) {
+
+			usuariosAModificar.add(gestorUsuario.obtenerUsuario(EntornoBenchmark.dni(i * (EntornoBenchmark.USUARIOS / USUARIOS_A_MODIFICAR))));
+		}
+	}
+
+
+	@TearDown(Level.Trial)
+	public void terminar() {
+
+		EntornoBenchmark.detener();
+	}
+
+
+	@Benchmark
+	public int altaUsuario() {
+
+		return gestorUsuario.altaUsuario(EntornoBenchmark.nuevoUsuario(siguienteAlta.getAndIncrement()));
+	}
+
+
+	@Benchmark
+	public Usuario obtenerUsuario() {
+
+		return gestorUsuario.obtenerUsuario(EntornoBenchmark.dni(ThreadLocalRandom.current().nextInt(EntornoBenchmark.USUARIOS)));
+	}
+
+
+	@Benchmark
+	public int modificarUsuario() {
+
+		Usuario usuario = usuariosAModificar.get(Math.floorMod(siguienteModificacion.getAndIncrement(), USUARIOS_A_MODIFICAR));
+
+		//Cada hilo trabaja con su propia copia para no compartir la entidad entre hilos
+		Usuario modificado = CopiaEntidades.copiar(usuario);
+
+		modificado.setEdad(18 + ThreadLocalRandom.current().nextInt(60));
+
+		return gestorUsuario.modificarUsuario(modificado);
+	}
+
+
+	@Benchmark
+	public List<Direccion> listarDireccionesPorCodigoPostal() {
+
+		return gestorDireccion.listarDireccionesPorCodigoPostal(1_000 + ThreadLocalRandom.current().nextInt(EntornoBenchmark.CODIGOS_POSTALES));
+	}
+
+
+	@Benchmark
+	public List<Cargo> listarCargoQueContengaDescripcion() {
+
+		return gestorCargo.listarCargoQueContengaDescripcion(FRAGMENTOS_CARGO[ThreadLocalRandom.current().nextInt(FRAGMENTOS_CARGO.length)]);
+	}
+
+
+	@Benchmark
+	public Cargo obtenerCargo() {
+
+		return gestorCargo.obtenerCargo(1 + ThreadLocalRandom.current().nextInt(EntornoBenchmark.CARGOS));
+	}
+
+
+	@Benchmark
+	public Rol obtenerRol() {
+
+		return gestorRol.obtenerRol(EntornoBenchmark.ID_ROL);
+	}
+
+
+	@Benchmark
+	public List<Permiso> listarTodosPermisos() {
+
+		return gestorPermiso.listarTodosPermisos();
+	}
+}
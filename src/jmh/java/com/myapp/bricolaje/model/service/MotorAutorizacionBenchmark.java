@@ -0,0 +1,98 @@
+/*
+ * Author: Tony Crespo - tonycrespo@outlook.com
+ * System Engineer, Java Spring MVC, Data, Boot, Cloud Developer
+ */
+package com.myapp.bricolaje.model.service;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Coste de MotorAutorizacion.tienePermiso() con 50 Roles, 40 Permisos y 30 Modulos. Las concesiones se generan
+ * a partir de las Direcciones sembradas cambiando bricolaje.autorizacion.consulta, sin Usuarios, para que el fork
+ * arranque en segundos. Se ejecuta con -prof gc: gc.alloc.rate.norm debe quedar en 0 B/op, lo que muestra que
+ * cada comprobación no crea ningún objeto.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Dbricolaje.benchmark.usuarios=0", "-Dbricolaje.benchmark.direcciones=20000",
+		"-Dbricolaje.autorizacion.consulta=select mod(d.idDireccion, 50) + 1, mod(d.idDireccion, 40) + 1, "
+				+ "mod(d.idDireccion, 30) + 1 from Direccion d" })
+@Threads(4)
+public class MotorAutorizacionBenchmark {
+
+	//Potencia de dos para recorrer las comprobaciones con una máscara
+	private static final int COMPROBACIONES = 1 << 12;
+
+	private MotorAutorizacion motorAutorizacion;
+
+	private final int[] roles = new int[COMPROBACIONES];
+
+	private final int[] permisos = new int[COMPROBACIONES];
+
+	private final int[] modulos = new int[COMPROBACIONES];
+
+	//------------------
+
+	@Setup(Level.Trial)
+	public void preparar() {
+
+		motorAutorizacion = EntornoBenchmark.arrancar().getBean(MotorAutorizacion.class);
+
+		//La matriz se compiló al sembrar el Rol, antes de que existieran las Direcciones
+		motorAutorizacion.recompilar();
+
+		SplittableRandom aleatorio = new SplittableRandom(42);
+
+		//Incluye ids fuera de rango para medir también el camino de los ids desconocidos
+		for (int i = 0; i < COMPROBACIONES; i++) {
+
+			roles[i] = 1 + aleatorio.nextInt(55);
+			permisos[i] = 1 + aleatorio.nextInt(45);
+			modulos[i] = 1 + aleatorio.nextInt(35);
+		}
+	}
+
+
+	@TearDown(Level.Trial)
+	public void terminar() {
+
+		EntornoBenchmark.detener();
+	}
+
+
+	/**
+	 * Posición de cada hilo en las comprobaciones precalculadas
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		int posicion;
+	}
+
+
+	@Benchmark
+	public boolean tienePermiso(Cursor cursor) {
+
+		int i = cursor.posicion++ & (COMPROBACIONES - 1);
+
+		return motorAutorizacion.tienePermiso(roles[i], permisos[i], modulos[i]);
+	}
+}